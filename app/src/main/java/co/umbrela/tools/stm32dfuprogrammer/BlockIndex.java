@@ -0,0 +1,166 @@
+/*
+ * Copyright 2015 Umbrela Smart, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package co.umbrela.tools.stm32dfuprogrammer;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Splits a run of firmware elements into transfer blocks once, so the writer does not have to
+ * look at the data again. Blocks that only contain 0xFF are already in the erased state
+ * of the flash and do not need to be sent.
+ */
+public class BlockIndex {
+
+    public static class Block {
+        public final int offset;    // offset inside the run
+        public final int length;    // bytes of run data, the last block may be partial
+        public final boolean blank; // all bytes are 0xFF
+        public final int crc;       // CRC32 of the block, padded with 0xFF to the block size
+
+        Block(int offset, int length, boolean blank, int crc) {
+            this.offset = offset;
+            this.length = length;
+            this.blank = blank;
+            this.crc = crc;
+        }
+    }
+
+    private final int blockSize;
+    private final Block[] blocks;
+    private final int blankCount;
+    private final int trimmedLength;
+
+    private BlockIndex(int blockSize, Block[] blocks, int blankCount, int trimmedLength) {
+        this.blockSize = blockSize;
+        this.blocks = blocks;
+        this.blankCount = blankCount;
+        this.trimmedLength = trimmedLength;
+    }
+
+    // indexes the concatenation of parts, ie. all elements of a run
+    public static BlockIndex build(List<ByteBuffer> parts, int blockSize) {
+
+        int length = 0;
+        for (ByteBuffer part : parts) {
+            length += part.remaining();
+        }
+        Iterator<ByteBuffer> nextPart = parts.iterator();
+        ByteBuffer data = null;
+        int numOfBlocks = (length + blockSize - 1) / blockSize;
+        Block[] blocks = new Block[numOfBlocks];
+        int blankCount = 0;
+        int trimmedLength = 0;
+        byte[] block = new byte[blockSize];
+        CRC32 crc32 = new CRC32();
+
+        for (int n = 0; n < numOfBlocks; n++) {
+            int blockOffset = n * blockSize;
+            int blockLength = Math.min(blockSize, length - blockOffset);
+            for (int filled = 0; filled < blockLength; ) {
+                if (data == null || !data.hasRemaining()) {
+                    data = nextPart.next().duplicate();
+                    continue;
+                }
+                int count = Math.min(blockLength - filled, data.remaining());
+                data.get(block, filled, count);
+                filled += count;
+            }
+            // Pad with 0xFF as it is sent to the device
+            Arrays.fill(block, blockLength, blockSize, (byte) 0xFF);
+
+            int lastUsed = -1;  // last byte which is not 0xFF
+            for (int i = blockLength - 1; i >= 0; i--) {
+                if (block[i] != (byte) 0xFF) {
+                    lastUsed = i;
+                    break;
+                }
+            }
+            boolean blank = lastUsed < 0;
+            if (blank) {
+                blankCount++;
+            } else {
+                trimmedLength = blockOffset + lastUsed + 1;
+            }
+
+            crc32.reset();
+            crc32.update(block, 0, blockSize);
+            blocks[n] = new Block(blockOffset, blockLength, blank, (int) crc32.getValue());
+        }
+        return new BlockIndex(blockSize, blocks, blankCount, trimmedLength);
+    }
+
+    // index of a run of length bytes from the CRCs and blank flags indexed before
+    static BlockIndex restore(int length, int blockSize, int[] crcs, boolean[] blank, int trimmedLength) {
+
+        Block[] blocks = new Block[crcs.length];
+        int blankCount = 0;
+        for (int n = 0; n < blocks.length; n++) {
+            int blockOffset = n * blockSize;
+            blocks[n] = new Block(blockOffset, Math.min(blockSize, length - blockOffset), blank[n], crcs[n]);
+            if (blank[n]) {
+                blankCount++;
+            }
+        }
+        return new BlockIndex(blockSize, blocks, blankCount, trimmedLength);
+    }
+
+    // compares eight bytes at a time against the erased state of the flash
+    public static boolean isBlank(byte[] data, int offset, int length) {
+        ByteBuffer words = ByteBuffer.wrap(data, offset, length);
+        while (words.remaining() >= 8) {
+            if (words.getLong() != -1L) {
+                return false;
+            }
+        }
+        while (words.hasRemaining()) {
+            if (words.get() != (byte) 0xFF) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public int getBlockCount() {
+        return blocks.length;
+    }
+
+    public Block getBlock(int n) {
+        return blocks[n];
+    }
+
+    // index of the block containing the run offset
+    public int getBlockNumber(int offset) {
+        return offset / blockSize;
+    }
+
+    public int getBlankCount() {
+        return blankCount;
+    }
+
+    // run length without its trailing 0xFF padding
+    public int getTrimmedLength() {
+        return trimmedLength;
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2015 Umbrela Smart, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package co.umbrela.tools.stm32dfuprogrammer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+/**
+ * Progress of a write, persisted after every block the device acknowledged, so an interrupted
+ * write can continue where it stopped instead of erasing and writing the whole image again.
+ * The checkpoint only applies to the image it was written for.
+ */
+class Checkpoint {
+
+    private static final int MAGIC = 0x44464350;    // "DFCP"
+    private static final int HASH_SIZE = 32;        // SHA-256
+    private static final int HEADER_SIZE = 8 + HASH_SIZE;   // magic, image hash, block size
+    private static final long NONE = -1;
+
+    private final RandomAccessFile out;
+    private long lastAddress;
+
+    private Checkpoint(RandomAccessFile out, long lastAddress) {
+        this.out = out;
+        this.lastAddress = lastAddress;
+    }
+
+    // opens the checkpoint of the image, a checkpoint of another image is discarded
+    static Checkpoint open(File file, byte[] imageHash, int blockSize) throws IOException {
+        if (imageHash.length != HASH_SIZE) throw new IllegalArgumentException("Image hash must be SHA-256");
+
+        RandomAccessFile out = new RandomAccessFile(file, "rw");
+        long lastAddress = NONE;
+        byte[] storedHash = new byte[HASH_SIZE];
+        if (out.length() == HEADER_SIZE + 8 && out.readInt() == MAGIC &&
+                out.read(storedHash) == HASH_SIZE && Arrays.equals(storedHash, imageHash) &&
+                out.readInt() == blockSize) {
+            lastAddress = out.readLong();
+        } else {
+            out.setLength(0);
+            out.writeInt(MAGIC);
+            out.write(imageHash);
+            out.writeInt(blockSize);
+            out.writeLong(NONE);
+        }
+        return new Checkpoint(out, lastAddress);
+    }
+
+    // address of the last acknowledged block, -1 if nothing was written yet
+    long getLastAddress() {
+        return lastAddress;
+    }
+
+    void acknowledge(int address) throws IOException {
+        lastAddress = address & 0xFFFFFFFFL;
+        out.seek(HEADER_SIZE);
+        out.writeLong(lastAddress);
+    }
+
+    // the device was erased, nothing of the image is written
+    void reset() throws IOException {
+        lastAddress = NONE;
+        out.seek(HEADER_SIZE);
+        out.writeLong(NONE);
+    }
+
+    void close() {
+        try {
+            out.close();
+        } catch (IOException e) {
+            // nothing to do, the progress was already written
+        }
+    }
+}
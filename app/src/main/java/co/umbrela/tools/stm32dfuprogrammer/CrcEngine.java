@@ -0,0 +1,389 @@
+/*
+ * Copyright 2015 Umbrela Smart, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package co.umbrela.tools.stm32dfuprogrammer;
+
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+
+/**
+ * Computes the CRC of the DfuSe suffix: reflected CRC-32 (0xEDB88320) starting with -1 and
+ * without the final inversion, so it is the inverted value of a standard CRC-32.
+ * All engines give the same result, they only differ in speed.
+ */
+public abstract class CrcEngine {
+    private static final String TAG = "CrcEngine";
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final int PARALLEL_MIN_CHUNK = 256 * 1024;
+
+    // byte at a time lookup table
+    public static final CrcEngine TABLE = new CrcEngine("table") {
+        @Override
+        int update(int crc, byte[] data, int offset, int length) {
+            for (int i = offset; i < offset + length; i++) {
+                crc = CRC_TABLE[(crc ^ data[i]) & 0xff] ^ (crc >>> 8);
+            }
+            return crc;
+        }
+    };
+
+    // eight lookup tables, consumes eight bytes per step
+    public static final CrcEngine SLICE_BY_8 = new CrcEngine("slice-by-8") {
+        @Override
+        int update(int crc, byte[] data, int offset, int length) {
+            int[][] t = SLICE_TABLES;
+            int i = offset;
+            int end = offset + length;
+            for (; i + 8 <= end; i += 8) {
+                int low = crc ^ ((data[i] & 0xFF) | (data[i + 1] & 0xFF) << 8 |
+                        (data[i + 2] & 0xFF) << 16 | (data[i + 3] & 0xFF) << 24);
+                crc = t[7][low & 0xFF] ^ t[6][(low >>> 8) & 0xFF] ^
+                        t[5][(low >>> 16) & 0xFF] ^ t[4][low >>> 24] ^
+                        t[3][data[i + 4] & 0xFF] ^ t[2][data[i + 5] & 0xFF] ^
+                        t[1][data[i + 6] & 0xFF] ^ t[0][data[i + 7] & 0xFF];
+            }
+            for (; i < end; i++) {
+                crc = CRC_TABLE[(crc ^ data[i]) & 0xff] ^ (crc >>> 8);
+            }
+            return crc;
+        }
+    };
+
+    // java.util.zip.CRC32, native and intrinsified on most runtimes
+    public static final CrcEngine ZIP = new CrcEngine("zip") {
+        @Override
+        int update(int crc, byte[] data, int offset, int length) {
+            State state = STATE.get();
+            state.crc32.reset();
+            state.crc32.update(data, offset, length);
+            // CRC32 can not be seeded, so the running value is combined with the new part
+            return ~combine(~crc, (int) state.crc32.getValue(), length, state.even, state.odd);
+        }
+
+        @Override
+        public int update(int crc, ByteBuffer data) {
+            if (data.hasArray()) {
+                return update(crc, data.array(), data.arrayOffset() + data.position(), data.remaining());
+            }
+            State state = STATE.get();
+            state.crc32.reset();
+            int length = data.remaining();
+            ByteBuffer view = data.duplicate();
+            while (view.hasRemaining()) {
+                int n = Math.min(view.remaining(), state.chunk.length);
+                view.get(state.chunk, 0, n);
+                state.crc32.update(state.chunk, 0, n);
+            }
+            return ~combine(~crc, (int) state.crc32.getValue(), length, state.even, state.odd);
+        }
+    };
+
+    // splits large buffers into chunks, computes them on all cores and combines the results,
+    // an interrupt while waiting for them ends the update with a CancellationException
+    public static final CrcEngine PARALLEL = new CrcEngine("parallel") {
+        @Override
+        int update(int crc, byte[] data, int offset, int length) {
+            return update(crc, ByteBuffer.wrap(data, offset, length));
+        }
+
+        @Override
+        public int update(int crc, ByteBuffer data) {
+            int length = data.remaining();
+            int threads = Runtime.getRuntime().availableProcessors();
+            if (threads < 2 || length < 2 * PARALLEL_MIN_CHUNK) {
+                return ZIP.update(crc, data);
+            }
+            int chunks = Math.min(threads, length / PARALLEL_MIN_CHUNK);
+            int chunkSize = (length + chunks - 1) / chunks;
+
+            List<Future<Integer>> results = new ArrayList<>();
+            for (int offset = 0; offset < length; offset += chunkSize) {
+                final ByteBuffer chunk = DfuFile.slice(data, data.position() + offset, Math.min(chunkSize, length - offset));
+                results.add(getExecutor().submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() {
+                        return ~ZIP.update(-1, chunk);    // standard CRC-32 of the chunk
+                    }
+                }));
+            }
+            int standard = ~crc;
+            try {
+                for (int i = 0; i < results.size(); i++) {
+                    int n = Math.min(chunkSize, length - i * chunkSize);
+                    standard = combine(standard, results.get(i).get(), n);
+                }
+            } catch (InterruptedException e) {
+                // cancelled, ie. by DfuEngine, the chunks still queued are not needed anymore
+                for (Future<Integer> result : results) {
+                    result.cancel(true);
+                }
+                Thread.currentThread().interrupt();
+                throw new CancellationException("Operation cancelled");
+            } catch (ExecutionException e) {
+                Log.w(TAG, "Parallel CRC failed, continue sequential", e);
+                return ZIP.update(crc, data);
+            }
+            return ~standard;
+        }
+    };
+
+    private static final CrcEngine[] ENGINES = {TABLE, SLICE_BY_8, ZIP, PARALLEL};
+
+    // reused by every update of a thread, so a CRC per block does not allocate
+    private static class State {
+        final CRC32 crc32 = new CRC32();
+        final byte[] chunk = new byte[CHUNK_SIZE];
+        final int[] even = new int[32];
+        final int[] odd = new int[32];
+    }
+
+    private static final ThreadLocal<State> STATE = new ThreadLocal<State>() {
+        @Override
+        protected State initialValue() {
+            return new State();
+        }
+    };
+
+    private static ExecutorService executor;
+    private static CrcEngine defaultEngine;
+
+    private final String name;
+
+    private CrcEngine(String name) {
+        this.name = name;
+    }
+
+    abstract int update(int crc, byte[] data, int offset, int length);
+
+    // continues the crc over the remaining bytes of data, the buffer position is not changed
+    public int update(int crc, ByteBuffer data) {
+        if (data.hasArray()) {
+            return update(crc, data.array(), data.arrayOffset() + data.position(), data.remaining());
+        }
+        byte[] chunk = STATE.get().chunk;
+        ByteBuffer view = data.duplicate();
+        while (view.hasRemaining()) {
+            int n = Math.min(view.remaining(), chunk.length);
+            view.get(chunk, 0, n);
+            crc = update(crc, chunk, 0, n);
+        }
+        return crc;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+
+    public static CrcEngine[] getEngines() {
+        return ENGINES.clone();
+    }
+
+    // the fastest engine, if it passed the self test
+    public static synchronized CrcEngine getDefault() {
+        if (defaultEngine == null) {
+            try {
+                selfTest();
+                defaultEngine = PARALLEL;
+            } catch (CancellationException e) {
+                throw e;    // interrupted, the next call tests again
+            } catch (IllegalStateException e) {
+                Log.e(TAG, e.getMessage());
+                defaultEngine = TABLE;
+            }
+        }
+        return defaultEngine;
+    }
+
+    // checks that all engines give the same CRC, also when the data is fed in pieces
+    public static void selfTest() {
+
+        // DfuSe CRC of "123456789" is the inverted CRC-32 check value 0xCBF43926
+        byte[] check = "123456789".getBytes();
+        for (CrcEngine engine : ENGINES) {
+            if (engine.update(-1, check, 0, check.length) != ~0xCBF43926) {
+                throw new IllegalStateException("CRC engine " + engine + " failed check value");
+            }
+        }
+
+        Random random = new Random(0x0483DF11);
+        int[] sizes = {0, 1, 7, 8, 9, 1000, 65537, 2 * PARALLEL_MIN_CHUNK + 13};
+        for (int size : sizes) {
+            byte[] data = new byte[size];
+            random.nextBytes(data);
+            int split = size == 0 ? 0 : random.nextInt(size);
+            int expected = TABLE.update(-1, data, 0, size);
+            for (CrcEngine engine : ENGINES) {
+                int whole = engine.update(-1, ByteBuffer.wrap(data));
+                ByteBuffer direct = ByteBuffer.allocateDirect(size);
+                direct.put(data).flip();
+                int pieces = engine.update(engine.update(-1, DfuFile.slice(direct, 0, split)), DfuFile.slice(direct, split, size - split));
+                if (whole != expected || pieces != expected) {
+                    throw new IllegalStateException("CRC engine " + engine + " differs for " + size + " Bytes");
+                }
+            }
+        }
+    }
+
+    // standard CRC-32 of the concatenation, from the CRCs of both parts, see zlib crc32_combine
+    static int combine(int crc1, int crc2, long length2) {
+        return combine(crc1, crc2, length2, new int[32], new int[32]);
+    }
+
+    // even and odd are scratch space for the operators of an even and odd power of two zero bits
+    static int combine(int crc1, int crc2, long length2, int[] even, int[] odd) {
+
+        if (length2 <= 0) {
+            return crc1;
+        }
+
+        odd[0] = 0xEDB88320;        // operator for one zero bit
+        int row = 1;
+        for (int n = 1; n < 32; n++) {
+            odd[n] = row;
+            row <<= 1;
+        }
+        square(even, odd);  // two zero bits
+        square(odd, even);  // four zero bits
+
+        // apply length2 zero bytes to crc1, the first square puts the operator for one zero byte in even
+        do {
+            square(even, odd);
+            if ((length2 & 1) != 0) {
+                crc1 = times(even, crc1);
+            }
+            length2 >>= 1;
+            if (length2 == 0) {
+                break;
+            }
+            square(odd, even);
+            if ((length2 & 1) != 0) {
+                crc1 = times(odd, crc1);
+            }
+            length2 >>= 1;
+        } while (length2 != 0);
+
+        return crc1 ^ crc2;
+    }
+
+    private static int times(int[] matrix, int vector) {
+        int sum = 0;
+        for (int i = 0; vector != 0; i++, vector >>>= 1) {
+            if ((vector & 1) != 0) {
+                sum ^= matrix[i];
+            }
+        }
+        return sum;
+    }
+
+    private static void square(int[] square, int[] matrix) {
+        for (int n = 0; n < 32; n++) {
+            square[n] = times(matrix, matrix[n]);
+        }
+    }
+
+    private static synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "crc");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return executor;
+    }
+
+    private static int[][] buildSliceTables() {
+        int[][] tables = new int[8][];
+        tables[0] = CRC_TABLE;
+        for (int k = 1; k < 8; k++) {
+            tables[k] = new int[256];
+            for (int n = 0; n < 256; n++) {
+                int crc = tables[k - 1][n];
+                tables[k][n] = CRC_TABLE[crc & 0xFF] ^ (crc >>> 8);
+            }
+        }
+        return tables;
+    }
+
+    private final static int[] CRC_TABLE = {
+            0x00000000, 0x77073096, 0xee0e612c, 0x990951ba, 0x076dc419, 0x706af48f,
+            0xe963a535, 0x9e6495a3, 0x0edb8832, 0x79dcb8a4, 0xe0d5e91e, 0x97d2d988,
+            0x09b64c2b, 0x7eb17cbd, 0xe7b82d07, 0x90bf1d91, 0x1db71064, 0x6ab020f2,
+            0xf3b97148, 0x84be41de, 0x1adad47d, 0x6ddde4eb, 0xf4d4b551, 0x83d385c7,
+            0x136c9856, 0x646ba8c0, 0xfd62f97a, 0x8a65c9ec, 0x14015c4f, 0x63066cd9,
+            0xfa0f3d63, 0x8d080df5, 0x3b6e20c8, 0x4c69105e, 0xd56041e4, 0xa2677172,
+            0x3c03e4d1, 0x4b04d447, 0xd20d85fd, 0xa50ab56b, 0x35b5a8fa, 0x42b2986c,
+            0xdbbbc9d6, 0xacbcf940, 0x32d86ce3, 0x45df5c75, 0xdcd60dcf, 0xabd13d59,
+            0x26d930ac, 0x51de003a, 0xc8d75180, 0xbfd06116, 0x21b4f4b5, 0x56b3c423,
+            0xcfba9599, 0xb8bda50f, 0x2802b89e, 0x5f058808, 0xc60cd9b2, 0xb10be924,
+            0x2f6f7c87, 0x58684c11, 0xc1611dab, 0xb6662d3d, 0x76dc4190, 0x01db7106,
+            0x98d220bc, 0xefd5102a, 0x71b18589, 0x06b6b51f, 0x9fbfe4a5, 0xe8b8d433,
+            0x7807c9a2, 0x0f00f934, 0x9609a88e, 0xe10e9818, 0x7f6a0dbb, 0x086d3d2d,
+            0x91646c97, 0xe6635c01, 0x6b6b51f4, 0x1c6c6162, 0x856530d8, 0xf262004e,
+            0x6c0695ed, 0x1b01a57b, 0x8208f4c1, 0xf50fc457, 0x65b0d9c6, 0x12b7e950,
+            0x8bbeb8ea, 0xfcb9887c, 0x62dd1ddf, 0x15da2d49, 0x8cd37cf3, 0xfbd44c65,
+            0x4db26158, 0x3ab551ce, 0xa3bc0074, 0xd4bb30e2, 0x4adfa541, 0x3dd895d7,
+            0xa4d1c46d, 0xd3d6f4fb, 0x4369e96a, 0x346ed9fc, 0xad678846, 0xda60b8d0,
+            0x44042d73, 0x33031de5, 0xaa0a4c5f, 0xdd0d7cc9, 0x5005713c, 0x270241aa,
+            0xbe0b1010, 0xc90c2086, 0x5768b525, 0x206f85b3, 0xb966d409, 0xce61e49f,
+            0x5edef90e, 0x29d9c998, 0xb0d09822, 0xc7d7a8b4, 0x59b33d17, 0x2eb40d81,
+            0xb7bd5c3b, 0xc0ba6cad, 0xedb88320, 0x9abfb3b6, 0x03b6e20c, 0x74b1d29a,
+            0xead54739, 0x9dd277af, 0x04db2615, 0x73dc1683, 0xe3630b12, 0x94643b84,
+            0x0d6d6a3e, 0x7a6a5aa8, 0xe40ecf0b, 0x9309ff9d, 0x0a00ae27, 0x7d079eb1,
+            0xf00f9344, 0x8708a3d2, 0x1e01f268, 0x6906c2fe, 0xf762575d, 0x806567cb,
+            0x196c3671, 0x6e6b06e7, 0xfed41b76, 0x89d32be0, 0x10da7a5a, 0x67dd4acc,
+            0xf9b9df6f, 0x8ebeeff9, 0x17b7be43, 0x60b08ed5, 0xd6d6a3e8, 0xa1d1937e,
+            0x38d8c2c4, 0x4fdff252, 0xd1bb67f1, 0xa6bc5767, 0x3fb506dd, 0x48b2364b,
+            0xd80d2bda, 0xaf0a1b4c, 0x36034af6, 0x41047a60, 0xdf60efc3, 0xa867df55,
+            0x316e8eef, 0x4669be79, 0xcb61b38c, 0xbc66831a, 0x256fd2a0, 0x5268e236,
+            0xcc0c7795, 0xbb0b4703, 0x220216b9, 0x5505262f, 0xc5ba3bbe, 0xb2bd0b28,
+            0x2bb45a92, 0x5cb36a04, 0xc2d7ffa7, 0xb5d0cf31, 0x2cd99e8b, 0x5bdeae1d,
+            0x9b64c2b0, 0xec63f226, 0x756aa39c, 0x026d930a, 0x9c0906a9, 0xeb0e363f,
+            0x72076785, 0x05005713, 0x95bf4a82, 0xe2b87a14, 0x7bb12bae, 0x0cb61b38,
+            0x92d28e9b, 0xe5d5be0d, 0x7cdcefb7, 0x0bdbdf21, 0x86d3d2d4, 0xf1d4e242,
+            0x68ddb3f8, 0x1fda836e, 0x81be16cd, 0xf6b9265b, 0x6fb077e1, 0x18b74777,
+            0x88085ae6, 0xff0f6a70, 0x66063bca, 0x11010b5c, 0x8f659eff, 0xf862ae69,
+            0x616bffd3, 0x166ccf45, 0xa00ae278, 0xd70dd2ee, 0x4e048354, 0x3903b3c2,
+            0xa7672661, 0xd06016f7, 0x4969474d, 0x3e6e77db, 0xaed16a4a, 0xd9d65adc,
+            0x40df0b66, 0x37d83bf0, 0xa9bcae53, 0xdebb9ec5, 0x47b2cf7f, 0x30b5ffe9,
+            0xbdbdf21c, 0xcabac28a, 0x53b39330, 0x24b4a3a6, 0xbad03605, 0xcdd70693,
+            0x54de5729, 0x23d967bf, 0xb3667a2e, 0xc4614ab8, 0x5d681b02, 0x2a6f2b94,
+            0xb40bbe37, 0xc30c8ea1, 0x5a05df1b, 0x2d02ef8d
+    };
+
+    private final static int[][] SLICE_TABLES = buildSliceTables();
+}
@@ -0,0 +1,255 @@
+/*
+ * Copyright 2015 Umbrela Smart, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package co.umbrela.tools.stm32dfuprogrammer;
+
+import android.hardware.usb.UsbDevice;
+import android.hardware.usb.UsbManager;
+import android.os.Build;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Attached DFU devices indexed by USB serial number and bus path. The device list is scanned
+ * once, after that the index follows the ATTACHED and DETACHED broadcasts. A device keeps its
+ * entry when it is detached, so it is recognized by its serial when it enumerates again after
+ * a reset, even on another bus path.
+ */
+public class DeviceRegistry {
+    private static final String TAG = "DeviceRegistry";
+
+    public interface Listener {
+        // reappeared is true for a device that was attached before, ie. after a reset
+        void onDeviceAttached(Entry entry, boolean reappeared);
+
+        void onDeviceDetached(Entry entry);
+
+        // the permission was granted, after a reset a device has to be granted again
+        void onDeviceGranted(Entry entry);
+    }
+
+    public static class Entry {
+        private volatile String serial;         // null if the device does not report one
+        private volatile String path;
+        private volatile UsbDevice device;
+        private volatile boolean attached;
+        private volatile boolean granted;       // kept when it is detached
+
+        private Entry(String serial, UsbDevice device) {
+            this.serial = serial;
+            this.path = device.getDeviceName();
+            this.device = device;
+        }
+
+        public String getSerial() {
+            return serial;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public UsbDevice getDevice() {
+            return device;
+        }
+
+        public boolean isAttached() {
+            return attached;
+        }
+
+        // the permission was granted for this device before, possibly on an earlier attachment
+        public boolean isGranted() {
+            return granted;
+        }
+
+        // stable name of the device, the serial if there is one
+        public String getKey() {
+            String s = serial;
+            return s != null ? s : path;
+        }
+
+        @Override
+        public String toString() {
+            return getKey() + (serial != null ? " at " + path : "") + (attached ? "" : " (detached)");
+        }
+    }
+
+    private final int vendorId;
+    private final int productId;
+    private final ConcurrentHashMap<String, Entry> bySerial = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Entry> byPath = new ConcurrentHashMap<>();
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private volatile boolean scanned;
+
+    public DeviceRegistry(int vendorId, int productId) {
+        this.vendorId = vendorId;
+        this.productId = productId;
+    }
+
+    public void setListener(Listener listener) {
+        if (listener == null) throw new IllegalArgumentException("Listener is null");
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    // indexes the devices that were attached before the broadcasts were received, only the first call scans
+    public void scan(UsbManager usbManager) {
+        if (scanned) {
+            return;
+        }
+        scanned = true;
+        for (UsbDevice device : usbManager.getDeviceList().values()) {
+            attached(device);
+        }
+    }
+
+    // returns the entry of the device, null if it is not a DFU device
+    public Entry attached(UsbDevice device) {
+        if (!matches(device)) {
+            return null;
+        }
+        String serial = getSerial(device);
+        Entry entry = serial != null ? bySerial.get(serial) : byPath.get(device.getDeviceName());
+        boolean reappeared = entry != null;
+        if (entry == null) {
+            entry = new Entry(serial, device);
+            if (serial != null) {
+                Entry raced = bySerial.putIfAbsent(serial, entry);
+                if (raced != null) {
+                    entry = raced;
+                    reappeared = true;
+                }
+            }
+        } else if (entry.attached && entry.path.equals(device.getDeviceName())) {
+            return entry;   // the same attachment reported twice
+        }
+        if (!entry.path.equals(device.getDeviceName())) {
+            byPath.remove(entry.path, entry);
+        }
+        entry.device = device;
+        entry.path = device.getDeviceName();
+        entry.attached = true;
+        byPath.put(entry.path, entry);
+
+        Log.i(TAG, (reappeared ? "Reattached " : "Attached ") + entry);
+        for (Listener listener : listeners) {
+            listener.onDeviceAttached(entry, reappeared);
+        }
+        return entry;
+    }
+
+    public Entry detached(UsbDevice device) {
+        if (device == null) {
+            return null;
+        }
+        Entry entry = byPath.remove(device.getDeviceName());
+        if (entry == null) {
+            return null;
+        }
+        entry.attached = false;
+        Log.i(TAG, "Detached " + entry);
+        for (Listener listener : listeners) {
+            listener.onDeviceDetached(entry);
+        }
+        return entry;
+    }
+
+    // the serial descriptor may only be readable once the permission is granted
+    public void granted(UsbDevice device) {
+        Entry entry = byPath.get(device.getDeviceName());
+        if (entry == null) {
+            entry = attached(device);
+            if (entry == null) {
+                return;
+            }
+        }
+        if (entry.serial == null) {
+            entry = merge(entry, device);
+        }
+        entry.granted = true;
+        for (Listener listener : listeners) {
+            listener.onDeviceGranted(entry);
+        }
+    }
+
+    // the entry of the device once its serial is known, the one of a device seen before if there is one
+    private Entry merge(Entry entry, UsbDevice device) {
+        String serial = getSerial(device);
+        if (serial == null) {
+            return entry;
+        }
+        Entry known = bySerial.putIfAbsent(serial, entry);
+        if (known == null) {
+            entry.serial = serial;
+            return entry;
+        }
+        // a device seen before that enumerated on a new path, its entry takes over the path
+        byPath.remove(entry.path, entry);
+        if (!known.path.equals(entry.path)) {
+            byPath.remove(known.path, known);
+        }
+        known.device = device;
+        known.path = device.getDeviceName();
+        known.attached = true;
+        byPath.put(known.path, known);
+
+        Log.i(TAG, "Reattached " + known);
+        for (Listener listener : listeners) {
+            listener.onDeviceAttached(known, true);
+        }
+        return known;
+    }
+
+    public Entry get(UsbDevice device) {
+        return device == null ? null : byPath.get(device.getDeviceName());
+    }
+
+    public Entry getBySerial(String serial) {
+        return bySerial.get(serial);
+    }
+
+    // attached devices in no particular order
+    public List<Entry> getAttached() {
+        return new ArrayList<>(byPath.values());
+    }
+
+    private boolean matches(UsbDevice device) {
+        return device != null && device.getVendorId() == vendorId && device.getProductId() == productId;
+    }
+
+    // null before LOLLIPOP, which has no serial in UsbDevice
+    String getSerial(UsbDevice device) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return null;
+        }
+        return readSerial(device);
+    }
+
+    static String readSerial(UsbDevice device) {
+        try {
+            return device.getSerialNumber();
+        } catch (SecurityException e) {
+            return null;    // not readable before the permission is granted
+        }
+    }
+}
@@ -21,13 +21,21 @@ import android.os.Environment;
 import android.util.Log;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 @SuppressWarnings("unused")
 public class Dfu {
@@ -36,34 +44,15 @@ public class Dfu {
     private final static int USB_DIR_IN = 128;       //0x80
     private final static int DFU_RequestType = 0x21;  // '2' => Class request ; '1' => to interface
 
-    private final static int STATE_IDLE = 0x00;
-    private final static int STATE_DETACH = 0x01;
-    private final static int STATE_DFU_IDLE = 0x02;
-    private final static int STATE_DFU_DOWNLOAD_SYNC = 0x03;
-    private final static int STATE_DFU_DOWNLOAD_BUSY = 0x04;
-    private final static int STATE_DFU_DOWNLOAD_IDLE = 0x05;
-    private final static int STATE_DFU_MANIFEST_SYNC = 0x06;
-    private final static int STATE_DFU_MANIFEST = 0x07;
-    private final static int STATE_DFU_MANIFEST_WAIT_RESET = 0x08;
-    private final static int STATE_DFU_UPLOAD_IDLE = 0x09;
-    private final static int STATE_DFU_ERROR = 0x0A;
-    private final static int STATE_DFU_UPLOAD_SYNC = 0x91;
-    private final static int STATE_DFU_UPLOAD_BUSY = 0x92;
+    private final static int STATE_DFU_IDLE = DfuStateMachine.STATE_DFU_IDLE;
+    private final static int STATE_DFU_DOWNLOAD_BUSY = DfuStateMachine.STATE_DFU_DOWNLOAD_BUSY;
+    private final static int STATE_DFU_ERROR = DfuStateMachine.STATE_DFU_ERROR;
 
     // DFU Commands, request ID code when using controlTransfers
-    private final static int DFU_DETACH = 0x00;
-    private final static int DFU_DNLOAD = 0x01;
-    private final static int DFU_UPLOAD = 0x02;
-    private final static int DFU_GETSTATUS = 0x03;
-    private final static int DFU_CLRSTATUS = 0x04;
-    private final static int DFU_GETSTATE = 0x05;
-    private final static int DFU_ABORT = 0x06;
-
-    public final static int ELEMENT1_OFFSET = 293;  // constant offset in file array where image data starts
-    public final static int TARGET_NAME_START = 22;
-    public final static int TARGET_NAME_MAX_END = 276;
-    public final static int TARGET_SIZE = 277;
-    public final static int TARGET_NUM_ELEMENTS = 281;
+    // GETSTATUS, CLRSTATUS, GETSTATE and ABORT are sent by the DfuStateMachine
+    private final static int DFU_DETACH = DfuStateMachine.DFU_DETACH;
+    private final static int DFU_DNLOAD = DfuStateMachine.DFU_DNLOAD;
+    private final static int DFU_UPLOAD = DfuStateMachine.DFU_UPLOAD;
 
 
     // Device specific parameters
@@ -84,12 +73,27 @@ public class Dfu {
 
     private final int deviceVid;
     private final int devicePid;
-    private final DfuFile dfuFile;
-
-    private Usb usb;
+    private DfuFile dfuFile;
+    private ImageCache imageCache;  // null parses the file on every operation
+    private FirmwareCatalog catalog;    // null lists the Download folder on every operation
+    private volatile WritePlan writePlan;    // elements of dfuFile merged into contiguous runs
+    private int maxBlockSize = 1024;
+    private VerifyPolicy verifyPolicy = VerifyPolicy.FULL;
+    private VerifyReport lastVerifyReport;
+    private volatile int writtenBlocks;     // blocks sent by the last write, read for progress
+    private long writeTransactions;         // DFU requests needed for them
+    private File checkpointFile;            // null disables resuming
+    private Checkpoint checkpoint;          // progress of the running write
+
+    private DfuTransport transport;    // Usb, or SimulatedDfuDevice off-device
+    private final DfuStateMachine stateMachine = new DfuStateMachine();
     private int deviceVersion;  //STM bootloader version
+    private MemoryLayout deviceLayout;  // internal flash sectors as reported by the device
+    private final byte[] command = new byte[5];     // DfuSe command of the next DNLOAD
+    private byte[] blockBuffer = new byte[0];       // one block, sized on first use
 
-    private final List<DfuListener> listeners = new ArrayList<>();
+    // registered from the UI thread, called from the thread running the operation
+    private final List<DfuListener> listeners = new CopyOnWriteArrayList<>();
 
     public interface DfuListener {
         void onStatusMsg(String msg);
@@ -98,8 +102,6 @@ public class Dfu {
     public Dfu(int usbVendorId, int usbProductId) {
         this.deviceVid = usbVendorId;
         this.devicePid = usbProductId;
-
-        dfuFile = new DfuFile();
     }
 
     private void onStatusMsg(final String msg) {
@@ -113,9 +115,60 @@ public class Dfu {
         listeners.add(listener);
     }
 
-    public void setUsb(Usb usb) {
-        this.usb = usb;
-        this.deviceVersion = this.usb.getDeviceVersion();
+    public void removeListener(final DfuListener listener) {
+        listeners.remove(listener);
+    }
+
+    // policy used by verify() and after programming, FULL by default
+    public void setVerifyPolicy(VerifyPolicy policy) {
+        if (policy == null) throw new IllegalArgumentException("Policy is null");
+        this.verifyPolicy = policy;
+    }
+
+    // holds the checked blocks, so a unit that failed a sampled verification can be verified in full
+    public VerifyReport getLastVerifyReport() {
+        return lastVerifyReport;
+    }
+
+    // where programFirmware() keeps the progress of a write, so it can resume after the USB connection dropped
+    public void setCheckpointFile(File file) {
+        this.checkpointFile = file;
+    }
+
+    // shares parsed images and write plans between operations and sessions
+    public void setImageCache(ImageCache imageCache) {
+        this.imageCache = imageCache;
+    }
+
+    // selects the image for the device from the catalog instead of the first file in the Download folder
+    public void setFirmwareCatalog(FirmwareCatalog catalog) {
+        this.catalog = catalog;
+    }
+
+    public void setTransport(DfuTransport transport) {
+        this.transport = transport;
+        this.stateMachine.setTransport(transport);
+        this.deviceVersion = transport != null ? transport.getDeviceVersion() : 0;
+    }
+
+    // poll limits, backoff and transaction counts of the DFU state transitions
+    public DfuStateMachine getStateMachine() {
+        return stateMachine;
+    }
+
+    // USB control transfers per written block of the last write, including address pointer and status requests
+    public double getTransfersPerBlock() {
+        return writtenBlocks == 0 ? 0 : (double) writeTransactions / writtenBlocks;
+    }
+
+    // percentage of the image blocks written by the running or last write
+    public int getProgress() {
+        WritePlan plan = writePlan;
+        if (plan == null) {
+            return 0;
+        }
+        int blocks = plan.getBlockCount() - plan.getBlankCount();
+        return blocks == 0 ? 100 : Math.min(100, writtenBlocks * 100 / blocks);
     }
 
     /* One-Click Programming Method to fully flash the connected device
@@ -123,11 +176,29 @@ public class Dfu {
          it failed on something it cannot fix.
   */
     public boolean programFirmware(String filePath) throws Exception {
+        return programFirmware(filePath, false);
+    }
+
+    /* Differential mode reads back the device and only erases and reprograms the flash sectors
+         whose content differs from the file, instead of a mass erase and a full write.
+         Any verification failure still falls back to mass erase and full write.
+  */
+    public boolean programFirmware(String filePath, boolean differential) throws Exception {
+        openFile(filePath);
+        return programImage(differential);
+    }
+
+    // programs an image opened before, so sessions programming several devices share one image
+    public boolean programFirmware(DfuFile image, boolean differential) throws Exception {
+        if (image == null) throw new IllegalArgumentException("Image is null");
+        dfuFile = image;
+        return programImage(differential);
+    }
+
+    private boolean programImage(boolean differential) throws Exception {
 
         final int MAX_ALLOWED_RETRIES = 5;
 
-        openFile(filePath);
-        verifyFile();
         checkCompatibility();
 
         if (isDeviceProtected()) {
@@ -137,18 +208,41 @@ public class Dfu {
             Log.i(TAG, "Device is resetting");
             return false;       // device will reset
         }
-        for (int i = MAX_ALLOWED_RETRIES + 1; i > 0; i--) {
-            if (isDeviceBlank())
-                break;
-            if (i == 1) {
-                throw new Exception("Cannot Mass Erase, REPLACE UNIT!");
+        if (differential) {
+            int changed = writeChangedSectors();
+            Log.i(TAG, "Reprogrammed " + changed + " changed sectors");
+        } else {
+            if (checkpointFile != null) {
+                checkpoint = Checkpoint.open(checkpointFile, writePlan.getImageHash(), maxBlockSize);
+            }
+            try {
+                if (!resumeImage()) {
+                    if (checkpoint != null) {
+                        checkpoint.reset();
+                    }
+                    for (int i = MAX_ALLOWED_RETRIES + 1; i > 0; i--) {
+                        if (isDeviceBlank())
+                            break;
+                        if (i == 1) {
+                            throw new Exception("Cannot Mass Erase, REPLACE UNIT!");
+                        }
+                        Log.i(TAG, "Device not blank, erasing");
+                        eraseSectors(planErase());
+                    }
+                    writeImage();
+                }
+            } finally {
+                if (checkpoint != null) {
+                    checkpoint.close();     // kept on disk until the image is verified
+                    checkpoint = null;
+                }
             }
-            Log.i(TAG, "Device not blank, erasing");
-            massErase();
         }
-        writeImage();
         for (int i = MAX_ALLOWED_RETRIES + 1; i > 0; i--) {
             if (isWrittenImageOk()) {
+                if (checkpointFile != null && !checkpointFile.delete()) {
+                    Log.w(TAG, "Cannot delete checkpoint " + checkpointFile);
+                }
                 Log.i(TAG, "Writing Option Bytes, will self-reset");
                 int selectOptions = OPT_RDP_OFF | OPT_WDG_SW | OPT_nRST_STOP | OPT_nRST_STDBY | OPT_BOR_1;  // todo in production, OPT_RDP_1 must be set instead of OPT_RDP_OFF
                 writeOptionBytes(selectOptions);   // will reset device
@@ -158,47 +252,150 @@ public class Dfu {
                 throw new Exception("Cannot Write successfully, REPLACE UNIT!");
             }
             Log.i(TAG, "Verification failed, retry");
-            massErase();
+            eraseSectors(planErase());
             writeImage();
         }
 
         return true;
     }
 
+    // continues an interrupted write after the last acknowledged block, returns false if the
+    // device does not hold the written part of the image anymore
+    private boolean resumeImage() throws Exception {
+
+        if (checkpoint == null || checkpoint.getLastAddress() < 0) {
+            return false;
+        }
+        int lastAddress = (int) checkpoint.getLastAddress();
+        List<WritePlan.Run> runs = writePlan.getRuns();
+        for (int r = 0; r < runs.size(); r++) {
+            final WritePlan.Run run = runs.get(r);
+            long offset = (lastAddress & 0xFFFFFFFFL) - (run.address & 0xFFFFFFFFL);
+            if (offset < 0 || offset >= run.length) {
+                continue;
+            }
+            final BlockIndex index = run.getBlockIndex();
+            final int boundary = index.getBlockNumber((int) offset);
+            BlockIndex.Block block = index.getBlock(boundary);
+
+            // the boundary block must hold the file content, the blocks after it were either
+            // written before their acknowledge was persisted or are still erased
+            final int[] next = {boundary};
+            final boolean[] damaged = {false};
+            readBlocks(run.address + block.offset, run.length - block.offset, new BlockReader() {
+                @Override
+                public boolean onBlock(int address, byte[] data, int length) {
+                    int n = index.getBlockNumber(address - run.address);
+                    // a blank block of the file reads blank either way, it does not end the written part
+                    if (n > boundary && !index.getBlock(n).blank && BlockIndex.isBlank(data, 0, length)) {
+                        return false;
+                    }
+                    if (!run.matches(address - run.address, data, 0, length)) {
+                        damaged[0] = true;
+                        return false;
+                    }
+                    next[0] = n + 1;
+                    return true;
+                }
+            });
+            if (damaged[0] || next[0] == boundary) {
+                Log.i(TAG, "Checkpoint at 0x" + Integer.toHexString(lastAddress) + " does not match the device");
+                return false;
+            }
+            onStatusMsg("Resuming write at block " + next[0] + " of run " + run + "\n");
+            writeImage(r, next[0]);
+            return true;
+        }
+        return false;
+    }
+
     private boolean isDeviceBlank() throws Exception {
 
-        byte[] readContent = new byte[dfuFile.elementLength];
-        readImage(readContent);
-        ByteBuffer read = ByteBuffer.wrap(readContent);    // wrap whole array
-        int hash = read.hashCode();
-        return (dfuFile.elementLength == Math.abs(hash));
+        long dirtyAddress = findDirtyBlock();
+        if (dirtyAddress >= 0) {
+            Log.i(TAG, "Device not blank at block 0x" + Long.toHexString(dirtyAddress));
+            return false;
+        }
+        return true;
     }
 
-    // similar to verify()
+    // uploads the image area block by block and stops at the first block that is not erased,
+    // returns its address or -1 if the whole area is blank
+    private long findDirtyBlock() throws Exception {
+
+        final long[] dirtyAddress = {-1};
+        for (WritePlan.Run run : writePlan.getRuns()) {
+            readBlocks(run.address, run.length, new BlockReader() {
+                @Override
+                public boolean onBlock(int address, byte[] block, int length) {
+                    if (BlockIndex.isBlank(block, 0, length)) {
+                        return true;
+                    }
+                    dirtyAddress[0] = address & 0xFFFFFFFFL;
+                    return false;
+                }
+            });
+            if (dirtyAddress[0] >= 0) {
+                break;
+            }
+        }
+        return dirtyAddress[0];
+    }
+
+    // similar to verify(), stops at the first mismatch
     private boolean isWrittenImageOk() throws Exception {
-        byte[] deviceFirmware = new byte[dfuFile.elementLength];
         long startTime = System.currentTimeMillis();
-        readImage(deviceFirmware);
-        // create byte buffer and compare content
-        ByteBuffer fileFw = ByteBuffer.wrap(dfuFile.file, ELEMENT1_OFFSET, dfuFile.elementLength);    // set offset and limit of firmware
-        ByteBuffer deviceFw = ByteBuffer.wrap(deviceFirmware);    // wrap whole array
-        boolean result = fileFw.equals(deviceFw);
+        VerifyReport report = verifyImage(verifyPolicy, true);
         Log.i(TAG, "Verified completed in " + (System.currentTimeMillis() - startTime) + " ms");
-        return result;
+        if (!report.isOk()) {
+            Log.i(TAG, report.toString());
+        }
+        return report.isOk();
+    }
+
+    // uploads the blocks selected by the policy and compares each with the file while the next one is uploaded
+    private VerifyReport verifyImage(VerifyPolicy policy, boolean stopAtFirstMismatch) throws Exception {
+
+        VerifyReport report = new VerifyReport(policy);
+        final StreamingVerifier verifier = new StreamingVerifier(report, stopAtFirstMismatch, maxBlockSize);
+        verifier.start();
+        try {
+            for (final WritePlan.Run run : writePlan.getRuns()) {
+                BlockReader reader = new BlockReader() {
+                    @Override
+                    public boolean onBlock(int address, byte[] block, int length) throws Exception {
+                        return verifier.submit(run, address - run.address, block, length);
+                    }
+                };
+                // each group of consecutive selected blocks needs one address pointer
+                BitSet selected = policy.selectBlocks(run, deviceLayout);
+                BlockIndex index = run.getBlockIndex();
+                for (int first = selected.nextSetBit(0); first >= 0 && !verifier.isAborted(); ) {
+                    int end = selected.nextClearBit(first);
+                    int offset = index.getBlock(first).offset;
+                    BlockIndex.Block last = index.getBlock(end - 1);
+                    readBlocks(run.address + offset, last.offset + last.length - offset, reader);
+                    first = selected.nextSetBit(end);
+                }
+                if (verifier.isAborted()) {
+                    break;
+                }
+            }
+        } finally {
+            verifier.finish();
+        }
+        lastVerifyReport = report;
+        return report;
     }
 
     public void massErase() {
 
         if (!isUsbConnected()) return;
 
-        DfuStatus dfuStatus = new DfuStatus();
         long startTime = System.currentTimeMillis();  // note current time
 
         try {
-            do {
-                clearStatus();
-                getStatus(dfuStatus);
-            } while (dfuStatus.bState != STATE_DFU_IDLE);
+            stateMachine.toIdle("idle");
 
             if (isDeviceProtected()) {
                 removeReadProtection();
@@ -207,28 +404,63 @@ public class Dfu {
             }
 
             massEraseCommand();                 // sent erase command request
-            getStatus(dfuStatus);                // initiate erase command, returns 'download busy' even if invalid address or ROP
-            int pollingTime = dfuStatus.bwPollTimeout;  // note requested waiting time
-            do {
-            /* wait specified time before next getStatus call */
-                Thread.sleep(pollingTime);
-                clearStatus();
-                getStatus(dfuStatus);
-            } while (dfuStatus.bState != STATE_DFU_IDLE);
+            // the first getStatus initiates the erase, the device asks to wait bwPollTimeout between polls
+            if (stateMachine.execute("massErase").bState == STATE_DFU_ERROR) {
+                throw new Exception("Mass erase failed");
+            }
+            stateMachine.toIdle("idle");
             onStatusMsg("Mass erase completed in " + (System.currentTimeMillis() - startTime) + " ms");
 
         } catch (InterruptedException e) {
-            e.printStackTrace();
+            // keeps the interrupt for DfuEngine, the erase itself continues on the device
+            Thread.currentThread().interrupt();
+            onStatusMsg("Mass erase cancelled");
         } catch (Exception e) {
             onStatusMsg(e.toString());
         }
     }
 
+    // minimal set of sectors that must be erased before writing all runs
+    private List<MemoryLayout.Sector> planErase() throws Exception {
+
+        Set<MemoryLayout.Sector> sectors = new LinkedHashSet<>();
+        for (WritePlan.Run run : writePlan.getRuns()) {
+            sectors.addAll(deviceLayout.getSectors(run.address, run.length));
+        }
+        List<MemoryLayout.Sector> plan = new ArrayList<>(sectors);
+        for (MemoryLayout.Sector sector : plan) {
+            if (!sector.isErasable()) {
+                throw new FormatException("Sector " + sector + " is not erasable");
+            }
+        }
+        Log.i(TAG, "Erase plan: " + plan.size() + " of " + deviceLayout.getSectors().size() + " sectors");
+        return plan;
+    }
+
+    private void eraseSectors(List<MemoryLayout.Sector> sectors) throws Exception {
+
+        long startTime = System.currentTimeMillis();
+        for (MemoryLayout.Sector sector : sectors) {
+            checkCancelled();
+            eraseSector(sector.address);
+        }
+        onStatusMsg("Erased " + sectors.size() + " sectors in " + (System.currentTimeMillis() - startTime) + " ms\n");
+    }
+
+    private void eraseSector(int address) throws Exception {
+
+        stateMachine.toDownload("idle");
+
+        eraseSectorCommand(address);
+        if (stateMachine.execute("erase").bState == STATE_DFU_ERROR) {
+            throw new Exception("Error while erasing sector at 0x" + Integer.toHexString(address));
+        }
+    }
+
     public void fastOperations() {
 
         if (!isUsbConnected()) return;
 
-        final DfuStatus dfuStatus = new DfuStatus();
         final byte[] configBytes = new byte[4];
 
         try {
@@ -243,14 +475,9 @@ public class Dfu {
             if (configBytes[0] != 0x03) {
                 configBytes[0] = 0x03;
 
-                download(configBytes, 2);
-                getStatus(dfuStatus);
-
-                getStatus(dfuStatus);
-                while (dfuStatus.bState != STATE_DFU_IDLE) {
-                    clearStatus();
-                    getStatus(dfuStatus);
-                }
+                downloadBlock(configBytes, 2);
+                stateMachine.execute("download");
+                stateMachine.toIdle("idle");
                 onStatusMsg("Fast Operations set (Parallelism x32)");
             } else {
                 onStatusMsg("Fast Operations was already set (Parallelism x32)");
@@ -272,17 +499,26 @@ public class Dfu {
             }
 
             openFile();
-            verifyFile();
             checkCompatibility();
             onStatusMsg("File Path: " + dfuFile.filePath + "\n");
-            onStatusMsg("File Size: " + dfuFile.file.length + " Bytes \n");
-            onStatusMsg("ElementAddress: 0x" + Integer.toHexString(dfuFile.elementStartAddress));
-            onStatusMsg("\tElementSize: " + dfuFile.elementLength + " Bytes\n");
-            onStatusMsg("Start writing file in blocks of " + dfuFile.maxBlockSize + " Bytes \n");
+            onStatusMsg("File Size: " + dfuFile.fileSize + " Bytes \n");
+            onStatusMsg("Elements: " + dfuFile.NumElements + " in " + writePlan.getRuns().size() + " runs\n");
+            for (WritePlan.Run run : writePlan.getRuns()) {
+                onStatusMsg("RunAddress: 0x" + Integer.toHexString(run.address));
+                onStatusMsg("\tRunSize: " + run.length + " Bytes\n");
+            }
+            onStatusMsg("Blank blocks skipped: " + writePlan.getBlankCount() + " of " +
+                    writePlan.getBlockCount() + "\n");
+            onStatusMsg("Start writing file in blocks of " + maxBlockSize + " Bytes \n");
 
             long startTime = System.currentTimeMillis();
+            stateMachine.resetTransitions();
+            transport.getTransferStats().reset();
             writeImage();
             onStatusMsg("Programming completed in " + (System.currentTimeMillis() - startTime) + " ms\n");
+            onStatusMsg(String.format("USB transfers per block: %.1f\n", getTransfersPerBlock()));
+            logTransitions();
+            reportTransfers();
 
         } catch (Exception e) {
             e.printStackTrace();
@@ -300,33 +536,168 @@ public class Dfu {
                 return;
             }
 
-            if (dfuFile.filePath == null) {
+            if (dfuFile == null) {
                 openFile();
-                verifyFile();
                 checkCompatibility();
             }
 
-            byte[] deviceFirmware = new byte[dfuFile.elementLength];
-            readImage(deviceFirmware);
+            long startTime = System.currentTimeMillis();
+            stateMachine.resetTransitions();
+            transport.getTransferStats().reset();
+            VerifyReport report = verifyImage(verifyPolicy, false);
+            onStatusMsg(report.toString() + "\n");
+            onStatusMsg("Verified completed in " + (System.currentTimeMillis() - startTime) + " ms\n");
+            logTransitions();
+            reportTransfers();
+        } catch (Exception e) {
+            e.printStackTrace();
+            onStatusMsg(e.toString());
+        }
+    }
+
+    // saves the whole internal flash, ie. as a backup before programming
+    public void dump(File file, boolean dfuSe) {
 
-            // create byte buffer and compare content
-            ByteBuffer fileFw = ByteBuffer.wrap(dfuFile.file, ELEMENT1_OFFSET, dfuFile.elementLength);    // set offset and limit of firmware
-            ByteBuffer deviceFw = ByteBuffer.wrap(deviceFirmware);    // wrap whole array
+        if (!isUsbConnected()) return;
 
-            if (fileFw.equals(deviceFw)) {        // compares type, length, content
-                onStatusMsg("device firmware equals file firmware");
-            } else {
-                onStatusMsg("device firmware does not equals file firmware");
-            }
+        try {
+            checkDevice();      // reads the layout, which gives the range
+            writeDump(file, deviceLayout.getStartAddress(), deviceLayout.getSize(), dfuSe);
         } catch (Exception e) {
             e.printStackTrace();
             onStatusMsg(e.toString());
         }
     }
 
+    // uploads length bytes from startAddress straight into file, memory use does not depend on length,
+    // dfuSe wraps them in a DfuSe file with a single element
+    public void dump(File file, int startAddress, int length, boolean dfuSe) throws Exception {
+
+        if (length <= 0) throw new IllegalArgumentException("Length must be positive");
+
+        checkDevice();
+        writeDump(file, startAddress, length, dfuSe);
+    }
+
+    // dump() of a device whose layout was read
+    private void writeDump(File file, int startAddress, int length, boolean dfuSe) throws Exception {
+
+        if (isDeviceProtected()) {
+            throw new Exception("Device is Read-Protected, flash cannot be read");
+        }
+        for (MemoryLayout.Sector sector : deviceLayout.getSectors(startAddress, length)) {
+            if (!sector.isReadable()) {
+                throw new FormatException("Sector at 0x" + Integer.toHexString(sector.address) + " is not readable");
+            }
+        }
+        onStatusMsg("Dumping " + length + " Bytes from 0x" + Integer.toHexString(startAddress) + " to " + file + "\n");
+
+        long startTime = System.currentTimeMillis();
+        stateMachine.resetTransitions();
+        transport.getTransferStats().reset();
+        boolean done = false;
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            DumpWriter writer = new DumpWriter(out.getChannel(), getBlockBuffer(maxBlockSize));
+            if (dfuSe) {
+                writer.write(dfuSePrefix(startAddress, length));
+            }
+            readBlocks(startAddress, length, writer);
+            if (dfuSe) {
+                writer.writeSuffix(deviceVersion, devicePid, deviceVid);
+            }
+            out.getFD().sync();
+            done = true;
+        } finally {
+            out.close();
+            if (!done && !file.delete()) {
+                Log.w(TAG, "Cannot delete partial dump " + file);
+            }
+        }
+
+        long elapsed = Math.max(System.currentTimeMillis() - startTime, 1);
+        onStatusMsg("Dump completed in " + elapsed + " ms (" + length * 1000L / 1024 / elapsed + " KB/s)\n");
+        logTransitions();
+        reportTransfers();
+    }
+
+    // DfuSe prefix, target prefix and element header of a dump
+    private ByteBuffer dfuSePrefix(int address, int length) {
+
+        int prefixLength = DfuFile.PREFIX_SIZE + DfuFile.TARGET_PREFIX_SIZE + DfuFile.ELEMENT_HEADER_SIZE;
+        ByteBuffer prefix = ByteBuffer.allocate(prefixLength).order(ByteOrder.LITTLE_ENDIAN);
+        prefix.put("DfuSe".getBytes(Charset.forName("US-ASCII"))).put((byte) 1);
+        prefix.putInt(prefixLength + length).put((byte) 1);    // image size without the suffix, one target
+
+        byte[] name = Arrays.copyOf(deviceLayout.getName().trim().getBytes(Charset.forName("US-ASCII")), DfuFile.TARGET_NAME_SIZE);
+        prefix.put("Target".getBytes(Charset.forName("US-ASCII"))).put((byte) 0).putInt(1).put(name);
+        prefix.putInt(DfuFile.ELEMENT_HEADER_SIZE + length).putInt(1);
+        prefix.putInt(address).putInt(length);
+        prefix.flip();
+        return prefix;
+    }
+
+    // writes the uploaded blocks to the dump file, with the CRC of a DfuSe file
+    private static class DumpWriter implements BlockReader {
+        private final FileChannel channel;
+        private ByteBuffer block;
+        private int crc = -1;
+
+        DumpWriter(FileChannel channel, byte[] block) {
+            this.channel = channel;
+            this.block = ByteBuffer.wrap(block);
+        }
+
+        @Override
+        public boolean onBlock(int address, byte[] data, int length) throws Exception {
+            checkCancelled();
+            if (block.array() != data) {
+                block = ByteBuffer.wrap(data);
+            }
+            block.clear();
+            block.limit(length);
+            write(block);
+            return true;
+        }
+
+        void write(ByteBuffer data) throws IOException {
+            crc = CrcEngine.getDefault().update(crc, data);
+            while (data.hasRemaining()) {
+                channel.write(data);
+            }
+        }
+
+        void writeSuffix(int bootVersion, int pid, int vid) throws IOException {
+            ByteBuffer suffix = ByteBuffer.allocate(DfuFile.SUFFIX_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            suffix.putShort((short) bootVersion).putShort((short) pid).putShort((short) vid);
+            suffix.putShort((short) 0x011A).put("UFD".getBytes(Charset.forName("US-ASCII"))).put((byte) DfuFile.SUFFIX_SIZE);
+            suffix.flip();
+            suffix.limit(DfuFile.SUFFIX_SIZE - 4);
+            write(suffix);
+            suffix.limit(DfuFile.SUFFIX_SIZE);
+            suffix.putInt(DfuFile.SUFFIX_SIZE - 4, crc);
+            while (suffix.hasRemaining()) {
+                channel.write(suffix);
+            }
+        }
+    }
+
+    private void logTransitions() {
+        for (DfuStateMachine.Transition transition : stateMachine.getTransitions()) {
+            Log.i(TAG, transition.toString());
+        }
+    }
+
+    // latency percentiles per request type of the last operation
+    private void reportTransfers() {
+        for (TransferStats.Histogram histogram : transport.getTransferStats().snapshot()) {
+            onStatusMsg(histogram.toString() + "\n");
+        }
+    }
+
     // check if usb device is active
     private boolean isUsbConnected() {
-        if (usb != null && usb.isConnected()) {
+        if (transport != null && transport.isConnected()) {
             return true;
         }
         onStatusMsg("No device connected");
@@ -343,148 +714,271 @@ public class Dfu {
     }
 
     private void removeReadProtection() throws Exception {
-        DfuStatus dfuStatus = new DfuStatus();
+        stateMachine.toDownload("idle");     // the protection check leaves the device in dfuERROR
         unProtectCommand();
-        getStatus(dfuStatus);
-        if (dfuStatus.bState != STATE_DFU_DOWNLOAD_BUSY) {
+        if (stateMachine.getStatus().bState != STATE_DFU_DOWNLOAD_BUSY) {
             throw new Exception("Failed to execute unprotect command");
         }
-        usb.release();     // XXX device will self-reset
+        transport.release();     // XXX device will self-reset
         Log.i(TAG, "USB was released");
     }
 
     private void readDeviceFeature(byte[] configBytes) throws Exception {
 
-        DfuStatus dfuStatus = new DfuStatus();
-
-        do {
-            clearStatus();
-            getStatus(dfuStatus);
-        } while (dfuStatus.bState != STATE_DFU_IDLE);
+        stateMachine.toDownload("idle");
 
         setAddressPointer(0xFFFF0000);
-        getStatus(dfuStatus);
-
-        getStatus(dfuStatus);
-        if (dfuStatus.bState == STATE_DFU_ERROR) {
+        if (stateMachine.execute("setAddress").bState == STATE_DFU_ERROR) {
             throw new Exception("Fast Operations not supported");
         }
+        stateMachine.toIdle("idle");    // UPLOAD is only accepted in dfuIDLE
+
+        upload(configBytes, 0, configBytes.length, 2);
+        stateMachine.toIdle("upload");
+    }
+
+    // compares the device against the file sector by sector, erases and rewrites only those that differ
+    private int writeChangedSectors() throws Exception {
+
+        Set<MemoryLayout.Sector> changed = new LinkedHashSet<>();
 
-        while (dfuStatus.bState != STATE_DFU_IDLE) {
-            clearStatus();
-            getStatus(dfuStatus);
+        byte[] deviceContent = new byte[0];
+        for (WritePlan.Run run : writePlan.getRuns()) {
+            for (MemoryLayout.Sector sector : deviceLayout.getSectors(run.address, run.length)) {
+                int start = Math.max(sector.address, run.address);
+                int length = Math.min(sector.getEndAddress(), run.getEndAddress()) - start;
+
+                if (deviceContent.length < length) {
+                    deviceContent = new byte[length];
+                }
+                readImage(start, deviceContent, length);
+                if (!run.matches(start - run.address, deviceContent, 0, length)) {
+                    changed.add(sector);
+                }
+            }
         }
 
-        upload(configBytes, configBytes.length, 2);
-        getStatus(dfuStatus);
+        // a block that straddles an erased sector and its neighbour is rewritten as a whole,
+        // so its neighbour has to be erased as well
+        boolean grown;
+        do {
+            grown = false;
+            for (WritePlan.Run run : writePlan.getRuns()) {
+                BlockIndex index = run.getBlockIndex();
+                for (int n = 0; n < index.getBlockCount(); n++) {
+                    BlockIndex.Block block = index.getBlock(n);
+                    List<MemoryLayout.Sector> touched = deviceLayout.getSectors(run.address + block.offset, block.length);
+                    if (touched.size() > 1 && !Collections.disjoint(touched, changed) && !changed.containsAll(touched)) {
+                        changed.addAll(touched);
+                        grown = true;
+                    }
+                }
+            }
+        } while (grown);
 
-        while (dfuStatus.bState != STATE_DFU_IDLE) {
-            clearStatus();
-            getStatus(dfuStatus);
+        for (MemoryLayout.Sector sector : changed) {
+            Log.i(TAG, "Sector " + sector + " changed, reprogramming");
+            eraseSector(sector.address);
         }
+        writtenBlocks = 0;
+        writeTransactions = 0;
+        for (WritePlan.Run run : writePlan.getRuns()) {
+            BlockIndex index = run.getBlockIndex();
+            BitSet selected = new BitSet(index.getBlockCount());
+            for (MemoryLayout.Sector sector : changed) {
+                int start = Math.max(sector.address, run.address);
+                int end = Math.min(sector.getEndAddress(), run.getEndAddress());
+                if (start < end) {
+                    selected.set(index.getBlockNumber(start - run.address), index.getBlockNumber(end - run.address - 1) + 1);
+                }
+            }
+            writeRun(run, selected);
+        }
+        return changed.size();
     }
 
     private void writeImage() throws Exception {
+        writeImage(0, 0);
+    }
 
-        int address = dfuFile.elementStartAddress;  // flash start address
-        int fileOffset = ELEMENT1_OFFSET;   // index offset of file
-        int blockSize = dfuFile.maxBlockSize;   // max block size
-        byte[] Block = new byte[blockSize];
-        int NumOfBlocks = dfuFile.elementLength / blockSize;
-        int blockNum;
-
-        for (blockNum = 0; blockNum < NumOfBlocks; blockNum++) {
-            System.arraycopy(dfuFile.file, (blockNum * blockSize) + fileOffset, Block, 0, blockSize);
-            // send out the block to device
-            writeBlock(address, Block, blockNum);
+    // writes the image starting with block startBlock of run startRun
+    private void writeImage(int startRun, int startBlock) throws Exception {
+        writtenBlocks = 0;
+        writeTransactions = 0;
+        List<WritePlan.Run> runs = writePlan.getRuns();
+        for (int r = startRun; r < runs.size(); r++) {
+            WritePlan.Run run = runs.get(r);
+            BlockIndex index = run.getBlockIndex();
+            BitSet selected = new BitSet(index.getBlockCount());
+            // trailing 0xFF padding is not sent
+            int end = index.getBlockNumber(index.getTrimmedLength() + index.getBlockSize() - 1);
+            if (r == startRun) {
+                selected.set(Math.min(startBlock, end), end);
+            } else {
+                selected.set(0, end);
+            }
+            writeRun(run, selected);
         }
-        // check if last block is partial
-        int remainder = dfuFile.elementLength - (blockNum * blockSize);
-        if (remainder > 0) {
-            System.arraycopy(dfuFile.file, (blockNum * blockSize) + fileOffset, Block, 0, remainder);
-            // Pad with 0xFF so our CRC matches the ST Bootloader and the ULink's CRC
-            while (remainder < Block.length) {
-                Block[remainder++] = (byte) 0xFF;
+    }
+
+    // writes the selected blocks of the run, blank blocks are skipped
+    private void writeRun(WritePlan.Run run, BitSet selected) throws Exception {
+
+        BlockIndex index = run.getBlockIndex();
+        int blockSize = index.getBlockSize();
+        byte[] Block = getBlockBuffer(blockSize);
+        WritePlan.Run.Reader reader = run.reader();
+        int blockNum = 0;   // block number relative to the current address pointer
+        int skipped = 0;
+
+        for (int n = selected.nextSetBit(0); n >= 0; n = selected.nextSetBit(n + 1)) {
+            checkCancelled();
+            BlockIndex.Block block = index.getBlock(n);
+            if (n > 0 && !selected.get(n - 1)) {
+                blockNum = 0;   // not contiguous with the previous written block
+            }
+            if (block.blank) {
+                // already in erased state, the next written block has to set the address pointer again
+                blockNum = 0;
+                skipped++;
+                continue;
             }
+            reader.copy(block.offset, Block, 0, block.length);
+            // Pad with 0xFF so our CRC matches the ST Bootloader and the ULink's CRC
+            Arrays.fill(Block, block.length, blockSize, (byte) 0xFF);
             // send out the block to device
-            writeBlock(address, Block, blockNum);
+            long transactions = stateMachine.getTransactionCount();
+            writeBlock(run.address + block.offset, Block, blockNum++);
+            writeTransactions += stateMachine.getTransactionCount() - transactions;
+            writtenBlocks++;
+            if (checkpoint != null) {
+                checkpoint.acknowledge(run.address + block.offset);
+            }
+        }
+        if (skipped > 0) {
+            Log.i(TAG, "Skipped " + skipped + " blank blocks");
         }
     }
 
+    // reused for every block of the session, the data is copied or sent before the next block
+    private byte[] getBlockBuffer(int blockSize) {
+        if (blockBuffer.length != blockSize) {
+            blockBuffer = new byte[blockSize];
+        }
+        return blockBuffer;
+    }
 
-    private void readImage(byte[] deviceFw) throws Exception {
+    // uploads length bytes from startAddress into deviceFw, full blocks are received in place
+    private void readImage(int startAddress, byte[] deviceFw, int length) throws Exception {
 
-        DfuStatus dfuStatus = new DfuStatus();
-        int maxBlockSize = dfuFile.maxBlockSize;
-        int startAddress = dfuFile.elementStartAddress;
-        byte[] block = new byte[maxBlockSize];
-        int nBlock;
-        int remLength = deviceFw.length;
-        int numOfBlocks = remLength / maxBlockSize;
+        startUpload(startAddress);
+        int offset = 0;
+        for (int nBlock = 0; offset < length; nBlock++) {
+            checkCancelled();
+            int blockLength = Math.min(length - offset, maxBlockSize);
+            if (blockLength == maxBlockSize || nBlock == 0) {
+                upload(deviceFw, offset, blockLength, nBlock + 2);
+            } else {
+                uploadTail(startAddress + offset, deviceFw, offset, blockLength);
+            }
+            offset += blockLength;
+        }
+    }
 
-        do {
-            clearStatus();
-            getStatus(dfuStatus);
-        } while (dfuStatus.bState != STATE_DFU_IDLE);
+    // uploads length bytes from startAddress and passes them block by block to the reader
+    private void readBlocks(int startAddress, int length, BlockReader reader) throws Exception {
 
-        setAddressPointer(startAddress);
-        getStatus(dfuStatus);   // to execute
-        getStatus(dfuStatus);   //to verify
-        if (dfuStatus.bState == STATE_DFU_ERROR) {
-            throw new Exception("Start address not supported");
-        }
+        byte[] block = getBlockBuffer(maxBlockSize);
+        int remLength = length;
 
+        startUpload(startAddress);
 
-        // will read full and last partial blocks ( NOTE: last partial block will be read with maxkblocksize)
-        for (nBlock = 0; nBlock <= numOfBlocks; nBlock++) {
+        // will read full and last partial blocks, the device derives the address from wBlockNum and wLength
+        // consecutive full size uploads are accepted in dfuUPLOAD-IDLE without status requests
+        for (int nBlock = 0; remLength > 0; nBlock++) {
 
-            while (dfuStatus.bState != STATE_DFU_IDLE) {        // todo if fails, maybe stop reading
-                clearStatus();
-                getStatus(dfuStatus);
+            checkCancelled();
+            int blockLength = Math.min(remLength, maxBlockSize);
+            int address = startAddress + nBlock * maxBlockSize;
+            if (blockLength == maxBlockSize || nBlock == 0) {
+                upload(block, 0, blockLength, nBlock + 2);
+            } else {
+                uploadTail(address, block, 0, blockLength);
             }
-            upload(block, maxBlockSize, nBlock + 2);
-            getStatus(dfuStatus);
 
-            if (remLength >= maxBlockSize) {
-                remLength -= maxBlockSize;
-                System.arraycopy(block, 0, deviceFw, (nBlock * maxBlockSize), maxBlockSize);
-            } else {
-                System.arraycopy(block, 0, deviceFw, (nBlock * maxBlockSize), remLength);
+            remLength -= blockLength;
+            if (!reader.onBlock(address, block, blockLength)) {
+                break;
             }
         }
     }
 
-    // this can be used if the filePath is known to .dfu file
+    // a partial last block has its own address pointer, uploaded with wLength of maxBlockSize it
+    // would read past the end of the range, which the device stalls at the end of flash
+    private void uploadTail(int address, byte[] data, int offset, int length) throws Exception {
+        startUpload(address);
+        upload(data, offset, length, 2);
+    }
+
+    // cancellation by DfuEngine, checked between blocks so a transfer is never cut off
+    private static void checkCancelled() throws InterruptedException {
+        if (Thread.interrupted()) {
+            throw new InterruptedException("Operation cancelled");
+        }
+    }
+
+    // sets the address pointer and leaves the device in dfuIDLE, where UPLOAD is accepted
+    private void startUpload(int startAddress) throws Exception {
+
+        stateMachine.toDownload("idle");
+
+        setAddressPointer(startAddress);
+        if (stateMachine.execute("setAddress").bState == STATE_DFU_ERROR) {
+            throw new Exception("Start address not supported");
+        }
+        stateMachine.toIdle("idle");
+    }
+
+    // this can be used if the filePath is known to .dfu, .hex, .bin or .elf file
     private void openFile(String filePath) throws Exception {
 
         if (filePath == null) {
             throw new FileNotFoundException("No file selected");
         }
-        File myFile = new File(filePath);
-        if (!myFile.exists()) {
-            throw new FileNotFoundException("Cannot find: " + myFile.toString());
+        // raw binaries are placed at the start of internal flash
+        File file = new File(filePath);
+        dfuFile = imageCache != null ? imageCache.open(file, mInternalFlashStartAddress) :
+                FirmwareReader.open(file, mInternalFlashStartAddress);
+    }
+
+    private void openFile() throws Exception {
+        openFile(selectFirmwareFile());
+    }
+
+    // newest image for the VID/PID of the device if there is a catalog
+    public String selectFirmwareFile() throws Exception {
+
+        FirmwareCatalog catalog = this.catalog;
+        if (catalog == null) {
+            return findFirmwareFile();
         }
-        if (!myFile.canRead()) {
-            throw new FormatException("Cannot open: " + myFile.toString());
+        FirmwareCatalog.Entry entry = catalog.select(deviceVid, devicePid);
+        if (entry == null) {
+            throw new Exception("No firmware file found in " + catalog.getDirectory());
         }
-        dfuFile.filePath = myFile.toString();
-        dfuFile.file = new byte[(int) myFile.length()];
-        //convert file into byte array
-        FileInputStream fileInputStream = new FileInputStream(myFile);
-        int readLength = fileInputStream.read(dfuFile.file);
-        fileInputStream.close();
-        if (readLength != myFile.length()) {
-            throw new IOException("Could Not Read File");
+        int candidates = catalog.findByDevice(deviceVid, devicePid).size();
+        if (candidates > 1) {
+            onStatusMsg("Using newest of " + candidates + " images: " + entry + "\n");
         }
+        return entry.file.getPath();
     }
 
-    private void openFile() throws Exception {
+    // first .dfu file in the Download folder, else the first other supported image
+    public static String findFirmwareFile() throws Exception {
 
         File extDownload;
         String myFilePath = null;
         String myFileName = null;
-        FileInputStream fileInputStream;
-        File myFile;
 
         if (Environment.getExternalStorageState() != null)  // todo not sure if this works
         {
@@ -493,179 +987,92 @@ public class Dfu {
             if (extDownload.exists()) {
                 String[] files = extDownload.list();
                 // todo support multiple dfu files in dir
-                if (files.length > 0) {   // will select first dfu file found in dir
+                if (files.length > 0) {   // will select first dfu file found in dir, else the first other image
                     for (String file : files) {
                         if (file.endsWith(".dfu")) {
                             myFilePath = extDownload.toString();
                             myFileName = file;
                             break;
                         }
+                        if (myFileName == null && FirmwareReader.isSupported(file)) {
+                            myFilePath = extDownload.toString();
+                            myFileName = file;
+                        }
                     }
                 }
             }
         }
-        if (myFileName == null) throw new Exception("No .dfu file found in Download Folder");
-
-        myFile = new File(myFilePath + "/" + myFileName);
-        dfuFile.filePath = myFile.toString();
-        dfuFile.file = new byte[(int) myFile.length()];
+        if (myFileName == null) throw new Exception("No firmware file found in Download Folder");
 
-        //convert file into byte array
-        fileInputStream = new FileInputStream(myFile);
-        fileInputStream.read(dfuFile.file);
-        fileInputStream.close();
+        return myFilePath + "/" + myFileName;
     }
 
-    private void verifyFile() throws Exception {
-
-        // todo for now i expect the file to be not corrupted
-
-        int length = dfuFile.file.length;
-
-        int crcIndex = length - 4;
-        int crc = 0;
-        crc |= dfuFile.file[crcIndex++] & 0xFF;
-        crc |= (dfuFile.file[crcIndex++] & 0xFF) << 8;
-        crc |= (dfuFile.file[crcIndex++] & 0xFF) << 16;
-        crc |= (dfuFile.file[crcIndex] & 0xFF) << 24;
-        // do crc check
-        if (crc != calculateCRC(dfuFile.file)) {
-            throw new FormatException("CRC Failed");
-        }
-
-        // Check the prefix
-        String prefix = new String(dfuFile.file, 0, 5);
-        if (prefix.compareTo("DfuSe") != 0) {
-            throw new FormatException("File signature error");
-        }
+    private void checkCompatibility() throws Exception {
 
-        // check dfuSe Version
-        if (dfuFile.file[5] != 1) {
-            throw new FormatException("DFU file version must be 1");
+        if (dfuFile.hasSuffix() && ((devicePid != dfuFile.PID) || (deviceVid != dfuFile.VID))) {
+            throw new FormatException("PID/VID Miss match");
         }
 
-        // Check the suffix
-        String suffix = new String(dfuFile.file, length - 8, 3);
-        if (suffix.compareTo("UFD") != 0) {
-            throw new FormatException("File suffix error");
-        }
-        if ((dfuFile.file[length - 5] != 16) || (dfuFile.file[length - 10] != 0x1A) || (dfuFile.file[length - 9] != 0x01)) {
-            throw new FormatException("File number error");
-        }
+        checkDevice();
 
-        // Now check the target prefix, we assume there is only one target in the file
-        String target = new String(dfuFile.file, 11, 6);
-        if (target.compareTo("Target") != 0) {
-            throw new FormatException("Target signature error");
+        // give warning and continue on
+        if (dfuFile.hasSuffix() && deviceVersion != dfuFile.BootVersion) {
+            onStatusMsg("Warning: Device BootVersion: " + Integer.toHexString(deviceVersion) +
+                    "\tFile BootVersion: " + Integer.toHexString(dfuFile.BootVersion) + "\n");
         }
 
-        if (0 != dfuFile.file[TARGET_NAME_START]) {
-            String tempName = new String(dfuFile.file, TARGET_NAME_START, TARGET_NAME_MAX_END);
-            int foundNullAt = tempName.indexOf(0);
-            dfuFile.TargetName = tempName.substring(0, foundNullAt);
-        } else {
-            throw new FormatException("No Target Name Exist in File");
+        // only the Internal Flash interface (alternate setting 0) is claimed
+        for (DfuFile.Target target : dfuFile.targets) {
+            if (target.alternateSetting != 0 && !target.elements.isEmpty()) {
+                throw new FormatException("Target " + target.name + " is not for Internal Flash");
+            }
         }
-        Log.i(TAG, "Firmware Target Name: " + dfuFile.TargetName);
-
-        dfuFile.TargetSize = dfuFile.file[TARGET_SIZE] & 0xFF;
-        dfuFile.TargetSize |= (dfuFile.file[TARGET_SIZE + 1] & 0xFF) << 8;
-        dfuFile.TargetSize |= (dfuFile.file[TARGET_SIZE + 2] & 0xFF) << 16;
-        dfuFile.TargetSize |= (dfuFile.file[TARGET_SIZE + 3] & 0xFF) << 24;
 
-        Log.i(TAG, "Firmware Target Size: " + dfuFile.TargetSize);
-
-        dfuFile.NumElements = dfuFile.file[TARGET_NUM_ELEMENTS] & 0xFF;
-        dfuFile.NumElements |= (dfuFile.file[TARGET_NUM_ELEMENTS + 1] & 0xFF) << 8;
-        dfuFile.NumElements |= (dfuFile.file[TARGET_NUM_ELEMENTS + 2] & 0xFF) << 16;
-        dfuFile.NumElements |= (dfuFile.file[TARGET_NUM_ELEMENTS + 3] & 0xFF) << 24;
-
-        Log.i(TAG, "Firmware Num of Elements: " + dfuFile.NumElements);
-
-        if (dfuFile.NumElements > 1) {
-            throw new FormatException("Do not support multiple Elements inside Image");
-            /*  If you get this error, that means that the C-compiler IDE is treating the Reset Vector ISR
-                and the data ( your code) as two separate elements.
-                This problem has been observed with The Atollic TrueStudio V5.5.2
-                The version of Atollic that works with this is v5.3.0
-                The version of DfuSe FileManager is v3.0.3
-                Refer to ST document UM0391 for more details on DfuSe format
-             */
+        writePlan = imageCache != null ? imageCache.getWritePlan(dfuFile, maxBlockSize) :
+                WritePlan.build(dfuFile.getElements(0), maxBlockSize);
+        if (writePlan.getRuns().isEmpty()) {
+            throw new FormatException("No Internal Flash data in File");
         }
-
-        // Get Element Flash start address and size
-        dfuFile.elementStartAddress = dfuFile.file[285] & 0xFF;
-        dfuFile.elementStartAddress |= (dfuFile.file[286] & 0xFF) << 8;
-        dfuFile.elementStartAddress |= (dfuFile.file[287] & 0xFF) << 16;
-        dfuFile.elementStartAddress |= (dfuFile.file[288] & 0xFF) << 24;
-
-        dfuFile.elementLength = dfuFile.file[289] & 0xFF;
-        dfuFile.elementLength |= (dfuFile.file[290] & 0xFF) << 8;
-        dfuFile.elementLength |= (dfuFile.file[291] & 0xFF) << 16;
-        dfuFile.elementLength |= (dfuFile.file[292] & 0xFF) << 24;
-
-        if (dfuFile.elementLength < 512) {
-            throw new FormatException("Element Size is too small");
+        for (WritePlan.Run run : writePlan.getRuns()) {
+            try {
+                deviceLayout.getSectors(run.address, run.length);
+            } catch (FormatException e) {
+                throw new FormatException("Firmware image too large for target: " + e.getMessage());
+            }
         }
+        Log.i(TAG, "Firmware ok and compatible");
 
-        // Get VID, PID and version number
-        dfuFile.VID = (dfuFile.file[length - 11] & 0xFF) << 8;
-        dfuFile.VID |= (dfuFile.file[length - 12] & 0xFF);
-        dfuFile.PID = (dfuFile.file[length - 13] & 0xFF) << 8;
-        dfuFile.PID |= (dfuFile.file[length - 14] & 0xFF);
-        dfuFile.BootVersion = (dfuFile.file[length - 15] & 0xFF) << 8;
-        dfuFile.BootVersion |= (dfuFile.file[length - 16] & 0xFF);
     }
 
-    private void checkCompatibility() throws Exception {
-
-        if ((devicePid != dfuFile.PID) || (deviceVid != dfuFile.VID)) {
-            throw new FormatException("PID/VID Miss match");
-        }
+    // reads the bootloader version and the memory layout, which select the block size
+    private void checkDevice() throws Exception {
 
-        deviceVersion = usb.getDeviceVersion();
-
-        // give warning and continue on
-        if (deviceVersion != dfuFile.BootVersion) {
-            onStatusMsg("Warning: Device BootVersion: " + Integer.toHexString(deviceVersion) +
-                    "\tFile BootVersion: " + Integer.toHexString(dfuFile.BootVersion) + "\n");
-        }
-
-        if (dfuFile.elementStartAddress != mInternalFlashStartAddress) { // todo: this will fail with images for other memory sections, other than Internal Flash
-            throw new FormatException("Firmware does not start at beginning of internal flash");
-        }
+        deviceVersion = transport.getDeviceVersion();
 
         if (deviceSizeLimit() < 0) {
             throw new Exception("Error: Could Not Retrieve Internal Flash String");
         }
 
-        if ((dfuFile.elementStartAddress + dfuFile.elementLength) >=
-                (mInternalFlashStartAddress + mInternalFlashSize)) {
-            throw new FormatException("Firmware image too large for target");
-        }
-
         switch (deviceVersion) {
             case 0x011A:
             case 0x0200:
-                dfuFile.maxBlockSize = 1024;
+                maxBlockSize = 1024;
                 break;
             case 0x2100:
             case 0x2200:
-                dfuFile.maxBlockSize = 2048;
+                maxBlockSize = 2048;
                 break;
             default:
                 throw new Exception("Error: Unsupported bootloader version");
         }
-        Log.i(TAG, "Firmware ok and compatible");
-
     }
 
-    // todo this is limited to stm32f405RG and will fail for other future chips.
-    private int deviceSizeLimit() {   // retrieves and compares the Internal Flash Memory Size  and compares to constant string
+    // retrieves the Internal Flash descriptor string and parses it into the device sector table
+    private int deviceSizeLimit() {
 
         int bmRequest = 0x80;       // IN, standard request to usb device
         byte bRequest = (byte) 0x06; // USB_REQ_GET_DESCRIPTOR
-        byte wLength = (byte) 127;   // max string size
+        int wLength = 255;          // max string descriptor size
         byte[] descriptor = new byte[wLength];
 
         /* This method can be used to retrieve any memory location size by incrementing the wValue in the defined range.
@@ -673,79 +1080,55 @@ public class Dfu {
          */
         int wValue = 0x0304;        // possible strings range from 0x304-0x307
 
-        int len = usb.controlTransfer(bmRequest, bRequest, wValue, 0, descriptor, wLength, 500);
-        if (len < 0) {
+        int len = transport.controlTransfer(bmRequest, bRequest, wValue, 0, descriptor, wLength, 500);
+        if (len < 2) {
             return -1;
         }
-        String decoded = new String(descriptor, Charset.forName("UTF-16LE"));
-        if (decoded.contains(mInternalFlashString)) {
-            return mInternalFlashSize; // size of stm32f405RG
-        } else {
+        // skip bLength and bDescriptorType, the rest is the UTF-16LE string
+        len = Math.min(len, descriptor[0] & 0xFF);
+        String decoded = new String(descriptor, 2, Math.max(len - 2, 0), Charset.forName("UTF-16LE"));
+        try {
+            deviceLayout = MemoryLayout.parse(decoded);
+        } catch (FormatException e) {
+            Log.e(TAG, e.getMessage());
             return -1;
         }
+        if (!decoded.equals(mInternalFlashString)) {
+            Log.i(TAG, "Device memory: " + decoded);
+        }
+        return deviceLayout.getSize();
     }
 
 
     private void writeBlock(int address, byte[] block, int blockNumber) throws Exception {
 
-        DfuStatus dfuStatus = new DfuStatus();
-
-        do {
-            clearStatus();
-            getStatus(dfuStatus);
-        } while (dfuStatus.bState != STATE_DFU_IDLE);
+        // the device stays in dfuDNLOAD-IDLE between blocks, a DNLOAD is accepted there without clearing
+        stateMachine.toDownload("idle");
 
         if (0 == blockNumber) {
             setAddressPointer(address);
-            getStatus(dfuStatus);
-            getStatus(dfuStatus);
-            if (dfuStatus.bState == STATE_DFU_ERROR) {
+            if (stateMachine.execute("setAddress").bState == STATE_DFU_ERROR) {
                 throw new Exception("Start address not supported");
             }
         }
 
-        do {
-            clearStatus();
-            getStatus(dfuStatus);
-        } while (dfuStatus.bState != STATE_DFU_IDLE);
-
-        download(block, (blockNumber + 2));
-        getStatus(dfuStatus);   // to execute
-        if (dfuStatus.bState != STATE_DFU_DOWNLOAD_BUSY) {
-            throw new Exception("error when downloading, was not busy ");
-        }
-        getStatus(dfuStatus);   // to verify action
-        if (dfuStatus.bState == STATE_DFU_ERROR) {
+        downloadBlock(block, (blockNumber + 2));
+        // the device programs the block while it reports dfuDNBUSY
+        if (stateMachine.execute("download").bState == STATE_DFU_ERROR) {
             throw new Exception("error when downloading, did not perform action");
         }
-
-        while (dfuStatus.bState != STATE_DFU_IDLE) {
-            clearStatus();
-            getStatus(dfuStatus);
-        }
     }
 
     private void detach(int Address) throws Exception {
 
-        DfuStatus dfuStatus = new DfuStatus();
-        getStatus(dfuStatus);
-        while (dfuStatus.bState != STATE_DFU_IDLE) {
-            clearStatus();
-            getStatus(dfuStatus);
-        }
+        stateMachine.toDownload("idle");
         // Set the command pointer to the new application base address
         setAddressPointer(Address);
-        getStatus(dfuStatus);
-        while (dfuStatus.bState != STATE_DFU_IDLE) {
-            clearStatus();
-            getStatus(dfuStatus);
-        }
+        stateMachine.execute("setAddress");
         // Issue the DFU detach command
         leaveDfu();
         try {
-            getStatus(dfuStatus);
-            clearStatus();
-            getStatus(dfuStatus);
+            stateMachine.getStatus();   // starts the manifestation, device resets
         } catch (Exception e) {
             // if caught, ignore since device might have disconnected already
         }
@@ -753,198 +1136,93 @@ public class Dfu {
 
     private boolean isDeviceProtected() throws Exception {
 
-        DfuStatus dfuStatus = new DfuStatus();
-        boolean isProtected = false;
-
-        do {
-            clearStatus();
-            getStatus(dfuStatus);
-        } while (dfuStatus.bState != STATE_DFU_IDLE);
+        stateMachine.toDownload("idle");
 
         setAddressPointer(mInternalFlashStartAddress);
-        getStatus(dfuStatus); // to execute
-        getStatus(dfuStatus);   // to verify
-
-        if (dfuStatus.bState == STATE_DFU_ERROR) {
-            isProtected = true;
-        }
-        while (dfuStatus.bState != STATE_DFU_IDLE) {
-            clearStatus();
-            getStatus(dfuStatus);
-        }
-        return isProtected;
+        return stateMachine.execute("setAddress").bState == STATE_DFU_ERROR;
     }
 
     public void writeOptionBytes(int options) throws Exception {
 
-        DfuStatus dfuStatus = new DfuStatus();
-
-        do {
-            clearStatus();
-            getStatus(dfuStatus);
-        } while (dfuStatus.bState != STATE_DFU_IDLE);
+        stateMachine.toDownload("idle");
 
         setAddressPointer(mOptionByteStartAddress);
-        getStatus(dfuStatus);
-        getStatus(dfuStatus);
-        if (dfuStatus.bState == STATE_DFU_ERROR) {
+        if (stateMachine.execute("setAddress").bState == STATE_DFU_ERROR) {
             throw new Exception("Option Byte Start address not supported");
         }
 
         Log.i(TAG, "writing options: 0x" + Integer.toHexString(options));
 
-        byte[] buffer = new byte[2];
-        buffer[0] = (byte) (options & 0xFF);
-        buffer[1] = (byte) ((options >> 8) & 0xFF);
-        download(buffer);
-        getStatus(dfuStatus);       // device will reset
+        command[0] = (byte) (options & 0xFF);
+        command[1] = (byte) ((options >> 8) & 0xFF);
+        download(command, 2);
+        stateMachine.getStatus();       // device will reset
     }
 
     private void massEraseCommand() throws Exception {
-        byte[] buffer = new byte[1];
-        buffer[0] = 0x41;
-        download(buffer);
+        command[0] = 0x41;
+        download(command, 1);
     }
 
-    private void unProtectCommand() throws Exception {
-        byte[] buffer = new byte[1];
-        buffer[0] = (byte) 0x92;
-        download(buffer);
+    // DfuSe page erase, erases the whole sector containing the address
+    private void eraseSectorCommand(int Address) throws Exception {
+        command[0] = 0x41;
+        putAddress(Address);
+        download(command, 5);
     }
 
-    private void setAddressPointer(int Address) throws Exception {
-        byte[] buffer = new byte[5];
-        buffer[0] = 0x21;
-        buffer[1] = (byte) (Address & 0xFF);
-        buffer[2] = (byte) ((Address >> 8) & 0xFF);
-        buffer[3] = (byte) ((Address >> 16) & 0xFF);
-        buffer[4] = (byte) ((Address >> 24) & 0xFF);
-        download(buffer);
+    private void unProtectCommand() throws Exception {
+        command[0] = (byte) 0x92;
+        download(command, 1);
     }
 
-    private void leaveDfu() throws Exception {
-        download(null);
+    private void setAddressPointer(int Address) throws Exception {
+        command[0] = 0x21;
+        putAddress(Address);
+        download(command, 5);
     }
 
-    private void getStatus(DfuStatus status) throws Exception {
-        byte[] buffer = new byte[6];
-        int length = usb.controlTransfer(DFU_RequestType | USB_DIR_IN, DFU_GETSTATUS, 0, 0, buffer, 6, 500);
-
-        if (length < 0) {
-            throw new Exception("USB Failed during getStatus");
-        }
-        status.bStatus = buffer[0]; // state during request
-        status.bState = buffer[4]; // state after request
-        status.bwPollTimeout = (buffer[3] & 0xFF) << 16;
-        status.bwPollTimeout |= (buffer[2] & 0xFF) << 8;
-        status.bwPollTimeout |= (buffer[1] & 0xFF);
+    // little endian address argument of a DfuSe command
+    private void putAddress(int Address) {
+        command[1] = (byte) (Address & 0xFF);
+        command[2] = (byte) ((Address >> 8) & 0xFF);
+        command[3] = (byte) ((Address >> 16) & 0xFF);
+        command[4] = (byte) ((Address >> 24) & 0xFF);
     }
 
-    private void clearStatus() throws Exception {
-        int length = usb.controlTransfer(DFU_RequestType, DFU_CLRSTATUS, 0, 0, null, 0, 0);
-        if (length < 0) {
-            throw new Exception("USB Failed during clearStatus");
-        }
+    private void leaveDfu() throws Exception {
+        download(null, 0);
     }
 
     // use for commands
-    private void download(byte[] data) throws Exception {
-        int len = usb.controlTransfer(DFU_RequestType, DFU_DNLOAD, 0, 0, data, data.length, 50);
+    private void download(byte[] data, int length) throws Exception {
+        int len = transport.controlTransfer(DFU_RequestType, DFU_DNLOAD, 0, 0, data, length, 50);
+        stateMachine.requestSent(DFU_DNLOAD, len >= 0);
         if (len < 0) {
             throw new Exception("USB Failed during command download");
         }
     }
 
     // use for firmware download
-    private void download(byte[] data, int nBlock) throws Exception {
-        int len = usb.controlTransfer(DFU_RequestType, DFU_DNLOAD, nBlock, 0, data, data.length, 0);
+    private void downloadBlock(byte[] data, int nBlock) throws Exception {
+        int len = transport.controlTransfer(DFU_RequestType, DFU_DNLOAD, nBlock, 0, data, data.length, 0);
+        stateMachine.requestSent(DFU_DNLOAD, len >= 0);
         if (len < 0) {
             throw new Exception("USB failed during firmware download");
         }
     }
 
-    private void upload(byte[] data, int length, int blockNum) throws Exception {
-        int len = usb.controlTransfer(DFU_RequestType | USB_DIR_IN, DFU_UPLOAD, blockNum, 0, data, length, 100);
+    private void upload(byte[] data, int offset, int length, int blockNum) throws Exception {
+        int len = transport.controlTransfer(DFU_RequestType | USB_DIR_IN, DFU_UPLOAD, blockNum, 0, data, offset, length, 100);
+        stateMachine.requestSent(DFU_UPLOAD, len >= 0);
         if (len < 0) {
             throw new Exception("USB comm failed during upload");
         }
     }
 
-    private static int calculateCRC(byte[] FileData) {
-        int crc = -1;
-        for (int i = 0; i < FileData.length - 4; i++) {
-            crc = CRC_TABLE[(crc ^ FileData[i]) & 0xff] ^ (crc >>> 8);
-        }
-        return crc;
-    }
-
-    // stores the result of a GetStatus DFU request
-    private class DfuStatus {
-        byte bStatus;       // state during request
-        int bwPollTimeout;  // minimum time in ms before next getStatus call should be made
-        byte bState;        // state after request
-    }
-
-    // holds all essential information for the Dfu File
-    private class DfuFile {
-        String filePath;
-        byte[] file;
-        int PID;
-        int VID;
-        int BootVersion;
-        int maxBlockSize = 1024;
-
-        int elementStartAddress;
-        int elementLength;
-
-        String TargetName;
-        int TargetSize;
-        int NumElements;
-    }
-
-    private final static int[] CRC_TABLE = {
-            0x00000000, 0x77073096, 0xee0e612c, 0x990951ba, 0x076dc419, 0x706af48f,
-            0xe963a535, 0x9e6495a3, 0x0edb8832, 0x79dcb8a4, 0xe0d5e91e, 0x97d2d988,
-            0x09b64c2b, 0x7eb17cbd, 0xe7b82d07, 0x90bf1d91, 0x1db71064, 0x6ab020f2,
-            0xf3b97148, 0x84be41de, 0x1adad47d, 0x6ddde4eb, 0xf4d4b551, 0x83d385c7,
-            0x136c9856, 0x646ba8c0, 0xfd62f97a, 0x8a65c9ec, 0x14015c4f, 0x63066cd9,
-            0xfa0f3d63, 0x8d080df5, 0x3b6e20c8, 0x4c69105e, 0xd56041e4, 0xa2677172,
-            0x3c03e4d1, 0x4b04d447, 0xd20d85fd, 0xa50ab56b, 0x35b5a8fa, 0x42b2986c,
-            0xdbbbc9d6, 0xacbcf940, 0x32d86ce3, 0x45df5c75, 0xdcd60dcf, 0xabd13d59,
-            0x26d930ac, 0x51de003a, 0xc8d75180, 0xbfd06116, 0x21b4f4b5, 0x56b3c423,
-            0xcfba9599, 0xb8bda50f, 0x2802b89e, 0x5f058808, 0xc60cd9b2, 0xb10be924,
-            0x2f6f7c87, 0x58684c11, 0xc1611dab, 0xb6662d3d, 0x76dc4190, 0x01db7106,
-            0x98d220bc, 0xefd5102a, 0x71b18589, 0x06b6b51f, 0x9fbfe4a5, 0xe8b8d433,
-            0x7807c9a2, 0x0f00f934, 0x9609a88e, 0xe10e9818, 0x7f6a0dbb, 0x086d3d2d,
-            0x91646c97, 0xe6635c01, 0x6b6b51f4, 0x1c6c6162, 0x856530d8, 0xf262004e,
-            0x6c0695ed, 0x1b01a57b, 0x8208f4c1, 0xf50fc457, 0x65b0d9c6, 0x12b7e950,
-            0x8bbeb8ea, 0xfcb9887c, 0x62dd1ddf, 0x15da2d49, 0x8cd37cf3, 0xfbd44c65,
-            0x4db26158, 0x3ab551ce, 0xa3bc0074, 0xd4bb30e2, 0x4adfa541, 0x3dd895d7,
-            0xa4d1c46d, 0xd3d6f4fb, 0x4369e96a, 0x346ed9fc, 0xad678846, 0xda60b8d0,
-            0x44042d73, 0x33031de5, 0xaa0a4c5f, 0xdd0d7cc9, 0x5005713c, 0x270241aa,
-            0xbe0b1010, 0xc90c2086, 0x5768b525, 0x206f85b3, 0xb966d409, 0xce61e49f,
-            0x5edef90e, 0x29d9c998, 0xb0d09822, 0xc7d7a8b4, 0x59b33d17, 0x2eb40d81,
-            0xb7bd5c3b, 0xc0ba6cad, 0xedb88320, 0x9abfb3b6, 0x03b6e20c, 0x74b1d29a,
-            0xead54739, 0x9dd277af, 0x04db2615, 0x73dc1683, 0xe3630b12, 0x94643b84,
-            0x0d6d6a3e, 0x7a6a5aa8, 0xe40ecf0b, 0x9309ff9d, 0x0a00ae27, 0x7d079eb1,
-            0xf00f9344, 0x8708a3d2, 0x1e01f268, 0x6906c2fe, 0xf762575d, 0x806567cb,
-            0x196c3671, 0x6e6b06e7, 0xfed41b76, 0x89d32be0, 0x10da7a5a, 0x67dd4acc,
-            0xf9b9df6f, 0x8ebeeff9, 0x17b7be43, 0x60b08ed5, 0xd6d6a3e8, 0xa1d1937e,
-            0x38d8c2c4, 0x4fdff252, 0xd1bb67f1, 0xa6bc5767, 0x3fb506dd, 0x48b2364b,
-            0xd80d2bda, 0xaf0a1b4c, 0x36034af6, 0x41047a60, 0xdf60efc3, 0xa867df55,
-            0x316e8eef, 0x4669be79, 0xcb61b38c, 0xbc66831a, 0x256fd2a0, 0x5268e236,
-            0xcc0c7795, 0xbb0b4703, 0x220216b9, 0x5505262f, 0xc5ba3bbe, 0xb2bd0b28,
-            0x2bb45a92, 0x5cb36a04, 0xc2d7ffa7, 0xb5d0cf31, 0x2cd99e8b, 0x5bdeae1d,
-            0x9b64c2b0, 0xec63f226, 0x756aa39c, 0x026d930a, 0x9c0906a9, 0xeb0e363f,
-            0x72076785, 0x05005713, 0x95bf4a82, 0xe2b87a14, 0x7bb12bae, 0x0cb61b38,
-            0x92d28e9b, 0xe5d5be0d, 0x7cdcefb7, 0x0bdbdf21, 0x86d3d2d4, 0xf1d4e242,
-            0x68ddb3f8, 0x1fda836e, 0x81be16cd, 0xf6b9265b, 0x6fb077e1, 0x18b74777,
-            0x88085ae6, 0xff0f6a70, 0x66063bca, 0x11010b5c, 0x8f659eff, 0xf862ae69,
-            0x616bffd3, 0x166ccf45, 0xa00ae278, 0xd70dd2ee, 0x4e048354, 0x3903b3c2,
-            0xa7672661, 0xd06016f7, 0x4969474d, 0x3e6e77db, 0xaed16a4a, 0xd9d65adc,
-            0x40df0b66, 0x37d83bf0, 0xa9bcae53, 0xdebb9ec5, 0x47b2cf7f, 0x30b5ffe9,
-            0xbdbdf21c, 0xcabac28a, 0x53b39330, 0x24b4a3a6, 0xbad03605, 0xcdd70693,
-            0x54de5729, 0x23d967bf, 0xb3667a2e, 0xc4614ab8, 0x5d681b02, 0x2a6f2b94,
-            0xb40bbe37, 0xc30c8ea1, 0x5a05df1b, 0x2d02ef8d
-    };
+    // receives the blocks uploaded by readBlocks()
+    private interface BlockReader {
+        // return false to stop reading
+        boolean onBlock(int address, byte[] block, int length) throws Exception;
+    }
 }
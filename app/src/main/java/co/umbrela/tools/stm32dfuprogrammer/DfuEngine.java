@@ -0,0 +1,134 @@
+/*
+ * Copyright 2015 Umbrela Smart, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package co.umbrela.tools.stm32dfuprogrammer;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the operations of a Dfu one after the other on a dedicated worker thread, so USB work
+ * never blocks the UI thread. Operations are queued in the order they were submitted.
+ * Cancelling a future interrupts the worker, the Dfu checks for that between blocks and
+ * sectors and stops with an InterruptedException.
+ */
+public class DfuEngine {
+    private static final String TAG = "DfuEngine";
+
+    public interface Task {
+        void run(Dfu dfu) throws Exception;
+    }
+
+    private final Dfu dfu;
+    private final ExecutorService worker;
+    private final List<Future<?>> pending = new ArrayList<>();
+
+    public DfuEngine(Dfu dfu) {
+        if (dfu == null) throw new IllegalArgumentException("Dfu is null");
+        this.dfu = dfu;
+        this.worker = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, TAG);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    // queues the task behind the ones submitted before
+    public Future<Void> submit(final String name, final Task task) {
+        Operation operation = new Operation(name, new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                long startTime = System.currentTimeMillis();
+                try {
+                    task.run(dfu);
+                } catch (InterruptedException e) {
+                    Log.i(TAG, name + " cancelled");
+                    throw e;
+                }
+                Log.i(TAG, name + " finished in " + (System.currentTimeMillis() - startTime) + " ms");
+                return null;
+            }
+        });
+        synchronized (pending) {
+            pending.add(operation);
+        }
+        worker.execute(operation);
+        return operation;
+    }
+
+    // true while an operation runs or is queued
+    public boolean isBusy() {
+        synchronized (pending) {
+            return !pending.isEmpty();
+        }
+    }
+
+    // cancels the queued operations and interrupts the running one
+    public void cancelAll() {
+        List<Future<?>> operations;
+        synchronized (pending) {
+            operations = new ArrayList<>(pending);
+        }
+        for (Future<?> operation : operations) {
+            operation.cancel(true);
+        }
+    }
+
+    // runs the queued operations, then ends the worker thread, nothing can be submitted after that
+    public void close() {
+        worker.shutdown();
+    }
+
+    // cancels everything and waits up to timeout ms for the running operation to stop
+    public boolean shutdown(long timeout) throws InterruptedException {
+        cancelAll();
+        worker.shutdown();
+        return worker.awaitTermination(timeout, TimeUnit.MILLISECONDS);
+    }
+
+    private class Operation extends FutureTask<Void> {
+        private final String name;
+
+        Operation(String name, Callable<Void> callable) {
+            super(callable);
+            this.name = name;
+        }
+
+        @Override
+        protected void done() {
+            synchronized (pending) {
+                pending.remove(this);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+}
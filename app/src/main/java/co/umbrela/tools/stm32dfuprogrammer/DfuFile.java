@@ -0,0 +1,304 @@
+/*
+ * Copyright 2015 Umbrela Smart, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package co.umbrela.tools.stm32dfuprogrammer;
+
+import android.nfc.FormatException;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Holds all essential information of a DfuSe file, with all of its targets and elements.
+ * The file is memory mapped and parsed in a single pass, the CRC is computed while the
+ * headers are parsed. Element data is handed out as read-only slices of the mapping,
+ * so the image is never copied onto the heap.
+ * Refer to ST document UM0391 for more details on DfuSe format
+ */
+public class DfuFile {
+    private static final String TAG = "DfuFile";
+
+    public final static int PREFIX_SIZE = 11;
+    public final static int TARGET_PREFIX_SIZE = 274;
+    public final static int TARGET_NAME_SIZE = 255;
+    public final static int ELEMENT_HEADER_SIZE = 8;
+    public final static int SUFFIX_SIZE = 16;
+
+    public static class Element {
+        public final int address;
+        public final int length;
+        private final ByteBuffer data;
+
+        Element(int address, ByteBuffer data) {
+            this.address = address;
+            this.length = data.remaining();
+            this.data = data;
+        }
+
+        // returns an independent read-only view of the element data
+        public ByteBuffer getData() {
+            return data.duplicate();
+        }
+    }
+
+    public static class Target {
+        public final int alternateSetting;  // selects the memory, 0 is the Internal Flash
+        public final String name;
+        public final List<Element> elements;
+
+        Target(int alternateSetting, String name, List<Element> elements) {
+            this.alternateSetting = alternateSetting;
+            this.name = name;
+            this.elements = Collections.unmodifiableList(elements);
+        }
+    }
+
+    String filePath;
+    ByteBuffer file;    // read-only, little endian view of the whole file
+    int fileSize;
+    int crc;
+    int PID = -1;       // PID, VID and BootVersion are -1 for images without DFU suffix
+    int VID = -1;
+    int BootVersion = -1;
+
+    List<Target> targets;
+    String TargetName;  // name of the first target
+    int NumElements;    // elements of all targets
+
+    private DfuFile() {
+    }
+
+    public static DfuFile open(File myFile) throws Exception {
+        return parse(myFile.toString(), map(myFile));
+    }
+
+    // wraps plain elements, ie. from a hex, bin or elf file, that come without DfuSe headers
+    static DfuFile fromElements(String filePath, ByteBuffer file, int fileSize, List<Element> elements) {
+        DfuFile dfuFile = new DfuFile();
+        dfuFile.filePath = filePath;
+        dfuFile.file = file;
+        dfuFile.fileSize = fileSize;
+        dfuFile.TargetName = new File(filePath).getName();
+        dfuFile.NumElements = elements.size();
+        dfuFile.targets = Collections.singletonList(new Target(0, dfuFile.TargetName, elements));
+        return dfuFile;
+    }
+
+    // image with the metadata parsed before, ie. read from the ImageStore
+    static DfuFile restore(String filePath, ByteBuffer file, int fileSize, int crc, int pid, int vid,
+                           int bootVersion, List<Target> targets) {
+        DfuFile dfuFile = new DfuFile();
+        dfuFile.filePath = filePath;
+        dfuFile.file = file;
+        dfuFile.fileSize = fileSize;
+        dfuFile.crc = crc;
+        dfuFile.PID = pid;
+        dfuFile.VID = vid;
+        dfuFile.BootVersion = bootVersion;
+        dfuFile.targets = Collections.unmodifiableList(targets);
+        dfuFile.TargetName = targets.isEmpty() ? new File(filePath).getName() : targets.get(0).name;
+        for (Target target : targets) {
+            dfuFile.NumElements += target.elements.size();
+        }
+        return dfuFile;
+    }
+
+    static ByteBuffer map(File myFile) throws Exception {
+
+        if (!myFile.exists()) {
+            throw new FileNotFoundException("Cannot find: " + myFile.toString());
+        }
+        if (!myFile.canRead()) {
+            throw new FormatException("Cannot open: " + myFile.toString());
+        }
+
+        RandomAccessFile raf = new RandomAccessFile(myFile, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new FormatException("File is too large: " + myFile.toString());
+            }
+            // the mapping stays valid after the channel is closed
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()).asReadOnlyBuffer().order(ByteOrder.LITTLE_ENDIAN);
+        } catch (IOException e) {
+            throw new IOException("Could Not Read File", e);
+        } finally {
+            raf.close();
+        }
+    }
+
+    // false for images that were not read from a .dfu file
+    public boolean hasSuffix() {
+        return VID >= 0;
+    }
+
+    public static DfuFile parse(String filePath, ByteBuffer buffer) throws FormatException {
+
+        DfuFile dfuFile = new DfuFile();
+        ByteBuffer file = buffer.slice().asReadOnlyBuffer().order(ByteOrder.LITTLE_ENDIAN);
+        int length = file.remaining();
+
+        dfuFile.filePath = filePath;
+        dfuFile.file = file;
+        dfuFile.fileSize = length;
+
+        if (length < PREFIX_SIZE + SUFFIX_SIZE) {
+            throw new FormatException("File is too small");
+        }
+
+        // Check the prefix
+        String prefix = getString(file, 0, 5);
+        if (prefix.compareTo("DfuSe") != 0) {
+            throw new FormatException("File signature error");
+        }
+
+        // check dfuSe Version
+        if (file.get(5) != 1) {
+            throw new FormatException("DFU file version must be 1");
+        }
+        int numTargets = file.get(10) & 0xFF;
+        int crc = updateCRC(-1, file, 0, PREFIX_SIZE);
+
+        int offset = PREFIX_SIZE;
+        int imageEnd = length - SUFFIX_SIZE;
+        List<Target> targets = new ArrayList<>();
+
+        for (int t = 0; t < numTargets; t++) {
+
+            if (offset + TARGET_PREFIX_SIZE > imageEnd) {
+                throw new FormatException("Target " + t + " exceeds file");
+            }
+            String target = getString(file, offset, 6);
+            if (target.compareTo("Target") != 0) {
+                throw new FormatException("Target signature error");
+            }
+            int alternateSetting = file.get(offset + 6) & 0xFF;
+
+            String targetName;
+            int targetNameStart = offset + 11;
+            if (0 != file.get(targetNameStart)) {
+                String tempName = getString(file, targetNameStart, TARGET_NAME_SIZE);
+                int foundNullAt = tempName.indexOf(0);
+                targetName = foundNullAt < 0 ? tempName : tempName.substring(0, foundNullAt);
+            } else {
+                throw new FormatException("No Target Name Exist in File");
+            }
+            int targetSize = file.getInt(targetNameStart + TARGET_NAME_SIZE);
+            int numElements = file.getInt(targetNameStart + TARGET_NAME_SIZE + 4);
+            Log.i(TAG, "Firmware Target " + alternateSetting + " Name: " + targetName +
+                    " Size: " + targetSize + " Num of Elements: " + numElements);
+
+            crc = updateCRC(crc, file, offset, TARGET_PREFIX_SIZE);
+            offset += TARGET_PREFIX_SIZE;
+            int targetStart = offset;
+
+            List<Element> elements = new ArrayList<>();
+            for (int e = 0; e < numElements; e++) {
+                if (offset + ELEMENT_HEADER_SIZE > imageEnd) {
+                    throw new FormatException("Element " + e + " of target " + targetName + " exceeds file");
+                }
+                // Get Element Flash start address and size
+                int elementAddress = file.getInt(offset);
+                int elementLength = file.getInt(offset + 4);
+                if (elementLength < 0 || elementLength > imageEnd - offset - ELEMENT_HEADER_SIZE) {
+                    throw new FormatException("Element Size exceeds file");
+                }
+                crc = updateCRC(crc, file, offset, ELEMENT_HEADER_SIZE + elementLength);
+                elements.add(new Element(elementAddress, slice(file, offset + ELEMENT_HEADER_SIZE, elementLength)));
+                offset += ELEMENT_HEADER_SIZE + elementLength;
+            }
+            if (offset - targetStart != targetSize) {
+                throw new FormatException("Target Size does not match its elements");
+            }
+            targets.add(new Target(alternateSetting, targetName, elements));
+            dfuFile.NumElements += numElements;
+        }
+
+        if (targets.isEmpty()) {
+            throw new FormatException("No Target in File");
+        }
+        if (offset != imageEnd) {
+            throw new FormatException("Image Size does not match its targets");
+        }
+        dfuFile.targets = Collections.unmodifiableList(targets);
+        dfuFile.TargetName = targets.get(0).name;
+
+        // Check the suffix
+        String suffix = getString(file, length - 8, 3);
+        if (suffix.compareTo("UFD") != 0) {
+            throw new FormatException("File suffix error");
+        }
+        if ((file.get(length - 5) != 16) || (file.get(length - 10) != 0x1A) || (file.get(length - 9) != 0x01)) {
+            throw new FormatException("File number error");
+        }
+
+        crc = updateCRC(crc, file, imageEnd, SUFFIX_SIZE - 4);
+
+        // do crc check
+        dfuFile.crc = file.getInt(length - 4);
+        if (dfuFile.crc != crc) {
+            throw new FormatException("CRC Failed");
+        }
+
+        // Get VID, PID and version number
+        dfuFile.VID = file.getShort(length - 12) & 0xFFFF;
+        dfuFile.PID = file.getShort(length - 14) & 0xFFFF;
+        dfuFile.BootVersion = file.getShort(length - 16) & 0xFFFF;
+
+        return dfuFile;
+    }
+
+    // elements of all targets for the given memory
+    public List<Element> getElements(int alternateSetting) {
+        List<Element> elements = new ArrayList<>();
+        for (Target target : targets) {
+            if (target.alternateSetting == alternateSetting) {
+                elements.addAll(target.elements);
+            }
+        }
+        return elements;
+    }
+
+    static ByteBuffer slice(ByteBuffer buffer, int offset, int length) {
+        ByteBuffer view = buffer.duplicate();
+        view.limit(offset + length);
+        view.position(offset);
+        return view.slice();
+    }
+
+    private static String getString(ByteBuffer buffer, int offset, int length) {
+        byte[] bytes = new byte[length];
+        ByteBuffer view = buffer.duplicate();
+        view.position(offset);
+        view.get(bytes);
+        return new String(bytes, Charset.forName("US-ASCII"));
+    }
+
+    // continues a DfuSe CRC over length bytes from offset, starts with -1
+    static int updateCRC(int crc, ByteBuffer buffer, int offset, int length) {
+        return CrcEngine.getDefault().update(crc, slice(buffer, offset, length));
+    }
+}
@@ -0,0 +1,386 @@
+/*
+ * Copyright 2015 Umbrela Smart, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package co.umbrela.tools.stm32dfuprogrammer;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Moves the device between DFU states with GETSTATUS and CLRSTATUS requests.
+ * Waits at least the bwPollTimeout reported by the device before polling a busy device again,
+ * backs off while the state does not change and gives up after a bounded number of polls,
+ * so a misbehaving device fails the operation instead of hanging it.
+ * The state the device was last seen in is remembered, so requests that are valid in that
+ * state are sent without asking the device again, and dfuIDLE is reached with a single ABORT
+ * where the DFU spec allows it. The USB transactions of every transition are counted.
+ */
+public class DfuStateMachine {
+    private static final String TAG = "DfuStateMachine";
+    private final static int USB_DIR_IN = 128;       //0x80
+    private final static int DFU_RequestType = 0x21;  // '2' => Class request ; '1' => to interface
+
+    final static int STATE_UNKNOWN = -1;
+    final static int STATE_IDLE = 0x00;
+    final static int STATE_DETACH = 0x01;
+    final static int STATE_DFU_IDLE = 0x02;
+    final static int STATE_DFU_DOWNLOAD_SYNC = 0x03;
+    final static int STATE_DFU_DOWNLOAD_BUSY = 0x04;
+    final static int STATE_DFU_DOWNLOAD_IDLE = 0x05;
+    final static int STATE_DFU_MANIFEST_SYNC = 0x06;
+    final static int STATE_DFU_MANIFEST = 0x07;
+    final static int STATE_DFU_MANIFEST_WAIT_RESET = 0x08;
+    final static int STATE_DFU_UPLOAD_IDLE = 0x09;
+    final static int STATE_DFU_ERROR = 0x0A;
+    final static int STATE_DFU_UPLOAD_SYNC = 0x91;
+    final static int STATE_DFU_UPLOAD_BUSY = 0x92;
+
+    final static int DFU_DETACH = 0x00;
+    final static int DFU_DNLOAD = 0x01;
+    final static int DFU_UPLOAD = 0x02;
+    private final static int DFU_GETSTATUS = 0x03;
+    private final static int DFU_CLRSTATUS = 0x04;
+    private final static int DFU_GETSTATE = 0x05;
+    private final static int DFU_ABORT = 0x06;
+
+    // stores the result of a GetStatus DFU request
+    static class DfuStatus {
+        byte bStatus;       // state during request
+        int bwPollTimeout;  // minimum time in ms before next getStatus call should be made
+        byte bState;        // state after request
+
+        int getState() {
+            return bState & 0xFF;
+        }
+    }
+
+    // USB transactions needed by one kind of transition
+    public static class Transition {
+        public final String name;
+        private int count;
+        private long transactions;
+        private int maxTransactions;
+        private long waitTime;
+
+        private Transition(String name) {
+            this.name = name;
+        }
+
+        private Transition(Transition other) {
+            this(other.name);
+            count = other.count;
+            transactions = other.transactions;
+            maxTransactions = other.maxTransactions;
+            waitTime = other.waitTime;
+        }
+
+        public int getCount() {
+            return count;
+        }
+
+        public long getTransactions() {
+            return transactions;
+        }
+
+        public int getMaxTransactions() {
+            return maxTransactions;
+        }
+
+        // time spent sleeping between polls
+        public long getWaitTime() {
+            return waitTime;
+        }
+
+        @Override
+        public String toString() {
+            return name + ": " + count + "x, " + transactions + " transactions (max " + maxTransactions +
+                    "), waited " + waitTime + " ms";
+        }
+    }
+
+    private DfuTransport transport;
+    private int maxSpins = 100;             // polls without a state change before giving up
+    private long timeout = 60000;           // mass erase of a large device takes several seconds
+    private int backoff = 1;                // ms, doubled while the state does not change
+    private int maxBackoff = 100;
+    private final Map<String, Transition> transitions = new LinkedHashMap<>();
+    private int knownState = STATE_UNKNOWN;    // state after the last request, as far as we know
+    private long transactions;              // all DFU requests sent
+    // reused by every request, a returned DfuStatus is valid until the next one
+    private final DfuStatus status = new DfuStatus();
+    private final byte[] buffer = new byte[6];
+
+    void setTransport(DfuTransport transport) {
+        this.transport = transport;
+        this.knownState = STATE_UNKNOWN;
+    }
+
+    // total number of DFU requests sent on the control pipe, including DNLOAD and UPLOAD
+    public synchronized long getTransactionCount() {
+        return transactions;
+    }
+
+    private synchronized void countTransaction() {
+        transactions++;
+    }
+
+    // called for every DNLOAD, UPLOAD or DETACH sent outside of the state machine
+    void requestSent(int request, boolean success) {
+        countTransaction();
+        if (!success) {
+            knownState = STATE_UNKNOWN;
+        } else if (request == DFU_DNLOAD) {
+            knownState = STATE_DFU_DOWNLOAD_SYNC;
+        } else if (request == DFU_UPLOAD) {
+            knownState = STATE_DFU_UPLOAD_IDLE;     // full blocks are requested, a short one would end in dfuIDLE
+        } else {
+            knownState = STATE_UNKNOWN;
+        }
+    }
+
+    // maxSpins polls without progress or timeout ms in total fail the transition
+    public void setLimits(int maxSpins, long timeout) {
+        if (maxSpins <= 0 || timeout <= 0) throw new IllegalArgumentException("Limits must be positive");
+        this.maxSpins = maxSpins;
+        this.timeout = timeout;
+    }
+
+    // delay between polls that did not change the state, doubled up to maxBackoff
+    public void setBackoff(int backoff, int maxBackoff) {
+        if (backoff < 0 || maxBackoff < backoff) throw new IllegalArgumentException("Invalid backoff");
+        this.backoff = backoff;
+        this.maxBackoff = maxBackoff;
+    }
+
+    public synchronized List<Transition> getTransitions() {
+        List<Transition> copy = new ArrayList<>();
+        for (Transition transition : transitions.values()) {
+            copy.add(new Transition(transition));
+        }
+        return copy;
+    }
+
+    public synchronized void resetTransitions() {
+        transitions.clear();
+    }
+
+    // single GETSTATUS, not recorded for a transition
+    DfuStatus getStatus() throws Exception {
+        getStatus(status);
+        return status;
+    }
+
+    // waits until the device leaves the busy state of the request sent before,
+    // returns the state it settled in, ie. dfuDNLOAD-IDLE or dfuERROR
+    DfuStatus execute(String name) throws Exception {
+        return run(name, false);
+    }
+
+    // brings the device to a state that accepts the next DNLOAD, dfuDNLOAD-IDLE is left as is
+    void toDownload(String name) throws Exception {
+        if (knownState == STATE_DFU_DOWNLOAD_IDLE) {
+            record(name, 0, 0);
+            return;
+        }
+        toIdle(name);
+    }
+
+    // brings the device back to dfuIDLE from any state
+    void toIdle(String name) throws Exception {
+        int sent = 0;
+        if (knownState == STATE_UNKNOWN) {
+            try {
+                getState();             // one byte answer, does not start anything
+            } catch (Exception e) {
+                knownState = STATE_UNKNOWN;     // not answered while busy, polling finds out
+            }
+            sent++;
+        }
+        if (knownState == STATE_DFU_IDLE) {
+            record(name, sent, 0);
+            return;
+        }
+        if (knownState == STATE_DFU_DOWNLOAD_IDLE || knownState == STATE_DFU_UPLOAD_IDLE) {
+            // the spec allows ABORT in both, it is one request instead of clearing the error it causes
+            try {
+                abort();
+                getState();
+            } catch (Exception e) {
+                knownState = STATE_UNKNOWN;
+            }
+            sent += 2;
+            if (knownState == STATE_DFU_IDLE) {
+                record(name, sent, 0);
+                return;
+            }
+        }
+        run(name, true);
+    }
+
+    private DfuStatus run(String name, boolean toIdle) throws Exception {
+        try {
+            return poll(name, toIdle);
+        } catch (Exception e) {
+            knownState = STATE_UNKNOWN;
+            throw e;
+        }
+    }
+
+    private DfuStatus poll(String name, boolean toIdle) throws Exception {
+
+        long startTime = System.currentTimeMillis();
+        long waited = 0;
+        int transactions = 1;
+        int spins = 0;
+        int delay = 0;
+
+        getStatus(status);
+        int lastState = status.getState();
+
+        while (isBusy(lastState) || (toIdle && lastState != STATE_DFU_IDLE)) {
+            if (spins >= maxSpins || System.currentTimeMillis() - startTime > timeout) {
+                record(name, transactions, waited);
+                throw new Exception("Device stuck in state " + stateName(lastState) + " during " + name +
+                        " after " + transactions + " transactions");
+            }
+            // a busy device must not be polled before bwPollTimeout has elapsed
+            int sleep = isBusy(lastState) ? Math.max(status.bwPollTimeout, delay) : delay;
+            if (sleep > 0) {
+                Thread.sleep(sleep);
+                waited += sleep;
+            }
+            if (!isBusy(lastState)) {
+                clearStatus();
+                transactions++;
+            }
+            getStatus(status);
+            transactions++;
+
+            if (status.getState() == lastState) {
+                spins++;
+                delay = delay == 0 ? backoff : Math.min(delay * 2, maxBackoff);
+            } else {
+                spins = 0;
+                delay = 0;
+                lastState = status.getState();
+            }
+        }
+        record(name, transactions, waited);
+        return status;
+    }
+
+    private synchronized void record(String name, int transactions, long waited) {
+        Transition transition = transitions.get(name);
+        if (transition == null) {
+            transition = new Transition(name);
+            transitions.put(name, transition);
+        }
+        transition.count++;
+        transition.transactions += transactions;
+        transition.maxTransactions = Math.max(transition.maxTransactions, transactions);
+        transition.waitTime += waited;
+    }
+
+    // states in which the device works on the last request and only answers GETSTATUS
+    private static boolean isBusy(int state) {
+        return state == STATE_DFU_DOWNLOAD_BUSY || state == STATE_DFU_DOWNLOAD_SYNC ||
+                state == STATE_DFU_MANIFEST || state == STATE_DFU_MANIFEST_SYNC ||
+                state == STATE_DFU_UPLOAD_BUSY || state == STATE_DFU_UPLOAD_SYNC;
+    }
+
+    static String stateName(int state) {
+        switch (state) {
+            case STATE_IDLE:
+                return "appIDLE";
+            case STATE_DETACH:
+                return "appDETACH";
+            case STATE_DFU_IDLE:
+                return "dfuIDLE";
+            case STATE_DFU_DOWNLOAD_SYNC:
+                return "dfuDNLOAD-SYNC";
+            case STATE_DFU_DOWNLOAD_BUSY:
+                return "dfuDNBUSY";
+            case STATE_DFU_DOWNLOAD_IDLE:
+                return "dfuDNLOAD-IDLE";
+            case STATE_DFU_MANIFEST_SYNC:
+                return "dfuMANIFEST-SYNC";
+            case STATE_DFU_MANIFEST:
+                return "dfuMANIFEST";
+            case STATE_DFU_MANIFEST_WAIT_RESET:
+                return "dfuMANIFEST-WAIT-RESET";
+            case STATE_DFU_UPLOAD_IDLE:
+                return "dfuUPLOAD-IDLE";
+            case STATE_DFU_ERROR:
+                return "dfuERROR";
+            case STATE_DFU_UPLOAD_SYNC:
+                return "dfuUPLOAD-SYNC";
+            case STATE_DFU_UPLOAD_BUSY:
+                return "dfuUPLOAD-BUSY";
+            default:
+                return "0x" + Integer.toHexString(state);
+        }
+    }
+
+    private void getStatus(DfuStatus status) throws Exception {
+        countTransaction();
+        int length = transport.controlTransfer(DFU_RequestType | USB_DIR_IN, DFU_GETSTATUS, 0, 0, buffer, 6, 500);
+
+        if (length < 0) {
+            throw new Exception("USB Failed during getStatus");
+        }
+        status.bStatus = buffer[0]; // state during request
+        status.bState = buffer[4]; // state after request
+        status.bwPollTimeout = (buffer[3] & 0xFF) << 16;
+        status.bwPollTimeout |= (buffer[2] & 0xFF) << 8;
+        status.bwPollTimeout |= (buffer[1] & 0xFF);
+        knownState = status.getState();
+        if (status.bStatus != 0) {
+            Log.d(TAG, "bStatus 0x" + Integer.toHexString(status.bStatus & 0xFF) + " in " + stateName(status.getState()));
+        }
+    }
+
+    private void clearStatus() throws Exception {
+        knownState = STATE_UNKNOWN;
+        countTransaction();
+        int length = transport.controlTransfer(DFU_RequestType, DFU_CLRSTATUS, 0, 0, null, 0, 0);
+        if (length < 0) {
+            throw new Exception("USB Failed during clearStatus");
+        }
+    }
+
+    private void getState() throws Exception {
+        knownState = STATE_UNKNOWN;
+        countTransaction();
+        int length = transport.controlTransfer(DFU_RequestType | USB_DIR_IN, DFU_GETSTATE, 0, 0, buffer, 1, 500);
+        if (length < 1) {
+            throw new Exception("USB Failed during getState");
+        }
+        knownState = buffer[0] & 0xFF;
+    }
+
+    private void abort() throws Exception {
+        knownState = STATE_UNKNOWN;
+        countTransaction();
+        int length = transport.controlTransfer(DFU_RequestType, DFU_ABORT, 0, 0, null, 0, 0);
+        if (length < 0) {
+            throw new Exception("USB Failed during abort");
+        }
+    }
+}
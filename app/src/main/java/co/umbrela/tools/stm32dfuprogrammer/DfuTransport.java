@@ -0,0 +1,40 @@
+/*
+ * Copyright 2015 Umbrela Smart, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package co.umbrela.tools.stm32dfuprogrammer;
+
+/**
+ * Control pipe of a device in DFU mode. Implemented by Usb for a real device and by
+ * SimulatedDfuDevice, so the protocol code runs and can be measured without one.
+ */
+public interface DfuTransport {
+
+    boolean isConnected();
+
+    // bcdDevice of the device descriptor, the bootloader version
+    int getDeviceVersion();
+
+    // same contract as UsbDeviceConnection.controlTransfer, negative for failure or a stalled request
+    int controlTransfer(int requestType, int request, int value, int index, byte[] buffer, int length, int timeout);
+
+    // data stage from or into buffer starting at offset
+    int controlTransfer(int requestType, int request, int value, int index, byte[] buffer, int offset, int length, int timeout);
+
+    boolean release();
+
+    // latencies of the control transfers since the last reset
+    TransferStats getTransferStats();
+}
@@ -0,0 +1,406 @@
+/*
+ * Copyright 2015 Umbrela Smart, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package co.umbrela.tools.stm32dfuprogrammer;
+
+import android.nfc.FormatException;
+import android.os.FileObserver;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Firmware files of a directory, indexed by target name, VID/PID and element address, so the
+ * image for a device is found without opening every file. Only the DfuSe prefix, the target
+ * prefixes, the element headers and the suffix of a .dfu file are read, never the payload.
+ * The directory is scanned once and then watched, new files are indexed on a background
+ * thread once they are completely written.
+ */
+public class FirmwareCatalog {
+    private static final String TAG = "FirmwareCatalog";
+    private static final int EVENTS = FileObserver.CLOSE_WRITE | FileObserver.MOVED_TO |
+            FileObserver.DELETE | FileObserver.MOVED_FROM;
+
+    public interface Listener {
+        void onCatalogChanged(FirmwareCatalog catalog);
+    }
+
+    // the header information of one file, VID, PID and BootVersion are -1 without DFU suffix
+    public static class Entry {
+        public final File file;
+        public final long size;
+        public final long lastModified;
+        public final List<String> targetNames;
+        public final List<Integer> addresses;   // start address of every element
+        public final int VID;
+        public final int PID;
+        public final int BootVersion;
+
+        private Entry(File file, List<String> targetNames, List<Integer> addresses, int vid, int pid, int bootVersion) {
+            this.file = file;
+            this.size = file.length();
+            this.lastModified = file.lastModified();
+            this.targetNames = Collections.unmodifiableList(targetNames);
+            this.addresses = Collections.unmodifiableList(addresses);
+            this.VID = vid;
+            this.PID = pid;
+            this.BootVersion = bootVersion;
+        }
+
+        public boolean hasSuffix() {
+            return VID >= 0;
+        }
+
+        @Override
+        public String toString() {
+            return file.getName() + (targetNames.isEmpty() ? "" : " " + targetNames) +
+                    (hasSuffix() ? String.format(" %04x:%04x", VID, PID) : "");
+        }
+    }
+
+    // newest first, so the latest download of a firmware wins
+    private static final Comparator<Entry> NEWEST_FIRST = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry a, Entry b) {
+            return a.lastModified > b.lastModified ? -1 : (a.lastModified < b.lastModified ? 1 :
+                    a.file.getName().compareTo(b.file.getName()));
+        }
+    };
+
+    private final File dir;
+    private final Map<String, Entry> byName = new HashMap<>();
+    private final Map<String, List<Entry>> byTarget = new HashMap<>();
+    private final Map<Integer, List<Entry>> byDevice = new HashMap<>();     // VID << 16 | PID
+    private final Map<Integer, List<Entry>> byAddress = new HashMap<>();
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private final ExecutorService worker;
+    private FileObserver observer;      // referenced while watching, else it is collected
+
+    public FirmwareCatalog(File dir) {
+        if (dir == null) throw new IllegalArgumentException("Directory is null");
+        this.dir = dir;
+        this.worker = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, TAG);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    public void setListener(Listener listener) {
+        if (listener == null) throw new IllegalArgumentException("Listener is null");
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    public File getDirectory() {
+        return dir;
+    }
+
+    // scans the directory in the background and follows its changes until stop()
+    public synchronized void start() {
+        if (worker.isShutdown()) throw new IllegalStateException("Catalog was stopped");
+        if (observer != null) {
+            return;
+        }
+        observer = new FileObserver(dir.getPath(), EVENTS) {
+            @Override
+            public void onEvent(int event, final String path) {
+                if (path == null) {
+                    return;
+                }
+                if ((event & (FileObserver.DELETE | FileObserver.MOVED_FROM)) != 0) {
+                    if (remove(path)) {
+                        notifyChanged();
+                    }
+                } else {
+                    try {
+                        worker.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                if (index(new File(dir, path))) {
+                                    notifyChanged();
+                                }
+                            }
+                        });
+                    } catch (RejectedExecutionException e) {
+                        // an event that raced with stop()
+                    }
+                }
+            }
+        };
+        observer.startWatching();
+        worker.execute(new Runnable() {
+            @Override
+            public void run() {
+                scan();
+            }
+        });
+    }
+
+    // stops watching and ends the background thread, the catalog cannot be started again
+    public synchronized void stop() {
+        if (observer != null) {
+            observer.stopWatching();
+            observer = null;
+        }
+        worker.shutdownNow();
+    }
+
+    // indexes the files that changed since they were indexed, drops the ones that are gone
+    public void scan() {
+        String[] names = dir.list();
+        boolean changed = false;
+        List<String> gone;
+        synchronized (this) {
+            gone = new ArrayList<>(byName.keySet());
+        }
+        if (names != null) {
+            for (String name : names) {
+                gone.remove(name);
+                changed |= index(new File(dir, name));
+            }
+        }
+        for (String name : gone) {
+            changed |= remove(name);
+        }
+        if (changed) {
+            notifyChanged();
+        }
+    }
+
+    public synchronized List<Entry> getEntries() {
+        List<Entry> entries = new ArrayList<>(byName.values());
+        Collections.sort(entries, NEWEST_FIRST);
+        return entries;
+    }
+
+    public synchronized List<Entry> findByTarget(String targetName) {
+        return copy(byTarget.get(targetName));
+    }
+
+    public synchronized List<Entry> findByDevice(int vid, int pid) {
+        return copy(byDevice.get(vid << 16 | pid));
+    }
+
+    public synchronized List<Entry> findByAddress(int address) {
+        return copy(byAddress.get(address));
+    }
+
+    // newest .dfu file for the device, else the newest image without suffix, null if there is none
+    public synchronized Entry select(int vid, int pid) {
+        List<Entry> matching = byDevice.get(vid << 16 | pid);
+        if (matching != null && !matching.isEmpty()) {
+            return matching.get(0);
+        }
+        for (Entry entry : getEntries()) {
+            if (!entry.hasSuffix()) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    public synchronized int size() {
+        return byName.size();
+    }
+
+    // true if the catalog changed
+    private boolean index(File file) {
+        String name = file.getName();
+        if (!file.isFile() || !FirmwareReader.isSupported(name)) {
+            return remove(name);
+        }
+        synchronized (this) {
+            Entry entry = byName.get(name);
+            if (entry != null && entry.size == file.length() && entry.lastModified == file.lastModified()) {
+                return false;
+            }
+        }
+        Entry entry;
+        try {
+            entry = name.toLowerCase().endsWith(".dfu") ? readHeaders(file) :
+                    new Entry(file, new ArrayList<String>(), new ArrayList<Integer>(), -1, -1, -1);
+        } catch (Exception e) {
+            // ie. still being copied, indexed again on CLOSE_WRITE
+            Log.w(TAG, "Cannot index " + name + ": " + e.getMessage());
+            return remove(name);
+        }
+        synchronized (this) {
+            unindex(byName.put(name, entry));
+            add(byTarget, entry.targetNames, entry);
+            if (entry.hasSuffix()) {
+                add(byDevice, Collections.singletonList(entry.VID << 16 | entry.PID), entry);
+            }
+            add(byAddress, entry.addresses, entry);
+        }
+        Log.i(TAG, "Indexed " + entry);
+        return true;
+    }
+
+    private synchronized boolean remove(String name) {
+        Entry entry = byName.remove(name);
+        unindex(entry);
+        return entry != null;
+    }
+
+    private void unindex(Entry entry) {
+        if (entry == null) {
+            return;
+        }
+        removeFrom(byTarget, entry.targetNames, entry);
+        removeFrom(byDevice, Collections.singletonList(entry.VID << 16 | entry.PID), entry);
+        removeFrom(byAddress, entry.addresses, entry);
+    }
+
+    private void notifyChanged() {
+        for (Listener listener : listeners) {
+            listener.onCatalogChanged(this);
+        }
+    }
+
+    private static <K> void add(Map<K, List<Entry>> index, List<K> keys, Entry entry) {
+        for (K key : keys) {
+            List<Entry> entries = index.get(key);
+            if (entries == null) {
+                entries = new ArrayList<>();
+                index.put(key, entries);
+            }
+            if (!entries.contains(entry)) {
+                entries.add(entry);
+                Collections.sort(entries, NEWEST_FIRST);
+            }
+        }
+    }
+
+    private static <K> void removeFrom(Map<K, List<Entry>> index, List<K> keys, Entry entry) {
+        for (K key : keys) {
+            List<Entry> entries = index.get(key);
+            if (entries != null && entries.remove(entry) && entries.isEmpty()) {
+                index.remove(key);
+            }
+        }
+    }
+
+    private static List<Entry> copy(List<Entry> entries) {
+        return entries == null ? Collections.<Entry>emptyList() : new ArrayList<>(entries);
+    }
+
+    // reads the prefix, target prefixes, element headers and suffix, skipping the element data
+    static Entry readHeaders(File file) throws Exception {
+
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            long length = channel.size();
+            if (length < DfuFile.PREFIX_SIZE + DfuFile.SUFFIX_SIZE) {
+                throw new FormatException("File is too small");
+            }
+            ByteBuffer prefix = read(channel, 0, DfuFile.PREFIX_SIZE);
+            if (!getString(prefix, 0, 5).equals("DfuSe") || prefix.get(5) != 1) {
+                throw new FormatException("File signature error");
+            }
+            int numTargets = prefix.get(10) & 0xFF;
+            long imageEnd = length - DfuFile.SUFFIX_SIZE;
+
+            List<String> targetNames = new ArrayList<>();
+            List<Integer> addresses = new ArrayList<>();
+            long offset = DfuFile.PREFIX_SIZE;
+            for (int t = 0; t < numTargets; t++) {
+                if (offset + DfuFile.TARGET_PREFIX_SIZE > imageEnd) {
+                    throw new FormatException("Target " + t + " exceeds file");
+                }
+                ByteBuffer target = read(channel, offset, DfuFile.TARGET_PREFIX_SIZE);
+                if (!getString(target, 0, 6).equals("Target")) {
+                    throw new FormatException("Target signature error");
+                }
+                String name = getString(target, 11, DfuFile.TARGET_NAME_SIZE);
+                int nul = name.indexOf(0);
+                targetNames.add(nul < 0 ? name : name.substring(0, nul));
+                long targetSize = target.getInt(11 + DfuFile.TARGET_NAME_SIZE) & 0xFFFFFFFFL;
+                int numElements = target.getInt(15 + DfuFile.TARGET_NAME_SIZE);
+
+                long element = offset + DfuFile.TARGET_PREFIX_SIZE;
+                long targetEnd = element + targetSize;
+                if (targetEnd > imageEnd) {
+                    throw new FormatException("Target " + t + " exceeds file");
+                }
+                for (int e = 0; e < numElements; e++) {
+                    if (element + DfuFile.ELEMENT_HEADER_SIZE > targetEnd) {
+                        throw new FormatException("Element " + e + " exceeds target");
+                    }
+                    ByteBuffer header = read(channel, element, DfuFile.ELEMENT_HEADER_SIZE);
+                    addresses.add(header.getInt(0));
+                    element += DfuFile.ELEMENT_HEADER_SIZE + (header.getInt(4) & 0xFFFFFFFFL);
+                }
+                if (element != targetEnd) {
+                    throw new FormatException("Target Size does not match its elements");
+                }
+                offset = targetEnd;
+            }
+
+            ByteBuffer suffix = read(channel, imageEnd, DfuFile.SUFFIX_SIZE);
+            if (!getString(suffix, 8, 3).equals("UFD")) {
+                throw new FormatException("File suffix error");
+            }
+            return new Entry(file, targetNames, addresses,
+                    suffix.getShort(4) & 0xFFFF, suffix.getShort(2) & 0xFFFF, suffix.getShort(0) & 0xFFFF);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of file");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static String getString(ByteBuffer buffer, int offset, int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = buffer.get(offset + i);
+        }
+        return new String(bytes, Charset.forName("US-ASCII"));
+    }
+}
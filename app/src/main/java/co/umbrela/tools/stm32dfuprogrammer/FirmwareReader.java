@@ -0,0 +1,235 @@
+/*
+ * Copyright 2015 Umbrela Smart, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package co.umbrela.tools.stm32dfuprogrammer;
+
+import android.nfc.FormatException;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads firmware images that are not wrapped in a DfuSe file, so a build output can be
+ * programmed without converting it with DfuSe File Manager first.
+ * The elements feed the same WritePlan as the elements of a .dfu file.
+ */
+public class FirmwareReader {
+    private static final String TAG = "FirmwareReader";
+
+    // Intel HEX record types
+    private static final int HEX_DATA = 0x00;
+    private static final int HEX_END_OF_FILE = 0x01;
+    private static final int HEX_EXTENDED_SEGMENT_ADDRESS = 0x02;
+    private static final int HEX_START_SEGMENT_ADDRESS = 0x03;
+    private static final int HEX_EXTENDED_LINEAR_ADDRESS = 0x04;
+    private static final int HEX_START_LINEAR_ADDRESS = 0x05;
+
+    // ELF32 header and program header fields
+    private static final int ELF_CLASS_32 = 1;
+    private static final int ELF_DATA_LSB = 1;
+    private static final int ELF_E_PHOFF = 0x1C;
+    private static final int ELF_E_PHENTSIZE = 0x2A;
+    private static final int ELF_E_PHNUM = 0x2C;
+    private static final int ELF_PT_LOAD = 1;
+
+    public static boolean isSupported(String fileName) {
+        String name = fileName.toLowerCase();
+        return name.endsWith(".dfu") || name.endsWith(".hex") || name.endsWith(".ihex") ||
+                name.endsWith(".bin") || name.endsWith(".elf") || name.endsWith(".axf");
+    }
+
+    // selects the reader by file extension, baseAddress is only used for raw binaries
+    public static DfuFile open(File file, int baseAddress) throws Exception {
+        String name = file.getName().toLowerCase();
+        if (name.endsWith(".dfu")) {
+            return DfuFile.open(file);
+        } else if (name.endsWith(".hex") || name.endsWith(".ihex")) {
+            return readHex(file);
+        } else if (name.endsWith(".bin")) {
+            return readBin(file, baseAddress);
+        } else if (name.endsWith(".elf") || name.endsWith(".axf")) {
+            return readElf(file);
+        }
+        throw new FormatException("Unsupported file type: " + file.getName());
+    }
+
+    public static DfuFile readBin(File file, int baseAddress) throws Exception {
+        ByteBuffer mapped = DfuFile.map(file);
+        if (!mapped.hasRemaining()) {
+            throw new FormatException("File is empty");
+        }
+        List<DfuFile.Element> elements = new ArrayList<>();
+        elements.add(new DfuFile.Element(baseAddress, mapped.duplicate()));
+        return DfuFile.fromElements(file.toString(), mapped, mapped.remaining(), elements);
+    }
+
+    // loads the PT_LOAD segments at their physical (load) address, straight from the mapping
+    public static DfuFile readElf(File file) throws Exception {
+        ByteBuffer elf = DfuFile.map(file);
+        int length = elf.remaining();
+
+        if (length < 52 || elf.get(0) != 0x7F || elf.get(1) != 'E' || elf.get(2) != 'L' || elf.get(3) != 'F') {
+            throw new FormatException("File signature error");
+        }
+        if (elf.get(4) != ELF_CLASS_32 || elf.get(5) != ELF_DATA_LSB) {
+            throw new FormatException("Only 32 bit little endian ELF files are supported");
+        }
+        int phOffset = elf.getInt(ELF_E_PHOFF);
+        int phEntrySize = elf.getShort(ELF_E_PHENTSIZE) & 0xFFFF;
+        int phNum = elf.getShort(ELF_E_PHNUM) & 0xFFFF;
+        if (phOffset < 0 || phEntrySize < 32 || (long) phOffset + (long) phEntrySize * phNum > length) {
+            throw new FormatException("Program headers exceed file");
+        }
+
+        List<DfuFile.Element> elements = new ArrayList<>();
+        for (int i = 0; i < phNum; i++) {
+            int header = phOffset + i * phEntrySize;
+            int type = elf.getInt(header);
+            int offset = elf.getInt(header + 4);
+            int physicalAddress = elf.getInt(header + 12);
+            int fileSize = elf.getInt(header + 16);
+            if (type != ELF_PT_LOAD || fileSize == 0) {
+                continue;   // .bss and friends have no data in the file
+            }
+            if (offset < 0 || fileSize < 0 || (long) offset + fileSize > length) {
+                throw new FormatException("Segment " + i + " exceeds file");
+            }
+            elements.add(new DfuFile.Element(physicalAddress, DfuFile.slice(elf, offset, fileSize)));
+        }
+        if (elements.isEmpty()) {
+            throw new FormatException("No loadable segments in File");
+        }
+        Log.i(TAG, "ELF loadable segments: " + elements.size());
+        return DfuFile.fromElements(file.toString(), elf, length, elements);
+    }
+
+    // streams the records, consecutive data records are collected into one element
+    public static DfuFile readHex(File file) throws Exception {
+
+        List<DfuFile.Element> elements = new ArrayList<>();
+        Segment segment = null;
+        int baseAddress = 0;
+        int lineNumber = 0;
+        boolean endOfFile = false;
+
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), Charset.forName("US-ASCII")));
+        try {
+            String line;
+            while (!endOfFile && (line = reader.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+                if (line.isEmpty()) {
+                    continue;
+                }
+                byte[] record = parseHexRecord(line, lineNumber);
+                int count = record[0] & 0xFF;
+                int offset = ((record[1] & 0xFF) << 8) | (record[2] & 0xFF);
+                int type = record[3] & 0xFF;
+
+                switch (type) {
+                    case HEX_DATA:
+                        int address = baseAddress + offset;
+                        if (segment == null || segment.getEndAddress() != address) {
+                            if (segment != null) {
+                                elements.add(segment.toElement());
+                            }
+                            segment = new Segment(address);
+                        }
+                        segment.write(record, 4, count);
+                        break;
+                    case HEX_END_OF_FILE:
+                        endOfFile = true;
+                        break;
+                    case HEX_EXTENDED_SEGMENT_ADDRESS:
+                        baseAddress = (((record[4] & 0xFF) << 8) | (record[5] & 0xFF)) << 4;
+                        break;
+                    case HEX_EXTENDED_LINEAR_ADDRESS:
+                        baseAddress = (((record[4] & 0xFF) << 8) | (record[5] & 0xFF)) << 16;
+                        break;
+                    case HEX_START_SEGMENT_ADDRESS:
+                    case HEX_START_LINEAR_ADDRESS:
+                        break;  // entry point, not needed for programming
+                    default:
+                        throw new FormatException("Unknown record type " + type + " in line " + lineNumber);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        if (!endOfFile) {
+            throw new FormatException("Missing end of file record");
+        }
+        if (segment != null) {
+            elements.add(segment.toElement());
+        }
+        if (elements.isEmpty()) {
+            throw new FormatException("No data records in File");
+        }
+        Log.i(TAG, "HEX segments: " + elements.size());
+        return DfuFile.fromElements(file.toString(), null, (int) file.length(), elements);
+    }
+
+    // returns count, address (2), type, data and checksum of a ':' record
+    private static byte[] parseHexRecord(String line, int lineNumber) throws FormatException {
+        if (line.charAt(0) != ':' || (line.length() % 2) == 0 || line.length() < 11) {
+            throw new FormatException("Invalid record in line " + lineNumber);
+        }
+        byte[] record = new byte[(line.length() - 1) / 2];
+        int sum = 0;
+        for (int i = 0; i < record.length; i++) {
+            int high = Character.digit(line.charAt(1 + 2 * i), 16);
+            int low = Character.digit(line.charAt(2 + 2 * i), 16);
+            if (high < 0 || low < 0) {
+                throw new FormatException("Invalid hex digit in line " + lineNumber);
+            }
+            record[i] = (byte) ((high << 4) | low);
+            sum += record[i];
+        }
+        if ((record[0] & 0xFF) != record.length - 5) {
+            throw new FormatException("Record length error in line " + lineNumber);
+        }
+        if ((sum & 0xFF) != 0) {
+            throw new FormatException("Checksum error in line " + lineNumber);
+        }
+        return record;
+    }
+
+    // collects contiguous data without copying it again when it becomes an element
+    private static class Segment extends ByteArrayOutputStream {
+        private final int address;
+
+        Segment(int address) {
+            super(4096);
+            this.address = address;
+        }
+
+        int getEndAddress() {
+            return address + count;
+        }
+
+        DfuFile.Element toElement() {
+            return new DfuFile.Element(address, ByteBuffer.wrap(buf, 0, count).slice().asReadOnlyBuffer());
+        }
+    }
+}
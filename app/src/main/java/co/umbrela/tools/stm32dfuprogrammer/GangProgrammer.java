@@ -0,0 +1,276 @@
+/*
+ * Copyright 2015 Umbrela Smart, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package co.umbrela.tools.stm32dfuprogrammer;
+
+import android.util.Log;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Programs several DFU devices at the same time, ie. boards on a powered hub. Every board has
+ * its own Dfu session and DfuEngine worker, all of them program the same image, which is
+ * parsed once and only read. The boards are independent, one failing does not stop the others.
+ */
+public class GangProgrammer {
+    private static final String TAG = "GangProgrammer";
+
+    public enum State {
+        IDLE, QUEUED, RUNNING, PASSED, FAILED, CANCELLED
+    }
+
+    // one device with its session and the result of its last run
+    public static class Board {
+        public final String name;
+        private final Dfu dfu;
+        private final DfuEngine engine;
+        private volatile State state = State.IDLE;
+        private volatile String lastMessage = "";
+        private volatile long startTime;
+        private volatile long endTime;
+        private Future<Void> future;
+
+        private Board(String name, Dfu dfu) {
+            this.name = name;
+            this.dfu = dfu;
+            this.engine = new DfuEngine(dfu);
+        }
+
+        public State getState() {
+            return state;
+        }
+
+        // percentage of the image written
+        public int getProgress() {
+            return state == State.PASSED ? 100 : dfu.getProgress();
+        }
+
+        public String getLastMessage() {
+            return lastMessage;
+        }
+
+        // ms spent on the last run so far
+        public long getElapsedTime() {
+            long start = startTime;
+            if (start == 0) {
+                return 0;
+            }
+            long end = endTime;
+            return (end == 0 ? System.currentTimeMillis() : end) - start;
+        }
+
+        public boolean isBusy() {
+            return state == State.QUEUED || state == State.RUNNING;
+        }
+
+        @Override
+        public String toString() {
+            String message = lastMessage;
+            return name + ": " + state + " " + getProgress() + "% in " + getElapsedTime() / 1000 + " s" +
+                    (message == null || message.isEmpty() ? "" : " - " + message);
+        }
+    }
+
+    private final File checkpointDir;
+    private volatile ImageCache imageCache;
+    private DfuFile image;                  // of the last programAll, boards that come back run it again
+    private final Map<String, Board> boards = new LinkedHashMap<>();
+    private final List<Dfu.DfuListener> listeners = new CopyOnWriteArrayList<>();
+
+    // keeps a checkpoint per board in checkpointDir, null disables resuming
+    public GangProgrammer(File checkpointDir) {
+        this.checkpointDir = checkpointDir;
+    }
+
+    // receives the messages of all boards, prefixed with the board name
+    public void setListener(Dfu.DfuListener listener) {
+        if (listener == null) throw new IllegalArgumentException("Listener is null");
+        listeners.add(listener);
+    }
+
+    // write plans are then built once for all boards
+    public void setImageCache(ImageCache imageCache) {
+        this.imageCache = imageCache;
+    }
+
+    public synchronized Board addBoard(final String name, DfuTransport transport) {
+        if (boards.containsKey(name)) throw new IllegalArgumentException("Board " + name + " already added");
+
+        Dfu dfu = new Dfu(Usb.USB_VENDOR_ID, Usb.USB_PRODUCT_ID);
+        dfu.setTransport(transport);
+        dfu.setImageCache(imageCache);
+        if (checkpointDir != null) {
+            dfu.setCheckpointFile(new File(checkpointDir, "write-" + name.replaceAll("[^A-Za-z0-9]", "_") + ".checkpoint"));
+        }
+        final Board board = new Board(name, dfu);
+        dfu.setListener(new Dfu.DfuListener() {
+            @Override
+            public void onStatusMsg(String msg) {
+                board.lastMessage = msg == null ? "" : msg.trim();
+                for (Dfu.DfuListener listener : listeners) {
+                    listener.onStatusMsg(name + ": " + msg);
+                }
+            }
+        });
+        boards.put(name, board);
+        return board;
+    }
+
+    // stops the boards and forgets them, their transports are left to the caller
+    public synchronized void clear() {
+        for (Board board : boards.values()) {
+            try {
+                board.engine.shutdown(0);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        boards.clear();
+        image = null;
+    }
+
+    // null if there is no board of that name
+    public synchronized Board getBoard(String name) {
+        return boards.get(name);
+    }
+
+    public synchronized List<Board> getBoards() {
+        return new ArrayList<>(boards.values());
+    }
+
+    // starts programming the image on every board that is not busy
+    public synchronized void programAll(final DfuFile image) {
+        if (image == null) throw new IllegalArgumentException("Image is null");
+
+        this.image = image;
+        for (Board board : boards.values()) {
+            if (!board.isBusy()) {
+                start(board, image);
+            }
+        }
+    }
+
+    // programs the last image again on a board that was reset or reconnected, on its new transport,
+    // its checkpoint skips the blocks written before. False if the board is unknown, busy or passed
+    public synchronized boolean resume(String name, DfuTransport transport) {
+        Board board = boards.get(name);
+        if (board == null || image == null || board.isBusy() || board.state == State.PASSED) {
+            return false;
+        }
+        Log.i(TAG, "Resuming " + name);
+        board.dfu.setTransport(transport);
+        start(board, image);
+        return true;
+    }
+
+    private void start(final Board board, final DfuFile image) {
+        board.state = State.QUEUED;
+        board.startTime = 0;
+        board.endTime = 0;
+        board.lastMessage = "";
+        board.future = board.engine.submit("program " + board.name, new DfuEngine.Task() {
+            @Override
+            public void run(Dfu dfu) throws Exception {
+                board.startTime = System.currentTimeMillis();
+                board.state = State.RUNNING;
+                try {
+                    // false when the read protection was removed, the board has to be programmed again
+                    boolean done = dfu.programFirmware(image, false);
+                    board.state = done ? State.PASSED : State.FAILED;
+                    if (!done) {
+                        board.lastMessage = "Read protection removed, reconnect and program again";
+                    }
+                } catch (InterruptedException e) {
+                    board.state = State.CANCELLED;
+                    throw e;
+                } catch (Exception e) {
+                    Log.e(TAG, board.name + " failed", e);
+                    board.state = State.FAILED;
+                    board.lastMessage = e.getMessage() != null ? e.getMessage() : e.toString();
+                } finally {
+                    board.endTime = System.currentTimeMillis();
+                }
+            }
+        });
+    }
+
+    // waits until every board finished its run, including runs resumed meanwhile, the result is in the board state
+    public void awaitAll() throws InterruptedException {
+        boolean waited = true;
+        while (waited) {
+            waited = false;
+            for (Board board : getBoards()) {
+                Future<Void> future;
+                synchronized (this) {
+                    future = board.future;
+                }
+                if (future == null || future.isDone()) {
+                    continue;
+                }
+                waited = true;
+                try {
+                    future.get();
+                } catch (ExecutionException | CancellationException e) {
+                    // recorded in the board state
+                }
+            }
+        }
+    }
+
+    public synchronized void cancelAll() {
+        for (Board board : boards.values()) {
+            board.engine.cancelAll();
+            if (board.state == State.QUEUED) {
+                board.state = State.CANCELLED;
+            }
+        }
+    }
+
+    public synchronized boolean isBusy() {
+        for (Board board : boards.values()) {
+            if (board.isBusy()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // ie. "8 boards: 6 passed, 1 failed, 1 running"
+    public synchronized String getSummary() {
+        int[] counts = new int[State.values().length];
+        for (Board board : boards.values()) {
+            counts[board.state.ordinal()]++;
+        }
+        StringBuilder sb = new StringBuilder();
+        sb.append(boards.size()).append(" boards");
+        String separator = ": ";
+        for (State state : State.values()) {
+            if (counts[state.ordinal()] > 0) {
+                sb.append(separator).append(counts[state.ordinal()]).append(' ').append(state.name().toLowerCase());
+                separator = ", ";
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,287 @@
+/*
+ * Copyright 2015 Umbrela Smart, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package co.umbrela.tools.stm32dfuprogrammer;
+
+import android.nfc.FormatException;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Parsed firmware images and their write plans, so an image flashed over and over is parsed,
+ * checked and indexed only once. Images are identified by the SHA-256 of their content, a file
+ * whose path, size and modification time did not change is not hashed again. The least
+ * recently used images are evicted once their size exceeds the memory budget. With an
+ * ImageStore, images and plans are also kept on disk and survive a restart of the app.
+ */
+public class ImageCache {
+    private static final String TAG = "ImageCache";
+    private static final int BLOCK_OVERHEAD = 48;     // BlockIndex.Block and its reference
+
+    private static class Entry {
+        final String sha256;
+        final DfuFile image;
+        final Map<Integer, WritePlan> plans = new HashMap<>();     // by block size
+        long weight;
+
+        Entry(String sha256, DfuFile image) {
+            this.sha256 = sha256;
+            this.image = image;
+            this.weight = image.fileSize;
+        }
+    }
+
+    private final long maxBytes;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);  // by SHA-256
+    private final Map<String, String> hashes = new HashMap<>();    // path, size and mtime to SHA-256
+    private long bytes;
+    private long hits;
+    private long misses;
+    private volatile ImageStore store;
+
+    public ImageCache(long maxBytes) {
+        if (maxBytes <= 0) throw new IllegalArgumentException("Budget must be positive");
+        this.maxBytes = maxBytes;
+    }
+
+    public void setImageStore(ImageStore store) {
+        this.store = store;
+    }
+
+    // maps the most recently stored images while they fit in the budget, ie. at startup
+    public void preload() {
+        ImageStore store = this.store;
+        if (store == null) {
+            return;
+        }
+        for (String sha256 : store.getHashes()) {
+            synchronized (this) {
+                if (entries.containsKey(sha256)) {
+                    continue;
+                }
+            }
+            Entry entry = load(store, sha256);
+            if (entry == null) {
+                continue;
+            }
+            synchronized (this) {
+                if (bytes + entry.weight > maxBytes) {
+                    return;
+                }
+                add(entry);
+            }
+        }
+    }
+
+    // parsed image of the file, from the cache if its content was opened before
+    public DfuFile open(File file, int baseAddress) throws Exception {
+
+        String stat = file.getCanonicalPath() + '|' + file.length() + '|' + file.lastModified();
+        String sha256;
+        synchronized (this) {
+            sha256 = hashes.get(stat);
+            Entry entry = sha256 != null ? entries.get(sha256) : null;
+            if (entry != null) {
+                hits++;
+                return entry.image;
+            }
+        }
+
+        ImageStore store = this.store;
+        if (sha256 == null && store != null) {
+            sha256 = store.getHash(stat);   // opened before the app was restarted
+        }
+        if (sha256 == null) {
+            // hashing the mapping is cheaper than parsing, and finds copies of a cached image
+            sha256 = sha256(DfuFile.map(file));
+            if (store != null) {
+                try {
+                    store.putHash(stat, sha256);
+                } catch (IOException e) {
+                    Log.w(TAG, "Cannot index " + file, e);
+                }
+            }
+        }
+        synchronized (this) {
+            hashes.put(stat, sha256);
+            Entry entry = entries.get(sha256);
+            if (entry != null) {
+                hits++;
+                return entry.image;
+            }
+        }
+
+        Entry stored = store != null ? load(store, sha256) : null;
+        if (stored != null) {
+            synchronized (this) {
+                hits++;
+                return add(stored).image;
+            }
+        }
+        synchronized (this) {
+            misses++;
+        }
+
+        DfuFile image = FirmwareReader.open(file, baseAddress);
+        Entry entry;
+        synchronized (this) {
+            entry = add(new Entry(sha256, image));
+        }
+        if (entry.image == image) {
+            save(entry);
+        }
+        return entry.image;
+    }
+
+    // write plan of an image returned by open(), built once per block size
+    public WritePlan getWritePlan(DfuFile image, int blockSize) throws FormatException {
+
+        Entry entry = find(image);
+        if (entry != null) {
+            synchronized (this) {
+                WritePlan plan = entry.plans.get(blockSize);
+                if (plan != null) {
+                    return plan;
+                }
+            }
+        }
+        WritePlan plan = WritePlan.build(image.getElements(0), blockSize);
+        if (entry != null) {
+            synchronized (this) {
+                if (entry.plans.containsKey(blockSize)) {
+                    return entry.plans.get(blockSize);
+                }
+                entry.plans.put(blockSize, plan);
+                long weight = (long) plan.getBlockCount() * BLOCK_OVERHEAD;
+                entry.weight += weight;
+                if (entries.get(entry.sha256) == entry) {
+                    bytes += weight;
+                    evict(entry);
+                }
+            }
+            save(entry);
+        }
+        return plan;
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        hashes.clear();
+        bytes = 0;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return entries.size() + " images, " + bytes / 1024 + " of " + maxBytes / 1024 + " KB, " +
+                hits + " hits, " + misses + " misses";
+    }
+
+    // adds the entry unless another session added the image meanwhile, returns the cached one
+    private Entry add(Entry entry) {
+        Entry cached = entries.get(entry.sha256);
+        if (cached != null) {
+            return cached;
+        }
+        entries.put(entry.sha256, entry);
+        bytes += entry.weight;
+        evict(entry);
+        return entry;
+    }
+
+    private static Entry load(ImageStore store, String sha256) {
+        ImageStore.Stored stored = store.load(sha256);
+        if (stored == null) {
+            return null;
+        }
+        Entry entry = new Entry(sha256, stored.image);
+        for (WritePlan plan : stored.plans) {
+            entry.plans.put(plan.getBlockSize(), plan);
+            entry.weight += (long) plan.getBlockCount() * BLOCK_OVERHEAD;
+        }
+        return entry;
+    }
+
+    // a failed write only costs the next cold start
+    private void save(Entry entry) {
+        ImageStore store = this.store;
+        if (store == null) {
+            return;
+        }
+        List<WritePlan> plans;
+        synchronized (this) {
+            plans = new ArrayList<>(entry.plans.values());
+        }
+        try {
+            store.save(entry.sha256, entry.image, plans);
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot store " + entry.image.filePath, e);
+        }
+    }
+
+    private synchronized Entry find(DfuFile image) {
+        for (Entry entry : entries.values()) {
+            if (entry.image == image) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    // drops the least recently used images, except the one just used
+    private void evict(Entry keep) {
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (bytes > maxBytes && iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (entry == keep) {
+                continue;
+            }
+            iterator.remove();
+            bytes -= entry.weight;
+            hashes.values().removeAll(Collections.singleton(entry.sha256));
+            Log.i(TAG, "Evicted " + entry.image.filePath);
+        }
+    }
+
+    private static String sha256(ByteBuffer data) throws NoSuchAlgorithmException {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        digest.update(data.duplicate());
+        StringBuilder sb = new StringBuilder();
+        for (byte b : digest.digest()) {
+            sb.append(String.format("%02x", b & 0xFF));
+        }
+        return sb.toString();
+    }
+}
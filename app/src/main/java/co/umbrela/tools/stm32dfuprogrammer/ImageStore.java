@@ -0,0 +1,470 @@
+/*
+ * Copyright 2015 Umbrela Smart, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package co.umbrela.tools.stm32dfuprogrammer;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+
+/**
+ * Validated images kept in app-private storage, so the first job after a restart does not
+ * parse, check and index the firmware file again. Every image is written once, named by its
+ * SHA-256: a header with the parsed metadata and the block indexes of its write plans,
+ * followed by the element payloads, each starting on a block boundary. A stored image is
+ * memory-mapped and used as it is.
+ * <p>
+ * The index file maps the path, size and modification time of a firmware file to the SHA-256
+ * of its content, so a file that did not change is not even read. It is compacted when it
+ * holds keys of files that changed since or of images that were deleted.
+ */
+public class ImageStore {
+    private static final String TAG = "ImageStore";
+    private static final int MAGIC = 0x44464953;    // "DFIS"
+    private static final int VERSION = 2;
+    private static final int CRC_START = 20;        // the CRC covers the header after it and the payloads
+    private static final int MAX_IMAGES = 16;       // the least recently stored ones are deleted
+    private static final int ALIGNMENT = 4096;      // payload alignment, a multiple of every block size
+    private static final String INDEX = "index";
+    private static final String SUFFIX = ".img";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    // a stored image and the write plans stored with it
+    public static class Stored {
+        public final DfuFile image;
+        public final List<WritePlan> plans;
+
+        Stored(DfuFile image, List<WritePlan> plans) {
+            this.image = image;
+            this.plans = plans;
+        }
+    }
+
+    private final File dir;
+    private final Map<String, String> hashes = new HashMap<>();     // path, size and mtime to SHA-256
+
+    private ImageStore(File dir) {
+        this.dir = dir;
+    }
+
+    // store in dir, ie. new File(context.getFilesDir(), "images")
+    public static ImageStore open(File dir) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create " + dir);
+        }
+        // left by a save that did not complete
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().endsWith(".tmp") && !file.delete()) {
+                    Log.w(TAG, "Cannot delete " + file);
+                }
+            }
+        }
+        ImageStore store = new ImageStore(dir);
+        store.readIndex();
+        return store;
+    }
+
+    // SHA-256 of a file stored before, null if unknown
+    public synchronized String getHash(String stat) {
+        String sha256 = hashes.get(stat);
+        return sha256 != null && imageFile(sha256).isFile() ? sha256 : null;
+    }
+
+    public synchronized void putHash(String stat, String sha256) throws IOException {
+        if (sha256.equals(hashes.put(stat, sha256))) {
+            return;
+        }
+        // a key of the same path with another size or mtime is superseded
+        String path = getPath(stat);
+        boolean superseded = false;
+        for (Iterator<String> iterator = hashes.keySet().iterator(); iterator.hasNext(); ) {
+            String key = iterator.next();
+            if (!key.equals(stat) && getPath(key).equals(path)) {
+                iterator.remove();
+                superseded = true;
+            }
+        }
+        if (superseded) {
+            writeIndex();
+            return;
+        }
+        FileWriter writer = new FileWriter(new File(dir, INDEX), true);
+        try {
+            writer.write(stat + '\t' + sha256 + '\n');
+        } finally {
+            writer.close();
+        }
+    }
+
+    // drops the keys of deleted images from the index
+    private synchronized void compactIndex() {
+        boolean changed = false;
+        for (Iterator<String> iterator = hashes.values().iterator(); iterator.hasNext(); ) {
+            if (!imageFile(iterator.next()).isFile()) {
+                iterator.remove();
+                changed = true;
+            }
+        }
+        if (changed) {
+            try {
+                writeIndex();
+            } catch (IOException e) {
+                Log.w(TAG, "Cannot compact the index", e);
+            }
+        }
+    }
+
+    // replaces the index file with the current keys
+    private void writeIndex() throws IOException {
+        File tmp = new File(dir, INDEX + ".tmp");
+        FileWriter writer = new FileWriter(tmp);
+        try {
+            for (Map.Entry<String, String> entry : hashes.entrySet()) {
+                writer.write(entry.getKey() + '\t' + entry.getValue() + '\n');
+            }
+        } finally {
+            writer.close();
+        }
+        if (!tmp.renameTo(new File(dir, INDEX))) {
+            tmp.delete();
+            throw new IOException("Cannot write the index");
+        }
+    }
+
+    // path part of a "path|size|mtime" key
+    private static String getPath(String stat) {
+        int end = stat.lastIndexOf('|', stat.lastIndexOf('|') - 1);
+        return end < 0 ? stat : stat.substring(0, end);
+    }
+
+    public boolean contains(String sha256) {
+        return imageFile(sha256).isFile();
+    }
+
+    // SHA-256 of the stored images, the most recently stored first
+    public List<String> getHashes() {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return Collections.emptyList();
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                long diff = b.lastModified() - a.lastModified();
+                return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+            }
+        });
+        List<String> result = new ArrayList<>();
+        for (File file : files) {
+            String name = file.getName();
+            if (name.endsWith(SUFFIX)) {
+                result.add(name.substring(0, name.length() - SUFFIX.length()));
+            }
+        }
+        return result;
+    }
+
+    // maps the stored image, null if it is not stored or unreadable
+    public Stored load(String sha256) {
+        File file = imageFile(sha256);
+        if (!file.isFile()) {
+            return null;
+        }
+        try {
+            return read(DfuFile.map(file));
+        } catch (CancellationException e) {
+            throw e;        // the stored image is fine, the operation was cancelled
+        } catch (Exception e) {
+            Log.e(TAG, "Dropping " + file.getName(), e);
+            if (!file.delete()) {
+                Log.w(TAG, "Cannot delete " + file);
+            }
+            return null;
+        }
+    }
+
+    // writes the image with its plans, replacing a previous version of the same image
+    public void save(String sha256, DfuFile image, Collection<WritePlan> plans) throws IOException {
+
+        ByteBuffer header = writeHeader(image, plans);
+        int payloadOffset = align(header.limit());
+        header.putLong(8, payloadOffset);
+        int crc = crc(header, CRC_START, header.limit());
+        for (DfuFile.Target target : image.targets) {
+            for (DfuFile.Element element : target.elements) {
+                crc = CrcEngine.getDefault().update(crc, element.getData());
+            }
+        }
+        header.putInt(16, crc);
+
+        // unique, boards with other block sizes may save the same image at the same time
+        File tmp = File.createTempFile(sha256, ".tmp", dir);
+        FileOutputStream out = new FileOutputStream(tmp);
+        try {
+            FileChannel channel = out.getChannel();
+            writeFully(channel, header, 0);
+            long position = payloadOffset;
+            for (DfuFile.Target target : image.targets) {
+                for (DfuFile.Element element : target.elements) {
+                    writeFully(channel, element.getData(), position);
+                    position += align(element.length);
+                }
+            }
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(imageFile(sha256))) {
+            tmp.delete();
+            throw new IOException("Cannot store " + sha256);
+        }
+        Log.i(TAG, "Stored " + image.filePath + " as " + sha256);
+
+        List<String> stored = getHashes();
+        if (stored.size() > MAX_IMAGES) {
+            for (int i = MAX_IMAGES; i < stored.size(); i++) {
+                imageFile(stored.get(i)).delete();
+            }
+            compactIndex();
+        }
+    }
+
+    public void remove(String sha256) {
+        imageFile(sha256).delete();
+        compactIndex();
+    }
+
+    private File imageFile(String sha256) {
+        return new File(dir, sha256 + SUFFIX);
+    }
+
+    private void readIndex() throws IOException {
+        File file = new File(dir, INDEX);
+        if (!file.isFile()) {
+            return;
+        }
+        int lines = 0;
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines++;
+                int tab = line.lastIndexOf('\t');
+                if (tab > 0) {
+                    String stat = line.substring(0, tab);
+                    String path = getPath(stat);
+                    for (Iterator<String> iterator = hashes.keySet().iterator(); iterator.hasNext(); ) {
+                        if (getPath(iterator.next()).equals(path)) {
+                            iterator.remove();      // later lines win
+                        }
+                    }
+                    hashes.put(stat, line.substring(tab + 1));
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        for (Iterator<String> iterator = hashes.values().iterator(); iterator.hasNext(); ) {
+            if (!imageFile(iterator.next()).isFile()) {
+                iterator.remove();
+            }
+        }
+        if (lines != hashes.size()) {
+            writeIndex();
+        }
+    }
+
+    // header layout, big endian:
+    // magic, version, payload offset (long), crc, path, file size, crc, PID, VID, BootVersion,
+    // targets: alternate setting, name, elements: address, size, payload offset (long)
+    // plans: block size, runs: length, trimmed length, blocks: crc, blank
+    private static ByteBuffer writeHeader(DfuFile image, Collection<WritePlan> plans) {
+
+        int size = 64 + utf8(image.filePath).length;
+        for (DfuFile.Target target : image.targets) {
+            size += 12 + utf8(target.name).length + target.elements.size() * 16;
+        }
+        for (WritePlan plan : plans) {
+            size += 8 + plan.getRuns().size() * 12 + plan.getBlockCount() * 5;
+        }
+        ByteBuffer header = ByteBuffer.allocate(size).order(ByteOrder.BIG_ENDIAN);
+
+        header.putInt(MAGIC).putInt(VERSION).putLong(0).putInt(0);
+        putString(header, image.filePath);
+        header.putInt(image.fileSize).putInt(image.crc);
+        header.putInt(image.PID).putInt(image.VID).putInt(image.BootVersion);
+
+        header.putInt(image.targets.size());
+        long offset = 0;
+        for (DfuFile.Target target : image.targets) {
+            header.putInt(target.alternateSetting);
+            putString(header, target.name);
+            header.putInt(target.elements.size());
+            for (DfuFile.Element element : target.elements) {
+                header.putInt(element.address).putInt(element.length).putLong(offset);
+                offset += align(element.length);
+            }
+        }
+
+        header.putInt(plans.size());
+        for (WritePlan plan : plans) {
+            header.putInt(plan.getBlockSize()).putInt(plan.getRuns().size());
+            for (WritePlan.Run run : plan.getRuns()) {
+                BlockIndex index = run.getBlockIndex();
+                header.putInt(run.length).putInt(index.getTrimmedLength()).putInt(index.getBlockCount());
+                for (int n = 0; n < index.getBlockCount(); n++) {
+                    BlockIndex.Block block = index.getBlock(n);
+                    header.putInt(block.crc).put((byte) (block.blank ? 1 : 0));
+                }
+            }
+        }
+        header.flip();
+        return header;
+    }
+
+    private static Stored read(ByteBuffer file) throws Exception {
+
+        ByteBuffer header = file.duplicate().order(ByteOrder.BIG_ENDIAN);
+        if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+            throw new IOException("Not a stored image");
+        }
+        long payloadOffset = header.getLong();
+        int storedCrc = header.getInt();
+        String filePath = getString(header);
+        int fileSize = header.getInt();
+        int crc = header.getInt();
+        int pid = header.getInt();
+        int vid = header.getInt();
+        int bootVersion = header.getInt();
+
+        int numTargets = header.getInt();
+        List<DfuFile.Target> targets = new ArrayList<>(numTargets);
+        for (int t = 0; t < numTargets; t++) {
+            int alternateSetting = header.getInt();
+            String name = getString(header);
+            int numElements = header.getInt();
+            List<DfuFile.Element> elements = new ArrayList<>(numElements);
+            for (int e = 0; e < numElements; e++) {
+                int address = header.getInt();
+                int length = header.getInt();
+                long start = payloadOffset + header.getLong();
+                if (length < 0 || start + length > file.limit()) {
+                    throw new IOException("Stored image is truncated");
+                }
+                ByteBuffer data = file.duplicate();
+                data.position((int) start);
+                data.limit((int) start + length);
+                elements.add(new DfuFile.Element(address, data.slice()));
+            }
+            targets.add(new DfuFile.Target(alternateSetting, name, elements));
+        }
+        DfuFile image = DfuFile.restore(filePath, file, fileSize, crc, pid, vid, bootVersion, targets);
+
+        int numPlans = header.getInt();
+        List<WritePlan> plans = new ArrayList<>(numPlans);
+        for (int p = 0; p < numPlans; p++) {
+            int blockSize = header.getInt();
+            int numRuns = header.getInt();
+            List<BlockIndex> indexes = new ArrayList<>(numRuns);
+            for (int r = 0; r < numRuns; r++) {
+                int length = header.getInt();
+                int trimmedLength = header.getInt();
+                int numBlocks = header.getInt();
+                if (numBlocks < 0 || numBlocks > header.remaining() / 5) {
+                    throw new IOException("Stored image is corrupt");
+                }
+                int[] crcs = new int[numBlocks];
+                boolean[] blank = new boolean[numBlocks];
+                for (int n = 0; n < numBlocks; n++) {
+                    crcs[n] = header.getInt();
+                    blank[n] = header.get() != 0;
+                }
+                indexes.add(BlockIndex.restore(length, blockSize, crcs, blank, trimmedLength));
+            }
+            plans.add(WritePlan.restore(image.getElements(0), blockSize, indexes));
+        }
+
+        // a torn or damaged store is not trusted
+        int storeCrc = crc(file, CRC_START, header.position());
+        for (DfuFile.Target target : targets) {
+            for (DfuFile.Element element : target.elements) {
+                storeCrc = CrcEngine.getDefault().update(storeCrc, element.getData());
+            }
+        }
+        if (storeCrc != storedCrc) {
+            throw new IOException("Stored image CRC failed");
+        }
+        return new Stored(image, plans);
+    }
+
+    private static int crc(ByteBuffer buffer, int start, int end) {
+        ByteBuffer view = buffer.duplicate();
+        view.position(start);
+        view.limit(end);
+        return CrcEngine.getDefault().update(-1, view);
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer data, long position) throws IOException {
+        data = data.duplicate();
+        while (data.hasRemaining()) {
+            position += channel.write(data, position);
+        }
+    }
+
+    private static int align(int size) {
+        return (size + ALIGNMENT - 1) & -ALIGNMENT;
+    }
+
+    private static byte[] utf8(String s) {
+        return s.getBytes(UTF8);
+    }
+
+    private static void putString(ByteBuffer buffer, String s) {
+        byte[] bytes = utf8(s);
+        buffer.putInt(bytes.length).put(bytes);
+    }
+
+    private static String getString(ByteBuffer buffer) throws IOException {
+        int length = buffer.getInt();
+        if (length < 0 || length > buffer.remaining()) {
+            throw new IOException("Stored image is corrupt");
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, UTF8);
+    }
+}
@@ -19,37 +19,106 @@ package co.umbrela.tools.stm32dfuprogrammer;
 import android.app.Activity;
 import android.content.Context;
 import android.content.IntentFilter;
+import android.hardware.usb.UsbDevice;
 import android.hardware.usb.UsbManager;
 import android.os.Bundle;
+import android.os.Environment;
 import android.os.Handler;
 import android.os.Message;
 import android.view.View;
+import android.widget.ArrayAdapter;
 import android.widget.Button;
+import android.widget.ListView;
 import android.widget.TextView;
 
+import java.io.File;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
 public class MainActivity extends Activity implements
-        Handler.Callback, Usb.OnUsbChangeListener, Dfu.DfuListener {
+        Handler.Callback, Usb.OnUsbChangeListener, DeviceRegistry.Listener,
+        FirmwareCatalog.Listener {
+
+    private static final int MSG_DRAIN = 1;
+    private static final int MSG_REFRESH_BOARDS = 2;
+    private static final int BOARDS_REFRESH_MS = 250;
+    private static final int FRAME_MS = 16;         // the log is drained at most once per frame
+    private static final int MAX_LOG_LINES = 1000;
+    private static final long IMAGE_CACHE_BYTES = 16 * 1024 * 1024;
 
     private Usb usb;
     private Dfu dfu;
+    private DfuEngine engine;     // runs the USB work off the UI thread
+    private Handler handler;
+    private StatusLog statusLog;  // written by the engine, drained by the UI thread
+    private final List<String> batch = new ArrayList<>();
+    private GangProgrammer gang;  // programs all attached devices at once
+    private final ImageCache imageCache = new ImageCache(IMAGE_CACHE_BYTES);
+    private FirmwareCatalog catalog;  // firmware files in the Download folder
+    private final List<Usb> gangSessions = new ArrayList<>();     // guarded by itself, boards resume on the UI thread
 
     private TextView status;
+    private ArrayAdapter<String> logAdapter;
+    private ArrayAdapter<String> boardsAdapter;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
 
+        handler = new Handler(this);
+        statusLog = new StatusLog(MAX_LOG_LINES);
+        statusLog.setOnPendingListener(new Runnable() {
+            @Override
+            public void run() {
+                handler.sendEmptyMessageDelayed(MSG_DRAIN, FRAME_MS);
+            }
+        });
+
         dfu = new Dfu(Usb.USB_VENDOR_ID, Usb.USB_PRODUCT_ID);
-        dfu.setListener(this);
+        dfu.setListener(statusLog);
+        dfu.setCheckpointFile(new File(getFilesDir(), "write.checkpoint"));
+        dfu.setImageCache(imageCache);
+        engine = new DfuEngine(dfu);
+        gang = new GangProgrammer(getFilesDir());
+        gang.setListener(statusLog);
+        gang.setImageCache(imageCache);
+
+        catalog = new FirmwareCatalog(new File(Environment.getExternalStorageDirectory(), "Download"));
+        catalog.setListener(this);
+        catalog.start();
+        dfu.setFirmwareCatalog(catalog);
+
+        // maps the images stored by earlier runs before the first job needs them
+        engine.submit("loadImages", new DfuEngine.Task() {
+            @Override
+            public void run(Dfu dfu) throws Exception {
+                imageCache.setImageStore(ImageStore.open(new File(getFilesDir(), "images")));
+                imageCache.preload();
+            }
+        });
 
         status = findViewById(R.id.status);
+        logAdapter = new ArrayAdapter<>(this, android.R.layout.simple_list_item_1);
+        ListView log = findViewById(R.id.log);
+        log.setAdapter(logAdapter);
+        boardsAdapter = new ArrayAdapter<>(this, android.R.layout.simple_list_item_1);
+        ListView boards = findViewById(R.id.devices);
+        boards.setAdapter(boardsAdapter);
 
         Button massErase = findViewById(R.id.btnMassErase);
         massErase.setOnClickListener(new Button.OnClickListener() {
             @Override
             public void onClick(View v) {
-                dfu.massErase();
+                engine.submit("massErase", new DfuEngine.Task() {
+                    @Override
+                    public void run(Dfu dfu) {
+                        dfu.massErase();
+                    }
+                });
             }
         });
 
@@ -57,7 +126,20 @@ public class MainActivity extends Activity implements
         program.setOnClickListener(new Button.OnClickListener() {
             @Override
             public void onClick(View v) {
-                dfu.program();
+                engine.submit("program", new DfuEngine.Task() {
+                    @Override
+                    public void run(Dfu dfu) {
+                        dfu.program();
+                    }
+                });
+            }
+        });
+
+        Button programAll = findViewById(R.id.btnProgramAll);
+        programAll.setOnClickListener(new Button.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                programAll();
             }
         });
 
@@ -65,7 +147,12 @@ public class MainActivity extends Activity implements
         forceErase.setOnClickListener(new Button.OnClickListener() {
             @Override
             public void onClick(View v) {
-                dfu.fastOperations();
+                engine.submit("fastOperations", new DfuEngine.Task() {
+                    @Override
+                    public void run(Dfu dfu) {
+                        dfu.fastOperations();
+                    }
+                });
             }
         });
 
@@ -73,7 +160,33 @@ public class MainActivity extends Activity implements
         verify.setOnClickListener(new Button.OnClickListener() {
             @Override
             public void onClick(View v) {
-                dfu.verify();
+                engine.submit("verify", new DfuEngine.Task() {
+                    @Override
+                    public void run(Dfu dfu) {
+                        dfu.verify();
+                    }
+                });
+            }
+        });
+
+        Button dump = findViewById(R.id.btnDump);
+        dump.setOnClickListener(new Button.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                // next to the firmware files, but not in the folder watched by the catalog
+                File dir = new File(catalog.getDirectory(), "dumps");
+                String name = new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US).format(new Date());
+                final File file = new File(dir, "dump-" + name + ".dfu");
+                engine.submit("dump", new DfuEngine.Task() {
+                    @Override
+                    public void run(Dfu dfu) {
+                        if (!file.getParentFile().isDirectory() && !file.getParentFile().mkdirs()) {
+                            statusLog.append("Cannot create " + file.getParent() + "\n");
+                            return;
+                        }
+                        dfu.dump(file, true);
+                    }
+                });
             }
         });
 
@@ -90,7 +203,20 @@ public class MainActivity extends Activity implements
             @Override
             public void onClick(View v){
                 //Outputs.leaveDfuMode();
-                dfu.leaveDfuMode();
+                engine.submit("leaveDfuMode", new DfuEngine.Task() {
+                    @Override
+                    public void run(Dfu dfu) {
+                        dfu.leaveDfuMode();
+                    }
+                });
+            }
+        });
+
+        Button cancel = findViewById(R.id.btnCancel);
+        cancel.setOnClickListener(new Button.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                engine.cancelAll();
             }
         });
         Button releaseReset = findViewById(R.id.btnReleaseReset);
@@ -112,6 +238,7 @@ public class MainActivity extends Activity implements
         usb = new Usb(this);
         usb.setUsbManager((UsbManager) getSystemService(Context.USB_SERVICE));
         usb.setOnUsbChangeListener(this);
+        usb.getDeviceRegistry().setListener(this);
 
         // Handle two types of intents. Device attachment and permission
         registerReceiver(usb.getmUsbReceiver(), new IntentFilter(Usb.ACTION_USB_PERMISSION));
@@ -128,29 +255,178 @@ public class MainActivity extends Activity implements
     protected void onStop() {
         super.onStop();
 
-        /* USB */
-        dfu.setUsb(null);
-        usb.release();
+        /* USB, released on the worker once the running operation stopped */
+        engine.cancelAll();
+        final Usb released = usb;
+        engine.submit("release", new DfuEngine.Task() {
+            @Override
+            public void run(Dfu dfu) {
+                releaseGang();
+                dfu.setTransport(null);
+                released.release();
+            }
+        });
         try {
             unregisterReceiver(usb.getmUsbReceiver());
         } catch (IllegalArgumentException e) { /* Already unregistered */ }
     }
 
     @Override
-    public void onStatusMsg(String msg) {
-        // TODO since we are appending we should make the TextView scrollable like a log
-        status.append(msg);
+    protected void onDestroy() {
+        super.onDestroy();
+        catalog.stop();
+        // the release queued by onStop() still runs, then the worker thread ends
+        engine.close();
+        gang.clear();
     }
 
     @Override
     public boolean handleMessage(Message message) {
+        if (message.what == MSG_DRAIN) {
+            drainLog();
+            return true;
+        }
+        if (message.what == MSG_REFRESH_BOARDS) {
+            refreshBoards();
+            return true;
+        }
         return false;
     }
 
+    // programs every attached DFU device with its own session, the single device operations
+    // wait on the engine until all boards are done
+    private void programAll() {
+        final Usb primary = usb;
+        final List<UsbDevice> devices = primary.getUsbDevices(Usb.USB_VENDOR_ID, Usb.USB_PRODUCT_ID);
+        engine.submit("programAll", new DfuEngine.Task() {
+            @Override
+            public void run(Dfu dfu) throws Exception {
+                releaseGang();
+                for (UsbDevice device : devices) {
+                    DfuTransport transport = openTransport(primary, device);
+                    if (transport == null) {
+                        continue;
+                    }
+                    // named by serial, so a board keeps its checkpoint when it enumerates on another path
+                    DeviceRegistry.Entry entry = primary.getDeviceRegistry().get(device);
+                    gang.addBoard(entry != null ? entry.getKey() : device.getDeviceName(), transport);
+                }
+                File file = new File(dfu.selectFirmwareFile());
+                gang.programAll(imageCache.open(file, Dfu.mInternalFlashStartAddress));
+                try {
+                    gang.awaitAll();
+                } finally {
+                    gang.cancelAll();
+                    statusLog.append(gang.getSummary() + "\n");
+                }
+            }
+        });
+        refreshBoards();
+    }
+
+    // the connection of the primary device or a session of its own, null if there is none
+    private DfuTransport openTransport(Usb primary, UsbDevice device) {
+        if (device.equals(primary.getUsbDevice()) && primary.isConnected()) {
+            return primary;
+        }
+        if (!primary.hasPermission(device)) {
+            statusLog.append(device.getDeviceName() + ": no permission, reconnect the board\n");
+            return null;
+        }
+        Usb session = primary.openSession(device);
+        if (session == null) {
+            statusLog.append(device.getDeviceName() + ": cannot be opened\n");
+            return null;
+        }
+        synchronized (gangSessions) {
+            gangSessions.add(session);
+        }
+        return session;
+    }
+
+    // engine thread
+    private void releaseGang() {
+        gang.clear();
+        synchronized (gangSessions) {
+            for (Usb session : gangSessions) {
+                session.release();
+            }
+            gangSessions.clear();
+        }
+    }
+
+    // state of every board, refreshed while they are programmed
+    private void refreshBoards() {
+        boardsAdapter.setNotifyOnChange(false);
+        boardsAdapter.clear();
+        for (GangProgrammer.Board board : gang.getBoards()) {
+            boardsAdapter.add(board.toString());
+        }
+        boardsAdapter.notifyDataSetChanged();
+        if (engine.isBusy() || gang.isBusy()) {
+            handler.removeMessages(MSG_REFRESH_BOARDS);
+            handler.sendEmptyMessageDelayed(MSG_REFRESH_BOARDS, BOARDS_REFRESH_MS);
+        }
+    }
+
+    // appends the messages since the last frame in one batch, the oldest lines are dropped
+    private void drainLog() {
+        batch.clear();
+        if (statusLog.drain(batch) == 0) {
+            return;
+        }
+        logAdapter.setNotifyOnChange(false);
+        for (String msg : batch) {
+            logAdapter.add(msg.trim());
+        }
+        while (logAdapter.getCount() > MAX_LOG_LINES) {
+            logAdapter.remove(logAdapter.getItem(0));
+        }
+        logAdapter.notifyDataSetChanged();
+    }
+
+    @Override
+    public void onDeviceAttached(DeviceRegistry.Entry entry, boolean reappeared) {
+        if (reappeared) {
+            statusLog.append("Device " + entry + " is back\n");
+        }
+    }
+
+    @Override
+    public void onDeviceDetached(DeviceRegistry.Entry entry) {
+        statusLog.append("Device " + entry.getKey() + " detached\n");
+    }
+
+    // a board of the gang that was reset or reconnected continues from its checkpoint
+    @Override
+    public void onDeviceGranted(DeviceRegistry.Entry entry) {
+        GangProgrammer.Board board = gang.getBoard(entry.getKey());
+        if (board == null || board.isBusy() || board.getState() == GangProgrammer.State.PASSED) {
+            return;
+        }
+        DfuTransport transport = openTransport(usb, entry.getDevice());
+        if (transport != null && gang.resume(entry.getKey(), transport)) {
+            statusLog.append("Device " + entry.getKey() + " resumed\n");
+            refreshBoards();
+        }
+    }
+
+    // catalog worker or file observer thread
+    @Override
+    public void onCatalogChanged(FirmwareCatalog catalog) {
+        statusLog.append("Firmware files: " + catalog.size() + "\n");
+    }
+
     @Override
     public void onUsbConnected() {
         final String deviceInfo = usb.getDeviceInfo(usb.getUsbDevice());
         status.setText(deviceInfo);
-        dfu.setUsb(usb);
+        final Usb connected = usb;
+        engine.submit("connect", new DfuEngine.Task() {
+            @Override
+            public void run(Dfu dfu) {
+                dfu.setTransport(connected);
+            }
+        });
     }
 }
@@ -0,0 +1,206 @@
+/*
+ * Copyright 2015 Umbrela Smart, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package co.umbrela.tools.stm32dfuprogrammer;
+
+import android.nfc.FormatException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Sector table of a DfuSe memory, as described by its interface string descriptor.
+ * ie. "@Internal Flash  /0x08000000/04*016Kg,01*064Kg,07*128Kg"
+ * Refer to ST document UM0424 for more details on the descriptor format
+ */
+public class MemoryLayout {
+
+    // sector type letters 'a'..'g' are a bitmask offset from 'a' - 1
+    private static final int TYPE_READABLE = 0x01;
+    private static final int TYPE_ERASABLE = 0x02;
+    private static final int TYPE_WRITABLE = 0x04;
+
+    private final String name;
+    private final List<Sector> sectors;
+
+    public static class Sector {
+        public final int address;
+        public final int size;
+        private final int type;
+
+        Sector(int address, int size, int type) {
+            this.address = address;
+            this.size = size;
+            this.type = type;
+        }
+
+        public int getEndAddress() {
+            return address + size;
+        }
+
+        public boolean isReadable() {
+            return (type & TYPE_READABLE) != 0;
+        }
+
+        public boolean isErasable() {
+            return (type & TYPE_ERASABLE) != 0;
+        }
+
+        public boolean isWritable() {
+            return (type & TYPE_WRITABLE) != 0;
+        }
+
+        boolean contains(int addr) {
+            return unsigned(addr) >= unsigned(address) && unsigned(addr) < unsigned(address) + size;
+        }
+
+        @Override
+        public String toString() {
+            return "0x" + Integer.toHexString(address) + " (" + (size / 1024) + " KB)";
+        }
+    }
+
+    private MemoryLayout(String name, List<Sector> sectors) {
+        this.name = name;
+        this.sectors = Collections.unmodifiableList(sectors);
+    }
+
+    public static MemoryLayout parse(String descriptor) throws FormatException {
+
+        if (descriptor == null || !descriptor.startsWith("@")) {
+            throw new FormatException("Memory descriptor must start with '@'");
+        }
+        // trailing NUL characters are left over from a fixed size descriptor buffer
+        int end = descriptor.indexOf(0);
+        String[] fields = (end < 0 ? descriptor : descriptor.substring(0, end)).split("/");
+        if (fields.length < 3 || (fields.length % 2) == 0) {
+            throw new FormatException("Memory descriptor is incomplete: " + descriptor);
+        }
+
+        List<Sector> sectors = new ArrayList<>();
+
+        // a descriptor may hold several segments, each one is "/<start address>/<sector groups>"
+        for (int i = 1; i < fields.length; i += 2) {
+            int address;
+            try {
+                address = (int) Long.parseLong(fields[i].trim().substring(2), 16);    // skip '0x'
+            } catch (RuntimeException e) {
+                throw new FormatException("Invalid segment address: " + fields[i]);
+            }
+
+            for (String group : fields[i + 1].split(",")) {
+                group = group.trim();
+                int star = group.indexOf('*');
+                if (star <= 0 || group.length() < star + 3) {
+                    throw new FormatException("Invalid sector group: " + group);
+                }
+                int count;
+                int size;
+                try {
+                    count = Integer.parseInt(group.substring(0, star));
+                    size = Integer.parseInt(group.substring(star + 1, group.length() - 2));
+                } catch (NumberFormatException e) {
+                    throw new FormatException("Invalid sector group: " + group);
+                }
+                switch (group.charAt(group.length() - 2)) {
+                    case 'K':
+                        size *= 1024;
+                        break;
+                    case 'M':
+                        size *= 1024 * 1024;
+                        break;
+                    case ' ':
+                    case 'B':
+                        break;
+                    default:
+                        throw new FormatException("Invalid sector size unit: " + group);
+                }
+                int type = group.charAt(group.length() - 1) - 'a' + 1;
+
+                for (int n = 0; n < count; n++) {
+                    sectors.add(new Sector(address, size, type));
+                    address += size;
+                }
+            }
+        }
+        return new MemoryLayout(fields[0].substring(1).trim(), sectors);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public List<Sector> getSectors() {
+        return sectors;
+    }
+
+    public int getStartAddress() {
+        return sectors.isEmpty() ? 0 : sectors.get(0).address;
+    }
+
+    // total size of all sectors
+    public int getSize() {
+        int size = 0;
+        for (Sector sector : sectors) {
+            size += sector.size;
+        }
+        return size;
+    }
+
+    public Sector findSector(int address) {
+        for (Sector sector : sectors) {
+            if (sector.contains(address)) {
+                return sector;
+            }
+        }
+        return null;
+    }
+
+    // returns all sectors touched by the range, throws if part of the range is outside of this memory
+    public List<Sector> getSectors(int address, int length) throws FormatException {
+
+        List<Sector> covered = new ArrayList<>();
+        if (length <= 0) {
+            return covered;
+        }
+        long start = unsigned(address);
+        long end = start + length;
+        long next = start;
+
+        for (Sector sector : sectors) {
+            long sectorStart = unsigned(sector.address);
+            long sectorEnd = sectorStart + sector.size;
+            if (sectorEnd <= start || sectorStart >= end) {
+                continue;
+            }
+            if (sectorStart > next) {
+                break;  // gap between segments
+            }
+            covered.add(sector);
+            next = sectorEnd;
+        }
+        if (next < end) {
+            throw new FormatException("Range 0x" + Integer.toHexString(address) + " + " + length +
+                    " Bytes is outside of " + name);
+        }
+        return covered;
+    }
+
+    private static long unsigned(int value) {
+        return value & 0xFFFFFFFFL;
+    }
+}
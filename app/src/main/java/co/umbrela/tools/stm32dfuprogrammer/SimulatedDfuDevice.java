@@ -0,0 +1,489 @@
+/*
+ * Copyright 2015 Umbrela Smart, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package co.umbrela.tools.stm32dfuprogrammer;
+
+import android.nfc.FormatException;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * STM32F4 system memory bootloader in plain Java, so the protocol code can be run and its
+ * throughput measured without a device.
+ * Models the DFU states, the DfuSe commands (0x21 set address, 0x41 erase, 0x92 unprotect),
+ * the flash sectors of the Internal Flash descriptor, the option bytes and bwPollTimeout.
+ * Each operation costs a configurable latency. By default the time is only accounted on a
+ * simulated clock, which makes measurements deterministic; in real time mode the device also
+ * sleeps and stays busy until the latency elapsed. The host still sleeps for the reported
+ * bwPollTimeout, lower latencies make a simulated run faster.
+ */
+public class SimulatedDfuDevice implements DfuTransport {
+
+    public enum Operation {
+        TRANSFER,           // round trip of a control transfer
+        TRANSFER_PER_KB,    // data stage of a control transfer
+        COMMAND,            // set address pointer
+        ERASE_SECTOR,       // per 16 KB of the sector
+        MASS_ERASE,
+        PROGRAM_PER_KB
+    }
+
+    // bStatus codes of the DFU spec
+    public static final int STATUS_OK = 0x00;
+    public static final int STATUS_ERR_TARGET = 0x01;
+    public static final int STATUS_ERR_ADDRESS = 0x08;
+    public static final int STATUS_ERR_STALLEDPKT = 0x0F;
+
+    private final static int USB_DIR_IN = 128;
+    private final static int DFU_RequestType = 0x21;
+    private final static int DFU_DNLOAD = 0x01;
+    private final static int DFU_UPLOAD = 0x02;
+    private final static int DFU_GETSTATUS = 0x03;
+    private final static int DFU_CLRSTATUS = 0x04;
+    private final static int DFU_GETSTATE = 0x05;
+    private final static int DFU_ABORT = 0x06;
+    private final static int USB_REQ_GET_DESCRIPTOR = 0x06;
+    private final static int FLASH_STRING_DESCRIPTOR = 0x0304;
+
+    private static final int OPTION_BYTES_SIZE = 16;
+    private static final int OPT_RDP_OFF = 0xAA;
+
+    private final String flashDescriptor;
+    private final MemoryLayout layout;
+    private final byte[] flash;
+    private final byte[] optionBytes = new byte[OPTION_BYTES_SIZE];
+    private final int deviceVersion;
+    private final int[] latency = new int[Operation.values().length];   // us
+
+    private boolean connected = true;
+    private boolean realTime;
+    private int state = DfuStateMachine.STATE_DFU_IDLE;
+    private int status = STATUS_OK;
+    private int addressPointer;
+    private byte[] pending;             // DNLOAD waiting for the GETSTATUS that executes it
+    private int pendingBlock;
+    private int result;                 // status of the operation the device is busy with
+    private long busyUntil;             // time the device leaves dfuDNBUSY
+    private long clock;                 // simulated time in us
+    private long realStart = System.nanoTime();
+    private long transfers;
+    private final TransferStats stats = new TransferStats();
+
+    // STM32F405 with 1 MB flash and bootloader version 2.2
+    public SimulatedDfuDevice() {
+        this(Dfu.mInternalFlashString, 0x2200);
+    }
+
+    public SimulatedDfuDevice(String flashDescriptor, int deviceVersion) {
+        try {
+            this.layout = MemoryLayout.parse(flashDescriptor);
+        } catch (FormatException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+        this.flashDescriptor = flashDescriptor;
+        this.flash = new byte[layout.getSize()];
+        this.deviceVersion = deviceVersion;
+        Arrays.fill(flash, (byte) 0xFF);
+        Arrays.fill(optionBytes, (byte) 0xFF);
+        optionBytes[1] = (byte) OPT_RDP_OFF;
+
+        // full speed USB and typical STM32F4 flash timings at x32 parallelism
+        setLatency(Operation.TRANSFER, 1000);
+        setLatency(Operation.TRANSFER_PER_KB, 1000);
+        setLatency(Operation.COMMAND, 100);
+        setLatency(Operation.ERASE_SECTOR, 200000);
+        setLatency(Operation.MASS_ERASE, 8000000);
+        setLatency(Operation.PROGRAM_PER_KB, 4000);
+    }
+
+    public void setLatency(Operation operation, int micros) {
+        if (micros < 0) throw new IllegalArgumentException("Latency is negative");
+        latency[operation.ordinal()] = micros;
+    }
+
+    // sleeps for the latencies instead of only accounting them
+    public synchronized void setRealTime(boolean realTime) {
+        this.realTime = realTime;
+        resetClock();
+    }
+
+    public synchronized void setReadProtected(boolean readProtected) {
+        optionBytes[1] = (byte) (readProtected ? 0x00 : OPT_RDP_OFF);
+    }
+
+    public synchronized boolean isReadProtected() {
+        return (optionBytes[1] & 0xFF) != OPT_RDP_OFF;
+    }
+
+    // copy of the device memory, flash or option bytes
+    public synchronized byte[] readMemory(int address, int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = read(address + i);
+        }
+        return data;
+    }
+
+    // the device resets after leaving DFU mode or a read protection change, this plugs it in again
+    public synchronized void reconnect() {
+        connected = true;
+        state = DfuStateMachine.STATE_DFU_IDLE;
+        status = STATUS_OK;
+        pending = null;
+    }
+
+    // time in us since the device was created or the clock was reset
+    public synchronized long getElapsedMicros() {
+        return now();
+    }
+
+    public synchronized long getTransferCount() {
+        return transfers;
+    }
+
+    public synchronized void resetClock() {
+        clock = 0;
+        realStart = System.nanoTime();
+        busyUntil = 0;
+        transfers = 0;
+    }
+
+    public MemoryLayout getLayout() {
+        return layout;
+    }
+
+    @Override
+    public synchronized boolean isConnected() {
+        return connected;
+    }
+
+    @Override
+    public int getDeviceVersion() {
+        return deviceVersion;
+    }
+
+    @Override
+    public synchronized boolean release() {
+        boolean wasConnected = connected;
+        connected = false;
+        return wasConnected;
+    }
+
+    // latencies in simulated time
+    @Override
+    public TransferStats getTransferStats() {
+        return stats;
+    }
+
+    @Override
+    public int controlTransfer(int requestType, int request, int value, int index, byte[] buffer, int length, int timeout) {
+        return controlTransfer(requestType, request, value, index, buffer, 0, length, timeout);
+    }
+
+    // the device side works on a copy of the data stage, the host side is not affected by the offset
+    @Override
+    public synchronized int controlTransfer(int requestType, int request, int value, int index, byte[] buffer, int offset, int length, int timeout) {
+        if (offset != 0) {
+            byte[] data = new byte[length];
+            System.arraycopy(buffer, offset, data, 0, length);
+            int transferred = controlTransfer(requestType, request, value, index, data, 0, length, timeout);
+            if (transferred > 0 && (requestType & USB_DIR_IN) != 0) {
+                System.arraycopy(data, 0, buffer, offset, transferred);
+            }
+            return transferred;
+        }
+        long start = now();
+        int transferred = transfer(requestType, request, value, buffer, length);
+        stats.record(requestType, request, (now() - start) * 1000, transferred, timeout);
+        return transferred;
+    }
+
+    private int transfer(int requestType, int request, int value, byte[] buffer, int length) {
+
+        if (!connected) {
+            return -1;
+        }
+        transfers++;
+        elapse(latency[Operation.TRANSFER.ordinal()] + latency[Operation.TRANSFER_PER_KB.ordinal()] * length / 1024);
+
+        if (requestType == USB_DIR_IN && request == USB_REQ_GET_DESCRIPTOR) {
+            return value == FLASH_STRING_DESCRIPTOR ? stringDescriptor(buffer, length) : -1;
+        }
+        if ((requestType & ~USB_DIR_IN) != DFU_RequestType) {
+            return -1;
+        }
+        switch (request) {
+            case DFU_DNLOAD:
+                return download(value, buffer, length);
+            case DFU_UPLOAD:
+                return upload(value, buffer, length);
+            case DFU_GETSTATUS:
+                return getStatus(buffer, length);
+            case DFU_CLRSTATUS:
+                if (state != DfuStateMachine.STATE_DFU_ERROR) {
+                    return stall();
+                }
+                state = DfuStateMachine.STATE_DFU_IDLE;
+                status = STATUS_OK;
+                return 0;
+            case DFU_GETSTATE:
+                if (isBusy() || length < 1) {
+                    return stall();
+                }
+                buffer[0] = (byte) state;
+                return 1;
+            case DFU_ABORT:
+                if (state != DfuStateMachine.STATE_DFU_IDLE && state != DfuStateMachine.STATE_DFU_DOWNLOAD_IDLE &&
+                        state != DfuStateMachine.STATE_DFU_UPLOAD_IDLE) {
+                    return stall();
+                }
+                state = DfuStateMachine.STATE_DFU_IDLE;
+                return 0;
+            default:
+                return stall();
+        }
+    }
+
+    private int download(int blockNum, byte[] buffer, int length) {
+        if (state != DfuStateMachine.STATE_DFU_IDLE && state != DfuStateMachine.STATE_DFU_DOWNLOAD_IDLE) {
+            return stall();
+        }
+        if (length == 0 && state == DfuStateMachine.STATE_DFU_IDLE) {
+            return stall();     // nothing to manifest
+        }
+        pending = Arrays.copyOf(buffer == null ? new byte[0] : buffer, length);
+        pendingBlock = blockNum;
+        state = DfuStateMachine.STATE_DFU_DOWNLOAD_SYNC;
+        return length;
+    }
+
+    private int upload(int blockNum, byte[] buffer, int length) {
+        if (state != DfuStateMachine.STATE_DFU_IDLE && state != DfuStateMachine.STATE_DFU_UPLOAD_IDLE) {
+            return stall();
+        }
+        if (blockNum == 0) {
+            // supported commands
+            byte[] commands = {0x00, 0x21, 0x41, (byte) 0x92};
+            int n = Math.min(length, commands.length);
+            System.arraycopy(commands, 0, buffer, 0, n);
+            state = DfuStateMachine.STATE_DFU_IDLE;
+            return n;
+        }
+        if (blockNum == 1 || isReadProtected()) {
+            return stall();
+        }
+        int address = addressPointer + (blockNum - 2) * length;
+        if (!isReadable(address, length)) {
+            return stall();
+        }
+        for (int i = 0; i < length; i++) {
+            buffer[i] = read(address + i);
+        }
+        state = DfuStateMachine.STATE_DFU_UPLOAD_IDLE;
+        return length;
+    }
+
+    private int getStatus(byte[] buffer, int length) {
+        if (length < 6) {
+            return stall();
+        }
+        int pollTimeout = 0;
+        if (state == DfuStateMachine.STATE_DFU_DOWNLOAD_SYNC) {
+            if (pending.length == 0) {
+                // leave DFU mode, the device resets to the application
+                state = DfuStateMachine.STATE_DFU_MANIFEST;
+                writeStatus(buffer, 0);
+                connected = false;
+                return 6;
+            }
+            // the operation starts with this request, it is reported done after bwPollTimeout
+            int busyTime = operationTime();
+            busyUntil = now() + busyTime;
+            result = pendingBlock == 0 ? executeCommand() : program();
+            pending = null;
+            state = DfuStateMachine.STATE_DFU_DOWNLOAD_BUSY;
+            pollTimeout = (busyTime + 999) / 1000;
+        } else if (state == DfuStateMachine.STATE_DFU_DOWNLOAD_BUSY) {
+            if (realTime && now() < busyUntil) {
+                pollTimeout = (int) ((busyUntil - now() + 999) / 1000);
+            } else {
+                // without real time the host is trusted to have waited bwPollTimeout
+                clock = Math.max(clock, busyUntil);
+                if (result == STATUS_OK) {
+                    state = DfuStateMachine.STATE_DFU_DOWNLOAD_IDLE;
+                } else {
+                    state = DfuStateMachine.STATE_DFU_ERROR;
+                    status = result;
+                }
+            }
+        }
+        writeStatus(buffer, pollTimeout);
+        return 6;
+    }
+
+    private void writeStatus(byte[] buffer, int pollTimeout) {
+        buffer[0] = (byte) status;
+        buffer[1] = (byte) pollTimeout;
+        buffer[2] = (byte) (pollTimeout >> 8);
+        buffer[3] = (byte) (pollTimeout >> 16);
+        buffer[4] = (byte) state;
+        buffer[5] = 0;
+    }
+
+    // time the pending DNLOAD keeps the device busy
+    private int operationTime() {
+        if (pendingBlock == 0 && pending.length > 0) {
+            int command = pending[0] & 0xFF;
+            if (command == 0x41 && pending.length == 1) {
+                return latency[Operation.MASS_ERASE.ordinal()];
+            }
+            if (command == 0x41 && pending.length == 5) {
+                MemoryLayout.Sector sector = layout.findSector(commandAddress());
+                int size = sector != null ? sector.size : 16 * 1024;
+                return (int) ((long) latency[Operation.ERASE_SECTOR.ordinal()] * size / (16 * 1024));
+            }
+            if (command == 0x92) {
+                return latency[Operation.MASS_ERASE.ordinal()];
+            }
+            return latency[Operation.COMMAND.ordinal()];
+        }
+        return latency[Operation.PROGRAM_PER_KB.ordinal()] * pending.length / 1024;
+    }
+
+    private int executeCommand() {
+        int command = pending[0] & 0xFF;
+        switch (command) {
+            case 0x21:
+                if (pending.length != 5) {
+                    return STATUS_ERR_STALLEDPKT;
+                }
+                if (isReadProtected() && layout.findSector(commandAddress()) != null) {
+                    return STATUS_ERR_TARGET;
+                }
+                addressPointer = commandAddress();
+                return STATUS_OK;
+            case 0x41:
+                if (isReadProtected()) {
+                    return STATUS_ERR_TARGET;
+                }
+                if (pending.length == 1) {
+                    Arrays.fill(flash, (byte) 0xFF);
+                    return STATUS_OK;
+                }
+                MemoryLayout.Sector sector = pending.length == 5 ? layout.findSector(commandAddress()) : null;
+                if (sector == null || !sector.isErasable()) {
+                    return STATUS_ERR_ADDRESS;
+                }
+                int offset = sector.address - layout.getStartAddress();
+                Arrays.fill(flash, offset, offset + sector.size, (byte) 0xFF);
+                return STATUS_OK;
+            case 0x92:
+                // removing the read protection mass erases the flash and resets the device
+                Arrays.fill(flash, (byte) 0xFF);
+                optionBytes[1] = (byte) OPT_RDP_OFF;
+                connected = false;
+                return STATUS_OK;
+            default:
+                return STATUS_ERR_STALLEDPKT;
+        }
+    }
+
+    // writes the pending block at the address derived from wBlockNum and wLength
+    private int program() {
+        if (pendingBlock == 1 || isReadProtected()) {
+            return STATUS_ERR_TARGET;
+        }
+        int address = addressPointer + (pendingBlock - 2) * pending.length;
+        if (isOptionBytes(address, pending.length)) {
+            System.arraycopy(pending, 0, optionBytes, address - Dfu.mOptionByteStartAddress, pending.length);
+            connected = false;      // option byte changes reset the device
+            return STATUS_OK;
+        }
+        if (!isFlash(address, pending.length)) {
+            return STATUS_ERR_ADDRESS;
+        }
+        int offset = address - layout.getStartAddress();
+        for (int i = 0; i < pending.length; i++) {
+            flash[offset + i] &= pending[i];    // programming can only clear bits
+        }
+        return STATUS_OK;
+    }
+
+    private int commandAddress() {
+        return (pending[1] & 0xFF) | (pending[2] & 0xFF) << 8 | (pending[3] & 0xFF) << 16 | (pending[4] & 0xFF) << 24;
+    }
+
+    private boolean isFlash(int address, int length) {
+        long start = (address & 0xFFFFFFFFL) - (layout.getStartAddress() & 0xFFFFFFFFL);
+        return start >= 0 && start + length <= flash.length;
+    }
+
+    private boolean isOptionBytes(int address, int length) {
+        long start = (address & 0xFFFFFFFFL) - (Dfu.mOptionByteStartAddress & 0xFFFFFFFFL);
+        return start >= 0 && start + length <= OPTION_BYTES_SIZE;
+    }
+
+    private boolean isReadable(int address, int length) {
+        return isFlash(address, length) || isOptionBytes(address, length);
+    }
+
+    private byte read(int address) {
+        if (isFlash(address, 1)) {
+            return flash[address - layout.getStartAddress()];
+        }
+        if (isOptionBytes(address, 1)) {
+            return optionBytes[address - Dfu.mOptionByteStartAddress];
+        }
+        return 0;
+    }
+
+    private int stringDescriptor(byte[] buffer, int length) {
+        byte[] string = flashDescriptor.getBytes(Charset.forName("UTF-16LE"));
+        int descriptorLength = Math.min(string.length + 2, 255);
+        buffer[0] = (byte) descriptorLength;
+        buffer[1] = 0x03;   // string descriptor
+        int n = Math.min(descriptorLength, length);
+        System.arraycopy(string, 0, buffer, 2, Math.max(n - 2, 0));
+        return n;
+    }
+
+    private boolean isBusy() {
+        return state == DfuStateMachine.STATE_DFU_DOWNLOAD_BUSY || state == DfuStateMachine.STATE_DFU_MANIFEST;
+    }
+
+    private int stall() {
+        state = DfuStateMachine.STATE_DFU_ERROR;
+        status = STATUS_ERR_STALLEDPKT;
+        return -1;
+    }
+
+    private long now() {
+        return realTime ? (System.nanoTime() - realStart) / 1000 : clock;
+    }
+
+    private void elapse(long micros) {
+        if (!realTime) {
+            clock += micros;
+        } else if (micros > 0) {
+            try {
+                Thread.sleep(micros / 1000, (int) (micros % 1000) * 1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
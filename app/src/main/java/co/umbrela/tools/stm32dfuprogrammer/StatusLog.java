@@ -0,0 +1,129 @@
+/*
+ * Copyright 2015 Umbrela Smart, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package co.umbrela.tools.stm32dfuprogrammer;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded ring of status messages. Any thread appends without locking, a single consumer,
+ * the UI thread, drains it in batches. When the consumer falls behind by more than the
+ * capacity, the oldest messages are overwritten and counted as dropped.
+ */
+public class StatusLog implements Dfu.DfuListener {
+
+    // a message with its sequence, published in one write so they cannot be torn apart
+    private static final class Message {
+        final long sequence;
+        final String text;
+
+        Message(long sequence, String text) {
+            this.sequence = sequence;
+            this.text = text;
+        }
+    }
+
+    private final int mask;
+    private final AtomicReferenceArray<Message> slots;
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicBoolean pending = new AtomicBoolean();
+    private volatile Runnable onPending;
+    private long tail;                          // next sequence to drain, consumer only
+    private long dropped;
+
+    // capacity is rounded up to a power of two
+    public StatusLog(int capacity) {
+        if (capacity <= 0) throw new IllegalArgumentException("Capacity must be positive");
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        mask = size - 1;
+        slots = new AtomicReferenceArray<>(size);
+    }
+
+    // run by the first append after a drain, ie. to schedule the next drain
+    public void setOnPendingListener(Runnable onPending) {
+        this.onPending = onPending;
+    }
+
+    @Override
+    public void onStatusMsg(String msg) {
+        append(msg);
+    }
+
+    public void append(String msg) {
+        long sequence = head.getAndIncrement();
+        int slot = (int) (sequence & mask);
+        Message message = new Message(sequence, msg);
+        // the sequence of a slot only moves forward, a producer lapped by another one a full ring
+        // ahead loses its message, which the consumer counts as dropped
+        for (;;) {
+            Message current = slots.get(slot);
+            if (current != null && current.sequence > sequence) {
+                break;
+            }
+            if (slots.compareAndSet(slot, current, message)) {
+                break;
+            }
+        }
+
+        Runnable listener = onPending;
+        if (listener != null && pending.compareAndSet(false, true)) {
+            listener.run();
+        }
+    }
+
+    // moves the published messages into batch in order, returns the number of messages added
+    public int drain(List<String> batch) {
+        pending.set(false);
+        long end = head.get();
+        if (end - tail > mask + 1) {
+            dropped += end - tail - (mask + 1);
+            tail = end - (mask + 1);
+        }
+        int count = 0;
+        while (tail < end) {
+            Message message = slots.get((int) (tail & mask));
+            if (message == null || message.sequence < tail) {
+                break;          // still being written, picked up by the next drain
+            }
+            if (message.sequence == tail) {
+                batch.add(message.text);
+                count++;
+            } else {
+                dropped++;      // overwritten by a producer that lapped the consumer
+            }
+            tail++;
+        }
+        if (tail < end) {
+            pending.set(true);
+            Runnable listener = onPending;
+            if (listener != null) {
+                listener.run();
+            }
+        }
+        return count;
+    }
+
+    // messages overwritten before they were drained
+    public long getDropped() {
+        return dropped;
+    }
+}
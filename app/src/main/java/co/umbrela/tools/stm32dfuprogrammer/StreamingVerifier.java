@@ -0,0 +1,143 @@
+/*
+ * Copyright 2015 Umbrela Smart, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package co.umbrela.tools.stm32dfuprogrammer;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Compares uploaded blocks with the image on its own thread, so the comparison of one
+ * block overlaps the USB upload of the next. Only a few block buffers are in flight,
+ * memory use does not depend on the image size.
+ */
+class StreamingVerifier implements Runnable {
+
+    private static final int BUFFERS = 3;
+
+    // a block buffer with the position of its data, recycled through the free queue
+    private static class Item {
+        final byte[] block;
+        WritePlan.Run run;
+        int runOffset;
+        int length;
+
+        Item(byte[] block) {
+            this.block = block;
+        }
+    }
+
+    private static final Item END = new Item(null);
+
+    private final VerifyReport report;
+    private final boolean stopAtFirstMismatch;
+    private final BlockingQueue<Item> free = new ArrayBlockingQueue<>(BUFFERS);
+    private final BlockingQueue<Item> pending = new ArrayBlockingQueue<>(BUFFERS + 1);    // the items and END
+    private final byte[] expected;
+    private final Thread thread;
+    private volatile boolean aborted;
+    private volatile RuntimeException failure;
+
+    StreamingVerifier(VerifyReport report, boolean stopAtFirstMismatch, int blockSize) {
+        this.report = report;
+        this.stopAtFirstMismatch = stopAtFirstMismatch;
+        for (int i = 0; i < BUFFERS; i++) {
+            free.add(new Item(new byte[blockSize]));
+        }
+        expected = new byte[blockSize];
+        thread = new Thread(this, "verify");
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    // copies the block and queues it for comparison, returns false once the verification was aborted
+    boolean submit(WritePlan.Run run, int runOffset, byte[] block, int length) throws InterruptedException {
+        if (aborted) {
+            return false;
+        }
+        Item item = free.take();
+        System.arraycopy(block, 0, item.block, 0, length);
+        item.run = run;
+        item.runOffset = runOffset;
+        item.length = length;
+        pending.put(item);
+        return !aborted;
+    }
+
+    boolean isAborted() {
+        return aborted;
+    }
+
+    // waits until all queued blocks are compared
+    void finish() throws InterruptedException {
+        pending.put(END);
+        thread.join();
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                Item item = pending.take();
+                if (item == END) {
+                    return;
+                }
+                if (!aborted) {
+                    compare(item);
+                }
+                free.put(item);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            failure = e;
+            aborted = true;
+            free.clear();   // unblock submit()
+            for (int i = 0; i < BUFFERS; i++) {
+                free.offer(new Item(new byte[expected.length]));
+            }
+        }
+    }
+
+    private void compare(Item item) {
+        int address = item.run.address + item.runOffset;
+        report.addChecked(address, item.length);
+        if (item.run.matches(item.runOffset, item.block, 0, item.length)) {
+            return;
+        }
+        // find the differing byte ranges inside the block
+        item.run.copy(item.runOffset, expected, 0, item.length);
+        int start = -1;
+        for (int i = 0; i <= item.length; i++) {
+            boolean differs = i < item.length && expected[i] != item.block[i];
+            if (differs && start < 0) {
+                start = i;
+            } else if (!differs && start >= 0) {
+                report.addMismatch(address + start, i - start);
+                start = -1;
+            }
+        }
+        if (stopAtFirstMismatch) {
+            aborted = true;
+            report.setAborted();
+        }
+    }
+}
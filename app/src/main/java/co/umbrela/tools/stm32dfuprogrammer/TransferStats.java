@@ -0,0 +1,213 @@
+/*
+ * Copyright 2015 Umbrela Smart, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package co.umbrela.tools.stm32dfuprogrammer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Latency histograms of the control transfers per request type, with counts of failed and
+ * timed out transfers. Recording does not allocate: each request type has a fixed array of
+ * buckets, four per power of two microseconds, so a percentile is accurate to about 25%.
+ */
+public class TransferStats {
+
+    public enum Request {
+        DNLOAD, UPLOAD, GETSTATUS, CLRSTATUS, GETSTATE, ABORT, GET_DESCRIPTOR, OTHER;
+
+        private static final int DFU_RequestType = 0x21;
+        private static final int USB_TYPE_MASK = 0x60;      // standard, class or vendor request
+
+        static Request of(int requestType, int request) {
+            if ((requestType & USB_TYPE_MASK) == 0) {
+                return request == 0x06 ? GET_DESCRIPTOR : OTHER;
+            }
+            if ((requestType & 0x7F) != DFU_RequestType) {
+                return OTHER;
+            }
+            switch (request) {
+                case 0x01:
+                    return DNLOAD;
+                case 0x02:
+                    return UPLOAD;
+                case 0x03:
+                    return GETSTATUS;
+                case 0x04:
+                    return CLRSTATUS;
+                case 0x05:
+                    return GETSTATE;
+                case 0x06:
+                    return ABORT;
+                default:
+                    return OTHER;
+            }
+        }
+    }
+
+    private static final int BUCKETS = 128;     // up to 2^32 us
+
+    // recorded transfers of one request type, the snapshot is immutable
+    public static class Histogram {
+        public final Request request;
+        private final long[] buckets;
+        private long count;
+        private long failures;
+        private long timeouts;
+        private long totalMicros;
+        private long maxMicros;
+
+        private Histogram(Request request) {
+            this.request = request;
+            this.buckets = new long[BUCKETS];
+        }
+
+        private Histogram(Histogram other) {
+            this.request = other.request;
+            this.buckets = other.buckets.clone();
+            this.count = other.count;
+            this.failures = other.failures;
+            this.timeouts = other.timeouts;
+            this.totalMicros = other.totalMicros;
+            this.maxMicros = other.maxMicros;
+        }
+
+        private void record(long micros, boolean failed, boolean timedOut) {
+            buckets[bucket(micros)]++;
+            count++;
+            totalMicros += micros;
+            maxMicros = Math.max(maxMicros, micros);
+            if (failed) {
+                failures++;
+            }
+            if (timedOut) {
+                timeouts++;
+            }
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getFailures() {
+            return failures;
+        }
+
+        public long getTimeouts() {
+            return timeouts;
+        }
+
+        public long getTotalMicros() {
+            return totalMicros;
+        }
+
+        public long getMaxMicros() {
+            return maxMicros;
+        }
+
+        // upper bound of the bucket holding the percentile, 0 < percentile <= 100
+        public long getPercentile(double percentile) {
+            if (count == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(count * percentile / 100);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += buckets[i];
+                if (seen >= Math.max(rank, 1)) {
+                    return Math.min(upperBound(i), maxMicros);
+                }
+            }
+            return maxMicros;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(request).append(": ").append(count).append("x, total ").append(totalMicros / 1000).append(" ms");
+            sb.append(", p50 ").append(getPercentile(50)).append(" us");
+            sb.append(", p90 ").append(getPercentile(90)).append(" us");
+            sb.append(", p99 ").append(getPercentile(99)).append(" us");
+            sb.append(", max ").append(maxMicros).append(" us");
+            if (failures > 0) {
+                sb.append(", ").append(failures).append(" failed");
+            }
+            if (timeouts > 0) {
+                sb.append(", ").append(timeouts).append(" timed out");
+            }
+            return sb.toString();
+        }
+    }
+
+    private final Histogram[] histograms;
+
+    public TransferStats() {
+        Request[] requests = Request.values();
+        histograms = new Histogram[requests.length];
+        for (int i = 0; i < requests.length; i++) {
+            histograms[i] = new Histogram(requests[i]);
+        }
+    }
+
+    // timeout is the one passed to controlTransfer in ms, 0 waits forever
+    void record(int requestType, int request, long nanos, int result, int timeout) {
+        long micros = nanos / 1000;
+        boolean failed = result < 0;
+        boolean timedOut = failed && timeout > 0 && micros >= timeout * 1000L;
+        Histogram histogram = histograms[Request.of(requestType, request).ordinal()];
+        synchronized (this) {
+            histogram.record(micros, failed, timedOut);
+        }
+    }
+
+    // copies of the request types that were used
+    public synchronized List<Histogram> snapshot() {
+        List<Histogram> snapshot = new ArrayList<>();
+        for (Histogram histogram : histograms) {
+            if (histogram.count > 0) {
+                snapshot.add(new Histogram(histogram));
+            }
+        }
+        return Collections.unmodifiableList(snapshot);
+    }
+
+    public synchronized void reset() {
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = new Histogram(histograms[i].request);
+        }
+    }
+
+    // four buckets per power of two, values below 4 us have their own bucket
+    static int bucket(long micros) {
+        if (micros < 4) {
+            return (int) Math.max(micros, 0);
+        }
+        int log = 63 - Long.numberOfLeadingZeros(micros);
+        int sub = (int) (micros >>> (log - 2)) & 3;
+        return Math.min(4 * (log - 1) + sub, BUCKETS - 1);
+    }
+
+    // largest value falling into the bucket
+    static long upperBound(int bucket) {
+        if (bucket < 4) {
+            return bucket;
+        }
+        int log = bucket / 4 + 1;
+        int sub = bucket % 4;
+        return ((5L + sub) << (log - 2)) - 1;
+    }
+}
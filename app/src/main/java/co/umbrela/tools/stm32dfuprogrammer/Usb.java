@@ -25,12 +25,13 @@ import android.hardware.usb.UsbDeviceConnection;
 import android.hardware.usb.UsbEndpoint;
 import android.hardware.usb.UsbInterface;
 import android.hardware.usb.UsbManager;
+import android.os.Build;
 import android.util.Log;
 
-import java.util.HashMap;
-import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.List;
 
-public class Usb {
+public class Usb implements DfuTransport {
 
     final static String TAG = "Umbrela Client: USB";
 
@@ -38,9 +39,12 @@ public class Usb {
 
     private UsbManager mUsbManager;
     private UsbDevice mDevice;
-    private UsbDeviceConnection mConnection;
+    private volatile UsbDeviceConnection mConnection;     // guarded by this, read without lock by isConnected()
     private UsbInterface mInterface;
     private int mDeviceVersion;
+    private final TransferStats mStats = new TransferStats();
+    private byte[] mScratch = new byte[0];    // data stage of offset transfers before API 18
+    private final DeviceRegistry mRegistry = new DeviceRegistry(USB_VENDOR_ID, USB_PRODUCT_ID);
 
     /* USB DFU ID's (may differ by device) */
     public final static int USB_VENDOR_ID = 1155;   // VID while in DFU mode 0x0483
@@ -70,11 +74,14 @@ public class Usb {
             String action = intent.getAction();
 
             if (ACTION_USB_PERMISSION.equals(action)) {
-                synchronized (this) {
+                synchronized (Usb.this) {
                     UsbDevice device = intent.getParcelableExtra(UsbManager.EXTRA_DEVICE);
 
                     if (intent.getBooleanExtra(UsbManager.EXTRA_PERMISSION_GRANTED, false)) {
-                        if (device != null) {
+                        if (device != null && mConnection != null && !device.equals(mDevice)) {
+                            // more boards on the hub, they get their own session when programmed together
+                            Log.i(TAG, "permission granted for additional device " + device.getDeviceName());
+                        } else if (device != null) {
                             //call method to set up device communication
                             setDevice(device);
 
@@ -83,18 +90,26 @@ public class Usb {
                                 mOnUsbChangeListener.onUsbConnected();
                             }
                         }
+                        // after the connection is set up, so the listeners can program the device
+                        if (device != null) {
+                            mRegistry.granted(device);
+                        }
                     } else {
                         Log.d(TAG, "permission denied for device " + device);
                     }
                 }
             } else if (UsbManager.ACTION_USB_DEVICE_ATTACHED.equals(action)) {
-                synchronized (this) {
+                synchronized (Usb.this) {
                     //request permission for just attached USB Device if it matches the VID/PID
-                    requestPermission(mContext, USB_VENDOR_ID, USB_PRODUCT_ID);
+                    UsbDevice device = intent.getParcelableExtra(UsbManager.EXTRA_DEVICE);
+                    if (mRegistry.attached(device) != null) {
+                        requestPermission(mContext, device);
+                    }
                 }
             } else if (UsbManager.ACTION_USB_DEVICE_DETACHED.equals(action)) {
-                synchronized (this) {
+                synchronized (Usb.this) {
                     UsbDevice device = intent.getParcelableExtra(UsbManager.EXTRA_DEVICE);
+                    mRegistry.detached(device);
                     if (mDevice != null && mDevice.equals(device)) {
                         release();
                     }
@@ -115,31 +130,57 @@ public class Usb {
         this.mUsbManager = usbManager;
     }
 
+    // requests the permission for all attached devices matching the VID/PID, the device list
+    // is only scanned the first time, afterwards the registry follows the broadcasts
     public void requestPermission(Context context, int vendorId, int productId) {
-        // Setup Pending Intent
-        PendingIntent permissionIntent = PendingIntent.getBroadcast(context, 0, new Intent(Usb.ACTION_USB_PERMISSION), 0);
-        UsbDevice device = getUsbDevice(vendorId, productId);
-
-        if (device != null) {
-            mUsbManager.requestPermission(device, permissionIntent);
+        for (UsbDevice device : getUsbDevices(vendorId, productId)) {
+            requestPermission(context, device);
         }
     }
 
-    private UsbDevice getUsbDevice(int vendorId, int productId) {
-        HashMap<String, UsbDevice> deviceList = mUsbManager.getDeviceList();
-        Iterator<UsbDevice> deviceIterator = deviceList.values().iterator();
+    // a device already granted is only requested while there is no connection, the
+    // broadcast of the grant then opens it
+    private void requestPermission(Context context, UsbDevice device) {
+        if (mConnection != null && mUsbManager.hasPermission(device)) {
+            return;
+        }
+        // Setup Pending Intent
+        PendingIntent permissionIntent = PendingIntent.getBroadcast(context, 0, new Intent(Usb.ACTION_USB_PERMISSION), 0);
+        mUsbManager.requestPermission(device, permissionIntent);
+    }
 
-        UsbDevice device;
-        while (deviceIterator.hasNext()) {
-            device = deviceIterator.next();
+    // all attached devices matching the VID/PID
+    public List<UsbDevice> getUsbDevices(int vendorId, int productId) {
+        mRegistry.scan(mUsbManager);
+        List<UsbDevice> devices = new ArrayList<>();
+        for (DeviceRegistry.Entry entry : mRegistry.getAttached()) {
+            UsbDevice device = entry.getDevice();
             if (device.getVendorId() == vendorId && device.getProductId() == productId) {
-                return device;
+                devices.add(device);
             }
         }
-        return null;
+        return devices;
+    }
+
+    public DeviceRegistry getDeviceRegistry() {
+        return mRegistry;
+    }
+
+    public boolean hasPermission(UsbDevice device) {
+        return mUsbManager.hasPermission(device);
     }
 
-    public boolean release() {
+    // separate session on another device, null if it cannot be opened
+    public Usb openSession(UsbDevice device) {
+        Usb session = new Usb(mContext);
+        session.setUsbManager(mUsbManager);
+        session.setDevice(device);
+        return session.isConnected() ? session : null;
+    }
+
+    // waits for a transfer of the worker, which then sees the connection closed
+    @Override
+    public synchronized boolean release() {
         boolean isReleased = false;
 
         if (mConnection != null) {
@@ -150,7 +191,7 @@ public class Usb {
         return isReleased;
     }
 
-    public void setDevice(UsbDevice device) {
+    public synchronized void setDevice(UsbDevice device) {
         mDevice = device;
 
         // The first interface is the one we want
@@ -175,6 +216,7 @@ public class Usb {
         }
     }
 
+    @Override
     public boolean isConnected() {
         return (mConnection != null);
     }
@@ -212,6 +254,7 @@ public class Usb {
         return sb.toString();
     }
 
+    @Override
     public int getDeviceVersion() {
         return mDeviceVersion;
     }
@@ -236,9 +279,53 @@ public class Usb {
      * @return length of data transferred (or zero) for success,
      * or negative value for failure
      */
+    @Override
     public int controlTransfer(int requestType, int request, int value, int index, byte[] buffer, int length, int timeout) {
+        return controlTransfer(requestType, request, value, index, buffer, 0, length, timeout);
+    }
+
+    /**
+     * Same as above with the data stage starting at offset of the buffer, so a block is sent
+     * or received in place. Before API 18 the data goes through a scratch buffer that is
+     * reused for every transfer.
+     */
+    @Override
+    public int controlTransfer(int requestType, int request, int value, int index, byte[] buffer, int offset, int length, int timeout) {
         synchronized (this) {
-            return mConnection.controlTransfer(requestType, request, value, index, buffer, length, timeout);
+            if (mConnection == null) {
+                return -1;      // released, ie. the device was detached during the operation
+            }
+            long start = System.nanoTime();
+            int result;
+            if (offset == 0) {
+                result = mConnection.controlTransfer(requestType, request, value, index, buffer, length, timeout);
+            } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+                result = mConnection.controlTransfer(requestType, request, value, index, buffer, offset, length, timeout);
+            } else {
+                result = scratchTransfer(requestType, request, value, index, buffer, offset, length, timeout);
+            }
+            mStats.record(requestType, request, System.nanoTime() - start, result, timeout);
+            return result;
+        }
+    }
+
+    private int scratchTransfer(int requestType, int request, int value, int index, byte[] buffer, int offset, int length, int timeout) {
+        if (mScratch.length < length) {
+            mScratch = new byte[length];
         }
+        boolean in = (requestType & 0x80) != 0;     // USB_DIR_IN
+        if (!in) {
+            System.arraycopy(buffer, offset, mScratch, 0, length);
+        }
+        int result = mConnection.controlTransfer(requestType, request, value, index, mScratch, length, timeout);
+        if (in && result > 0) {
+            System.arraycopy(mScratch, 0, buffer, offset, result);
+        }
+        return result;
+    }
+
+    @Override
+    public TransferStats getTransferStats() {
+        return mStats;
     }
 }
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2015 Umbrela Smart, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package co.umbrela.tools.stm32dfuprogrammer;
+
+import android.nfc.FormatException;
+
+import java.util.BitSet;
+import java.util.Random;
+
+/**
+ * Selects the blocks that are read back when verifying. FULL reads every block, a sampled
+ * policy always reads the first and last block of each run plus a number of randomly
+ * selected blocks per flash sector. The seed makes the selection repeatable.
+ */
+public class VerifyPolicy {
+
+    public static final VerifyPolicy FULL = new VerifyPolicy(0, 0);
+
+    private final int blocksPerSector;
+    private final long seed;
+
+    private VerifyPolicy(int blocksPerSector, long seed) {
+        this.blocksPerSector = blocksPerSector;
+        this.seed = seed;
+    }
+
+    public static VerifyPolicy sampled(int blocksPerSector, long seed) {
+        if (blocksPerSector <= 0) {
+            throw new IllegalArgumentException("blocksPerSector must be positive");
+        }
+        return new VerifyPolicy(blocksPerSector, seed);
+    }
+
+    public boolean isFull() {
+        return blocksPerSector == 0;
+    }
+
+    public int getBlocksPerSector() {
+        return blocksPerSector;
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    // block numbers of the run that have to be read back
+    BitSet selectBlocks(WritePlan.Run run, MemoryLayout layout) throws FormatException {
+
+        BlockIndex index = run.getBlockIndex();
+        int blockCount = index.getBlockCount();
+        BitSet selected = new BitSet(blockCount);
+        if (isFull()) {
+            selected.set(0, blockCount);
+            return selected;
+        }
+        selected.set(0);
+        selected.set(blockCount - 1);
+
+        Random random = new Random(seed ^ run.address);
+        for (MemoryLayout.Sector sector : layout.getSectors(run.address, run.length)) {
+            int start = Math.max(sector.address, run.address) - run.address;
+            int end = Math.min(sector.getEndAddress(), run.getEndAddress()) - run.address;
+            int first = index.getBlockNumber(start);
+            int count = index.getBlockNumber(end - 1) - first + 1;
+
+            if (count <= blocksPerSector) {
+                selected.set(first, first + count);
+                continue;
+            }
+            // pick distinct blocks of the sector that are not selected yet
+            int available = count - selected.get(first, first + count).cardinality();
+            for (int picked = 0; picked < Math.min(blocksPerSector, available); ) {
+                int n = first + random.nextInt(count);
+                if (!selected.get(n)) {
+                    selected.set(n);
+                    picked++;
+                }
+            }
+        }
+        return selected;
+    }
+
+    @Override
+    public String toString() {
+        return isFull() ? "full" : "sampled " + blocksPerSector + " blocks/sector, seed " + seed;
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2015 Umbrela Smart, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package co.umbrela.tools.stm32dfuprogrammer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Result of comparing the device memory with an image: the address ranges that differ,
+ * merged when they touch each other, and the blocks that were checked under the policy.
+ */
+public class VerifyReport {
+
+    public static class AddressRange {
+        public final int address;
+        public final int length;
+
+        AddressRange(int address, int length) {
+            this.address = address;
+            this.length = length;
+        }
+
+        public int getEndAddress() {
+            return address + length;
+        }
+
+        @Override
+        public String toString() {
+            return "0x" + Integer.toHexString(address) + "-0x" + Integer.toHexString(getEndAddress() - 1);
+        }
+    }
+
+    private final VerifyPolicy policy;
+    private final List<AddressRange> mismatches = new ArrayList<>();
+    private final List<Integer> checkedAddresses = new ArrayList<>();
+    private long checkedBytes;
+    private boolean aborted;
+
+    VerifyReport(VerifyPolicy policy) {
+        this.policy = policy;
+    }
+
+    synchronized void addChecked(int address, int length) {
+        checkedAddresses.add(address);
+        checkedBytes += length;
+    }
+
+    synchronized void addMismatch(int address, int length) {
+        int last = mismatches.size() - 1;
+        if (last >= 0 && mismatches.get(last).getEndAddress() == address) {
+            AddressRange previous = mismatches.remove(last);
+            mismatches.add(new AddressRange(previous.address, previous.length + length));
+        } else {
+            mismatches.add(new AddressRange(address, length));
+        }
+    }
+
+    synchronized void setAborted() {
+        aborted = true;
+    }
+
+    public synchronized boolean isOk() {
+        return mismatches.isEmpty();
+    }
+
+    // true if the comparison stopped at the first mismatch
+    public synchronized boolean isAborted() {
+        return aborted;
+    }
+
+    public synchronized List<AddressRange> getMismatches() {
+        return Collections.unmodifiableList(new ArrayList<>(mismatches));
+    }
+
+    public VerifyPolicy getPolicy() {
+        return policy;
+    }
+
+    // start addresses of the blocks that were read back, ie. to repeat a sampled verification
+    public synchronized List<Integer> getCheckedAddresses() {
+        return Collections.unmodifiableList(new ArrayList<>(checkedAddresses));
+    }
+
+    public synchronized int getCheckedBlocks() {
+        return checkedAddresses.size();
+    }
+
+    public synchronized long getCheckedBytes() {
+        return checkedBytes;
+    }
+
+    @Override
+    public synchronized String toString() {
+        if (mismatches.isEmpty()) {
+            return "device firmware equals file firmware (" + checkedAddresses.size() + " blocks, " + policy + ")";
+        }
+        StringBuilder sb = new StringBuilder("device firmware does not equals file firmware at ");
+        sb.append(mismatches.size()).append(aborted ? "+ ranges: " : " ranges: ");
+        for (int i = 0; i < mismatches.size() && i < 8; i++) {
+            sb.append(i == 0 ? "" : ", ").append(mismatches.get(i));
+        }
+        if (mismatches.size() > 8) {
+            sb.append(", ...");
+        }
+        return sb.toString();
+    }
+}
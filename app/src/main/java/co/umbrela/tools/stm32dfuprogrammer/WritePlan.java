@@ -0,0 +1,287 @@
+/*
+ * Copyright 2015 Umbrela Smart, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package co.umbrela.tools.stm32dfuprogrammer;
+
+import android.nfc.FormatException;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Order in which the elements of an image are programmed. Elements are sorted by address and
+ * adjacent elements are merged into runs, so the address pointer only has to be set when a run
+ * starts and all elements are written in one session.
+ */
+public class WritePlan {
+
+    public static class Run {
+        public final int address;
+        public final int length;
+        private final List<ByteBuffer> parts;
+        private final int[] partOffsets;    // offset of each part inside the run
+        private BlockIndex blockIndex;
+
+        private Run(int address, List<ByteBuffer> parts) {
+            this.address = address;
+            this.parts = parts;
+            this.partOffsets = new int[parts.size()];
+            int length = 0;
+            for (int i = 0; i < parts.size(); i++) {
+                partOffsets[i] = length;
+                length += parts.get(i).remaining();
+            }
+            this.length = length;
+        }
+
+        public int getEndAddress() {
+            return address + length;
+        }
+
+        public BlockIndex getBlockIndex() {
+            return blockIndex;
+        }
+
+        // copies length bytes of the run, starting at offset, into dst
+        public void copy(int offset, byte[] dst, int dstOffset, int length) {
+            int part = findPart(offset);
+            while (length > 0) {
+                ByteBuffer data = parts.get(part).duplicate();
+                int partOffset = offset - partOffsets[part];
+                int n = Math.min(length, data.remaining() - partOffset);
+                data.position(data.position() + partOffset);
+                data.get(dst, dstOffset, n);
+                offset += n;
+                dstOffset += n;
+                length -= n;
+                part++;
+            }
+        }
+
+        // reader for one thread that copies blocks without allocating
+        public Reader reader() {
+            return new Reader();
+        }
+
+        // holds its own views of the element data, so a copy only moves the position
+        public class Reader {
+            private final ByteBuffer[] views = new ByteBuffer[parts.size()];
+
+            private Reader() {
+                for (int i = 0; i < views.length; i++) {
+                    views[i] = parts.get(i).duplicate();
+                }
+            }
+
+            // same as Run.copy()
+            public void copy(int offset, byte[] dst, int dstOffset, int length) {
+                int part = findPart(offset);
+                while (length > 0) {
+                    ByteBuffer data = views[part];
+                    int start = parts.get(part).position();
+                    int partOffset = offset - partOffsets[part];
+                    int n = Math.min(length, data.limit() - start - partOffset);
+                    data.position(start + partOffset);
+                    data.get(dst, dstOffset, n);
+                    offset += n;
+                    dstOffset += n;
+                    length -= n;
+                    part++;
+                }
+            }
+        }
+
+        // compares length bytes of the run, starting at offset, with data
+        public boolean matches(int offset, byte[] data, int dataOffset, int length) {
+            int part = findPart(offset);
+            while (length > 0) {
+                ByteBuffer expected = parts.get(part).duplicate();
+                int partOffset = offset - partOffsets[part];
+                int n = Math.min(length, expected.remaining() - partOffset);
+                expected.position(expected.position() + partOffset);
+                expected.limit(expected.position() + n);
+                if (!expected.equals(ByteBuffer.wrap(data, dataOffset, n))) {
+                    return false;
+                }
+                offset += n;
+                dataOffset += n;
+                length -= n;
+                part++;
+            }
+            return true;
+        }
+
+        private int findPart(int offset) {
+            if (offset < 0 || offset > length) {
+                throw new IndexOutOfBoundsException("Offset " + offset + " outside of run");
+            }
+            int part = 0;
+            while (part < partOffsets.length - 1 && partOffsets[part + 1] <= offset) {
+                part++;
+            }
+            return part;
+        }
+
+        @Override
+        public String toString() {
+            return "0x" + Integer.toHexString(address) + " (" + length + " Bytes, " + parts.size() + " elements)";
+        }
+    }
+
+    private final int blockSize;
+    private final List<Run> runs;
+    private byte[] imageHash;
+
+    private WritePlan(int blockSize, List<Run> runs) {
+        this.blockSize = blockSize;
+        this.runs = Collections.unmodifiableList(runs);
+    }
+
+    public static WritePlan build(List<DfuFile.Element> elements, int blockSize) throws FormatException {
+
+        List<Run> runs = merge(elements);
+        for (Run run : runs) {
+            run.blockIndex = BlockIndex.build(run.parts, blockSize);
+        }
+        return new WritePlan(blockSize, runs);
+    }
+
+    // plan with the block indexes of a plan built before, ie. read from the ImageStore
+    static WritePlan restore(List<DfuFile.Element> elements, int blockSize, List<BlockIndex> indexes) throws FormatException {
+
+        List<Run> runs = merge(elements);
+        if (runs.size() != indexes.size()) {
+            throw new FormatException("Stored plan has " + indexes.size() + " runs instead of " + runs.size());
+        }
+        for (int i = 0; i < runs.size(); i++) {
+            Run run = runs.get(i);
+            BlockIndex index = indexes.get(i);
+            int blocks = index.getBlockCount();
+            if (index.getBlockSize() != blockSize || blocks != (run.length + blockSize - 1) / blockSize ||
+                    (blocks > 0 && index.getBlock(blocks - 1).offset + index.getBlock(blocks - 1).length != run.length)) {
+                throw new FormatException("Stored block index does not match run " + run);
+            }
+            run.blockIndex = index;
+        }
+        return new WritePlan(blockSize, runs);
+    }
+
+    // sorts the elements and merges adjacent ones into runs
+    private static List<Run> merge(List<DfuFile.Element> elements) throws FormatException {
+
+        List<DfuFile.Element> sorted = new ArrayList<>(elements);
+        Collections.sort(sorted, new Comparator<DfuFile.Element>() {
+            @Override
+            public int compare(DfuFile.Element a, DfuFile.Element b) {
+                long addressA = a.address & 0xFFFFFFFFL;
+                long addressB = b.address & 0xFFFFFFFFL;
+                return addressA < addressB ? -1 : (addressA == addressB ? 0 : 1);
+            }
+        });
+
+        List<Run> runs = new ArrayList<>();
+        List<ByteBuffer> parts = null;
+        int runAddress = 0;
+        long runEnd = 0;
+
+        for (DfuFile.Element element : sorted) {
+            if (element.length == 0) {
+                continue;
+            }
+            long start = element.address & 0xFFFFFFFFL;
+            if (parts != null && start < runEnd) {
+                throw new FormatException("Element at 0x" + Integer.toHexString(element.address) + " overlaps previous element");
+            }
+            if (parts == null || start != runEnd) {
+                // discontiguous, a new run needs its own address pointer
+                if (parts != null) {
+                    runs.add(new Run(runAddress, parts));
+                }
+                parts = new ArrayList<>();
+                runAddress = element.address;
+            }
+            parts.add(element.getData());
+            runEnd = start + element.length;
+        }
+        if (parts != null) {
+            runs.add(new Run(runAddress, parts));
+        }
+        return runs;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public List<Run> getRuns() {
+        return runs;
+    }
+
+    // sum of all run lengths
+    public int getLength() {
+        int length = 0;
+        for (Run run : runs) {
+            length += run.length;
+        }
+        return length;
+    }
+
+    public int getBlockCount() {
+        int count = 0;
+        for (Run run : runs) {
+            count += run.blockIndex.getBlockCount();
+        }
+        return count;
+    }
+
+    public int getBlankCount() {
+        int count = 0;
+        for (Run run : runs) {
+            count += run.blockIndex.getBlankCount();
+        }
+        return count;
+    }
+
+    // identifies the image as it is written, SHA-256 of the block size, the run addresses and the run data
+    public synchronized byte[] getImageHash() {
+        if (imageHash == null) {
+            MessageDigest digest;
+            try {
+                digest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);     // every Java and Android runtime has SHA-256
+            }
+            ByteBuffer words = ByteBuffer.allocate(12);
+            words.putInt(blockSize);
+            digest.update(words.array(), 0, 4);
+            for (Run run : runs) {
+                words.clear();
+                words.putInt(run.address).putInt(run.length);
+                digest.update(words.array(), 0, 8);
+                for (ByteBuffer part : run.parts) {
+                    digest.update(part.duplicate());
+                }
+            }
+            imageHash = digest.digest();
+        }
+        return imageHash.clone();
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2015 Umbrela Smart, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package co.umbrela.tools.stm32dfuprogrammer;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.CancellationException;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+public class CrcEngineTest {
+
+    @Test
+    public void enginesGiveInvertedCrc32() {
+        byte[] data = new byte[3 * 256 * 1024 + 5];
+        new Random(7).nextBytes(data);
+        CRC32 crc32 = new CRC32();
+        crc32.update(data);
+
+        for (CrcEngine engine : CrcEngine.getEngines()) {
+            assertEquals(engine.toString(), ~(int) crc32.getValue(), engine.update(-1, ByteBuffer.wrap(data)));
+        }
+    }
+
+    @Test
+    public void parallelUpdateStopsWhenInterrupted() {
+        assumeTrue(Runtime.getRuntime().availableProcessors() > 1);
+        ByteBuffer data = ByteBuffer.allocate(4 * 1024 * 1024);
+
+        Thread.currentThread().interrupt();
+        try {
+            CrcEngine.PARALLEL.update(-1, data);
+            fail("Interrupt was lost");
+        } catch (CancellationException e) {
+            // expected, the interrupt is kept for the caller
+            assertTrue(Thread.interrupted());
+        }
+    }
+}
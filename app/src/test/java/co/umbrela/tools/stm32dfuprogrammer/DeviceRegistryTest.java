@@ -0,0 +1,177 @@
+/*
+ * Copyright 2015 Umbrela Smart, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package co.umbrela.tools.stm32dfuprogrammer;
+
+import android.hardware.usb.UsbDevice;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class DeviceRegistryTest {
+
+    private static final String SERIAL = "3677384E3337";
+    private static final String PATH = "/dev/bus/usb/001/002";
+    private static final String OTHER_PATH = "/dev/bus/usb/001/003";
+
+    private DeviceRegistry registry;
+    private final List<String> events = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        registry = new DeviceRegistry(Usb.USB_VENDOR_ID, Usb.USB_PRODUCT_ID) {
+            @Override
+            String getSerial(UsbDevice device) {
+                return readSerial(device);      // SDK_INT is 0 in local unit tests
+            }
+        };
+        registry.setListener(new DeviceRegistry.Listener() {
+            @Override
+            public void onDeviceAttached(DeviceRegistry.Entry entry, boolean reappeared) {
+                events.add((reappeared ? "reattached " : "attached ") + entry.getKey());
+            }
+
+            @Override
+            public void onDeviceDetached(DeviceRegistry.Entry entry) {
+                events.add("detached " + entry.getKey());
+            }
+
+            @Override
+            public void onDeviceGranted(DeviceRegistry.Entry entry) {
+                events.add("granted " + entry.getKey());
+            }
+        });
+    }
+
+    @Test
+    public void attachIndexesBySerialAndPath() {
+        UsbDevice device = device(PATH, SERIAL);
+
+        DeviceRegistry.Entry entry = registry.attached(device);
+        // the same attachment reported by the scan and the broadcast
+        assertSame(entry, registry.attached(device));
+
+        assertEquals(SERIAL, entry.getKey());
+        assertTrue(entry.isAttached());
+        assertFalse(entry.isGranted());
+        assertSame(entry, registry.get(device));
+        assertSame(entry, registry.getBySerial(SERIAL));
+        assertEquals(1, registry.getAttached().size());
+        assertEquals(Arrays.asList("attached " + SERIAL), events);
+    }
+
+    @Test
+    public void attachIgnoresOtherDevices() {
+        UsbDevice device = device(PATH, SERIAL);
+        when(device.getProductId()).thenReturn(0x5740);
+
+        assertNull(registry.attached(device));
+        assertTrue(registry.getAttached().isEmpty());
+        assertTrue(events.isEmpty());
+    }
+
+    @Test
+    public void detachKeepsEntry() {
+        UsbDevice device = device(PATH, SERIAL);
+        DeviceRegistry.Entry entry = registry.attached(device);
+        registry.granted(device);
+
+        assertSame(entry, registry.detached(device));
+        assertNull(registry.detached(device));
+
+        assertFalse(entry.isAttached());
+        assertTrue(entry.isGranted());
+        assertNull(registry.get(device));
+        assertSame(entry, registry.getBySerial(SERIAL));
+        assertTrue(registry.getAttached().isEmpty());
+        assertEquals(Arrays.asList("attached " + SERIAL, "granted " + SERIAL, "detached " + SERIAL), events);
+    }
+
+    @Test
+    public void reappearOnOtherPath() {
+        UsbDevice device = device(PATH, SERIAL);
+        DeviceRegistry.Entry entry = registry.attached(device);
+        registry.granted(device);
+        registry.detached(device);
+        events.clear();
+
+        UsbDevice reset = device(OTHER_PATH, SERIAL);
+        assertSame(entry, registry.attached(reset));
+
+        assertTrue(entry.isAttached());
+        assertTrue(entry.isGranted());
+        assertEquals(OTHER_PATH, entry.getPath());
+        assertSame(reset, entry.getDevice());
+        assertEquals(Arrays.asList("reattached " + SERIAL), events);
+    }
+
+    @Test
+    public void reappearWithSerialReadableAfterGrant() {
+        UsbDevice device = lockedDevice(PATH);
+        DeviceRegistry.Entry entry = registry.attached(device);
+        assertEquals(PATH, entry.getKey());
+        doReturn(SERIAL).when(device).getSerialNumber();
+        registry.granted(device);
+        assertEquals(SERIAL, entry.getKey());
+        registry.detached(device);
+        events.clear();
+
+        // enumerates on another path, it is only recognized once the serial can be read
+        UsbDevice reset = lockedDevice(OTHER_PATH);
+        DeviceRegistry.Entry unknown = registry.attached(reset);
+        assertEquals(OTHER_PATH, unknown.getKey());
+        assertFalse(unknown.isGranted());
+        doReturn(SERIAL).when(reset).getSerialNumber();
+        registry.granted(reset);
+
+        assertSame(entry, registry.get(reset));
+        assertSame(entry, registry.getBySerial(SERIAL));
+        assertTrue(entry.isAttached());
+        assertTrue(entry.isGranted());
+        assertEquals(OTHER_PATH, entry.getPath());
+        assertEquals(1, registry.getAttached().size());
+        assertEquals(Arrays.asList("attached " + OTHER_PATH, "reattached " + SERIAL, "granted " + SERIAL), events);
+    }
+
+    private static UsbDevice device(String path, String serial) {
+        UsbDevice device = mock(UsbDevice.class);
+        when(device.getVendorId()).thenReturn(Usb.USB_VENDOR_ID);
+        when(device.getProductId()).thenReturn(Usb.USB_PRODUCT_ID);
+        when(device.getDeviceName()).thenReturn(path);
+        when(device.getSerialNumber()).thenReturn(serial);
+        return device;
+    }
+
+    // the serial descriptor cannot be read before the permission is granted
+    private static UsbDevice lockedDevice(String path) {
+        UsbDevice device = device(path, null);
+        when(device.getSerialNumber()).thenThrow(new SecurityException("No permission"));
+        return device;
+    }
+}
@@ -0,0 +1,630 @@
+/*
+ * Copyright 2015 Umbrela Smart, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package co.umbrela.tools.stm32dfuprogrammer;
+
+import android.nfc.FormatException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Runs the protocol code of Dfu against SimulatedDfuDevice on the JVM, with zero latencies
+ * so the tests do not wait for simulated erase and program times.
+ */
+public class DfuTest {
+
+    private static final int ADDRESS = Dfu.mInternalFlashStartAddress;
+    private static final int BLOCK_SIZE = 2048;     // bootloader version 2.2
+
+    private SimulatedDfuDevice device;
+    private RecordingTransport transport;
+    private Dfu dfu;
+    private final List<String> messages = new ArrayList<>();
+    private final List<File> tempFiles = new ArrayList<>();     // deleted in this order
+
+    @Before
+    public void setUp() {
+        dfu = new Dfu(Usb.USB_VENDOR_ID, Usb.USB_PRODUCT_ID);
+        setDevice(new SimulatedDfuDevice());
+        dfu.setListener(new Dfu.DfuListener() {
+            @Override
+            public void onStatusMsg(String msg) {
+                messages.add(msg.trim());
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        for (File file : tempFiles) {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void programWritesImage() throws Exception {
+        byte[] firmware = firmware(300 * 1024 + 123, 1);
+
+        assertTrue(dfu.programFirmware(image(ADDRESS, firmware), false));
+
+        assertArrayEquals(firmware, device.readMemory(ADDRESS, firmware.length));
+        assertTrue(isBlank(device.readMemory(ADDRESS + firmware.length, 4096)));
+        assertFalse(device.isReadProtected());
+        // blank blocks of the image are not sent
+        assertEquals(nonBlankBlocks(firmware), transport.blocks.size());
+        assertTrue(transport.erasedSectors.isEmpty());
+    }
+
+    @Test
+    public void verifyReportsWholeImage() throws Exception {
+        byte[] firmware = firmware(100 * 1024, 2);
+        assertTrue(dfu.programFirmware(image(ADDRESS, firmware), false));
+        reconnect();
+
+        dfu.verify();
+
+        VerifyReport report = dfu.getLastVerifyReport();
+        assertTrue(report.toString(), report.isOk());
+        assertEquals(firmware.length, report.getCheckedBytes());
+        assertEquals(firmware.length / BLOCK_SIZE, report.getCheckedBlocks());
+    }
+
+    @Test
+    public void programRemovesReadProtection() throws Exception {
+        byte[] firmware = firmware(64 * 1024, 3);
+        assertTrue(dfu.programFirmware(image(ADDRESS, firmware), false));
+        reconnect();
+        device.setReadProtected(true);
+
+        // removing the protection mass erases the flash and resets the device
+        assertFalse(dfu.programFirmware(image(ADDRESS, firmware), false));
+        assertFalse(device.isReadProtected());
+        assertFalse(device.isConnected());
+        assertTrue(isBlank(device.readMemory(ADDRESS, firmware.length)));
+
+        reconnect();
+        assertTrue(dfu.programFirmware(image(ADDRESS, firmware), false));
+        assertArrayEquals(firmware, device.readMemory(ADDRESS, firmware.length));
+    }
+
+    @Test
+    public void massEraseRemovesReadProtection() throws Exception {
+        device.setReadProtected(true);
+
+        dfu.massErase();
+
+        assertFalse(device.isReadProtected());
+        assertFalse(device.isConnected());
+        assertTrue(messages.toString(), messages.get(messages.size() - 1).startsWith("Read Protection removed"));
+    }
+
+    @Test
+    public void differentialProgramRewritesChangedSectors() throws Exception {
+        byte[] firmware = firmware(300 * 1024 + 123, 4);
+        assertTrue(dfu.programFirmware(image(ADDRESS, firmware), false));
+        reconnect();
+
+        // sector 5 is 0x08020000-0x0803FFFF, the last byte is in sector 6
+        byte[] changed = firmware.clone();
+        changed[200 * 1024] ^= 0x55;
+        changed[changed.length - 1] ^= 0x01;
+        assertTrue(dfu.programFirmware(image(ADDRESS, changed), true));
+
+        assertArrayEquals(changed, device.readMemory(ADDRESS, changed.length));
+        assertEquals(Arrays.asList(0x08020000, 0x08040000), transport.erasedSectors);
+        int rewritten = nonBlankBlocks(Arrays.copyOfRange(changed, 128 * 1024, changed.length));
+        assertEquals(rewritten, transport.blocks.size());
+    }
+
+    @Test
+    public void differentialProgramOfSameImageWritesNothing() throws Exception {
+        byte[] firmware = firmware(100 * 1024, 5);
+        assertTrue(dfu.programFirmware(image(ADDRESS, firmware), false));
+        reconnect();
+
+        assertTrue(dfu.programFirmware(image(ADDRESS, firmware), true));
+
+        assertTrue(transport.erasedSectors.isEmpty());
+        assertTrue(transport.blocks.isEmpty());
+        assertArrayEquals(firmware, device.readMemory(ADDRESS, firmware.length));
+    }
+
+    @Test
+    public void programErasesOnlySectorsOfImage() throws Exception {
+        byte[] old = firmware(300 * 1024, 6);
+        assertTrue(dfu.programFirmware(image(ADDRESS, old), false));
+        reconnect();
+
+        // 20 KB cover the 16 KB sectors 0 and 1
+        byte[] firmware = firmware(20 * 1024, 7);
+        assertTrue(dfu.programFirmware(image(ADDRESS, firmware), false));
+
+        assertEquals(Arrays.asList(0x08000000, 0x08004000), transport.erasedSectors);
+        assertArrayEquals(firmware, device.readMemory(ADDRESS, firmware.length));
+        assertTrue(isBlank(device.readMemory(ADDRESS + firmware.length, 32 * 1024 - firmware.length)));
+        // the rest of the old image is kept
+        assertArrayEquals(Arrays.copyOfRange(old, 32 * 1024, old.length),
+                device.readMemory(ADDRESS + 32 * 1024, old.length - 32 * 1024));
+    }
+
+    @Test
+    public void programFailsOnSectorThatIsNotErasable() throws Exception {
+        // sector 0 can be read and written but not erased
+        setDevice(new SimulatedDfuDevice("@Internal Flash  /0x08000000/01*016Ke,03*016Kg,01*064Kg,07*128Kg", 0x2200));
+        byte[] firmware = firmware(20 * 1024, 8);
+        assertTrue(dfu.programFirmware(image(ADDRESS, firmware), false));
+        reconnect();
+
+        try {
+            dfu.programFirmware(image(ADDRESS, firmware(20 * 1024, 9)), false);
+            fail("Sector 0 was erased");
+        } catch (FormatException e) {
+            // expected, the plan is checked before the first erase
+        }
+        assertTrue(transport.erasedSectors.isEmpty());
+        assertArrayEquals(firmware, device.readMemory(ADDRESS, firmware.length));
+    }
+
+    @Test
+    public void programWritesAllElements() throws Exception {
+        // the first two elements are adjacent and share a block, the third one is in sector 6
+        byte[] first = firmware(10000, 10);
+        byte[] second = firmware(3000, 11);
+        byte[] third = firmware(5000, 12);
+        DfuFile image = new DfuSeBuilder()
+                .target(0, new int[]{0x08040000, ADDRESS + first.length, ADDRESS}, third, second, first)
+                .build();
+
+        WritePlan plan = WritePlan.build(image.getElements(0), BLOCK_SIZE);
+        assertEquals(2, plan.getRuns().size());
+        assertEquals(first.length + second.length, plan.getRuns().get(0).length);
+
+        assertTrue(dfu.programFirmware(image, false));
+
+        assertArrayEquals(first, device.readMemory(ADDRESS, first.length));
+        assertArrayEquals(second, device.readMemory(ADDRESS + first.length, second.length));
+        assertArrayEquals(third, device.readMemory(0x08040000, third.length));
+        int end = first.length + second.length;
+        assertTrue(isBlank(device.readMemory(ADDRESS + end, 0x40000 - end)));
+    }
+
+    @Test
+    public void programRejectsElementsForOtherMemory() throws Exception {
+        DfuFile image = new DfuSeBuilder()
+                .target(0, new int[]{ADDRESS}, firmware(4096, 13))
+                .target(1, new int[]{Dfu.mOptionByteStartAddress}, new byte[16])
+                .build();
+
+        try {
+            dfu.programFirmware(image, false);
+            fail("Target of alternate setting 1 was accepted");
+        } catch (FormatException e) {
+            // expected, only the Internal Flash is claimed
+        }
+        assertTrue(transport.blocks.isEmpty());
+        assertTrue(isBlank(device.readMemory(ADDRESS, 4096)));
+    }
+
+    @Test
+    public void verifyReportsMismatchRanges() throws Exception {
+        byte[] firmware = firmware(20 * 1024, 14);
+        assertTrue(dfu.programFirmware(image(ADDRESS, firmware), false));
+        reconnect();
+
+        // the first range crosses the boundary of blocks 0 and 1
+        byte[] changed = firmware.clone();
+        for (int i = 2040; i < 2060; i++) {
+            changed[i] ^= 0xFF;
+        }
+        for (int i = 5000; i < 5010; i++) {
+            changed[i] ^= 0xFF;
+        }
+        Dfu checker = new Dfu(Usb.USB_VENDOR_ID, Usb.USB_PRODUCT_ID);
+        checker.setTransport(transport);
+        checker.setFirmwareCatalog(catalog(new DfuSeBuilder().target(0, new int[]{ADDRESS}, changed).toByteArray()));
+
+        checker.verify();
+
+        VerifyReport report = checker.getLastVerifyReport();
+        assertFalse(report.isOk());
+        assertFalse(report.isAborted());
+        assertEquals(firmware.length, report.getCheckedBytes());
+        List<VerifyReport.AddressRange> mismatches = report.getMismatches();
+        assertEquals(2, mismatches.size());
+        assertEquals(ADDRESS + 2040, mismatches.get(0).address);
+        assertEquals(20, mismatches.get(0).length);
+        assertEquals(ADDRESS + 5000, mismatches.get(1).address);
+        assertEquals(10, mismatches.get(1).length);
+    }
+
+    @Test
+    public void verifierStopsAtFirstMismatch() throws Exception {
+        byte[] firmware = firmware(20 * 1024, 15);
+        WritePlan.Run run = WritePlan.build(image(ADDRESS, firmware).getElements(0), BLOCK_SIZE).getRuns().get(0);
+        byte[] read = firmware.clone();
+        read[3000] ^= 0x01;
+        read[9000] ^= 0x01;
+
+        VerifyReport report = new VerifyReport(VerifyPolicy.FULL);
+        StreamingVerifier verifier = new StreamingVerifier(report, true, BLOCK_SIZE);
+        verifier.start();
+        for (int offset = 0; offset < read.length && !verifier.isAborted(); offset += BLOCK_SIZE) {
+            int length = Math.min(BLOCK_SIZE, read.length - offset);
+            verifier.submit(run, offset, Arrays.copyOfRange(read, offset, offset + length), length);
+        }
+        verifier.finish();
+
+        assertTrue(report.isAborted());
+        assertEquals(1, report.getMismatches().size());
+        assertEquals(ADDRESS + 3000, report.getMismatches().get(0).address);
+    }
+
+    @Test
+    public void sampledVerifyReadsBlocksOfEverySector() throws Exception {
+        byte[] firmware = firmware(300 * 1024, 16);
+        assertTrue(dfu.programFirmware(image(ADDRESS, firmware), false));
+        reconnect();
+        dfu.setVerifyPolicy(VerifyPolicy.sampled(2, 42));
+
+        dfu.verify();
+
+        VerifyReport report = dfu.getLastVerifyReport();
+        assertTrue(report.toString(), report.isOk());
+        List<Integer> checked = report.getCheckedAddresses();
+        assertTrue(checked.contains(ADDRESS));
+        assertTrue(checked.contains(ADDRESS + firmware.length - BLOCK_SIZE));
+        // sectors 0 to 6, the first and the last block are picked in addition to those of their sector
+        for (MemoryLayout.Sector sector : device.getLayout().getSectors(ADDRESS, firmware.length)) {
+            int blocks = 0;
+            for (int address : checked) {
+                if (address >= sector.address && address < sector.getEndAddress()) {
+                    blocks++;
+                }
+            }
+            assertTrue(sector + " has " + blocks + " checked blocks", blocks >= 2 && blocks <= 3);
+        }
+        assertEquals(7 * 2 + 2, report.getCheckedBlocks());
+
+        // the same seed checks the same blocks
+        reconnect();
+        dfu.verify();
+        assertEquals(checked, dfu.getLastVerifyReport().getCheckedAddresses());
+    }
+
+    @Test
+    public void programResumesAfterDroppedTransfer() throws Exception {
+        byte[] firmware = firmware(300 * 1024, 17);
+        File checkpointFile = tempFile("checkpoint");
+        dfu.setCheckpointFile(checkpointFile);
+        transport.dropAfterBlocks = 40;
+        try {
+            dfu.programFirmware(image(ADDRESS, firmware), false);
+            fail("Transfer was not dropped");
+        } catch (Exception e) {
+            // expected, the device is gone
+        }
+        assertTrue(checkpointFile.exists());
+        reconnect();
+
+        assertTrue(dfu.programFirmware(image(ADDRESS, firmware), false));
+
+        assertEquals(nonBlankBlocks(firmware) - 40, transport.blocks.size());
+        assertArrayEquals(firmware, device.readMemory(ADDRESS, firmware.length));
+        assertFalse(checkpointFile.exists());
+    }
+
+    @Test
+    public void resumeScansPastBlankBlocksOfFile() throws Exception {
+        byte[] firmware = firmware(300 * 1024, 18);
+        DfuFile image = image(ADDRESS, firmware);
+        File checkpointFile = tempFile("checkpoint");
+        dfu.setCheckpointFile(checkpointFile);
+        transport.dropAfterBlocks = 40;     // blocks 0 to 44 without the blank blocks 7, 15, 23, 31 and 39
+        try {
+            dfu.programFirmware(image, false);
+            fail("Transfer was not dropped");
+        } catch (Exception e) {
+            // expected, the device is gone
+        }
+        // the acknowledges after block 5 were not persisted, block 7 of the file is blank
+        Checkpoint checkpoint = Checkpoint.open(checkpointFile,
+                WritePlan.build(image.getElements(0), BLOCK_SIZE).getImageHash(), BLOCK_SIZE);
+        checkpoint.acknowledge(ADDRESS + 5 * BLOCK_SIZE);
+        checkpoint.close();
+        reconnect();
+
+        assertTrue(dfu.programFirmware(image, false));
+
+        assertTrue(messages.toString(), messages.contains("Resuming write at block 45 of run " +
+                WritePlan.build(image.getElements(0), BLOCK_SIZE).getRuns().get(0)));
+        assertEquals(nonBlankBlocks(firmware) - 40, transport.blocks.size());
+        assertArrayEquals(firmware, device.readMemory(ADDRESS, firmware.length));
+    }
+
+    @Test
+    public void dumpWritesDfuSeFileOfWholeFlash() throws Exception {
+        byte[] firmware = firmware(300 * 1024 + 123, 19);
+        assertTrue(dfu.programFirmware(image(ADDRESS, firmware), false));
+        reconnect();
+        File file = tempFile("dump");
+
+        dfu.dump(file, true);
+
+        DfuFile dump = DfuFile.open(file);
+        assertTrue(dump.hasSuffix());
+        assertEquals(Usb.USB_VENDOR_ID, dump.VID);
+        assertEquals(Usb.USB_PRODUCT_ID, dump.PID);
+        List<DfuFile.Element> elements = dump.getElements(0);
+        assertEquals(1, elements.size());
+        assertEquals(ADDRESS, elements.get(0).address);
+        assertEquals(device.getLayout().getSize(), elements.get(0).length);
+        byte[] data = new byte[elements.get(0).length];
+        elements.get(0).getData().duplicate().get(data);
+        assertArrayEquals(device.readMemory(ADDRESS, data.length), data);
+    }
+
+    @Test
+    public void dumpWritesRawRange() throws Exception {
+        byte[] firmware = firmware(20 * 1024, 20);
+        assertTrue(dfu.programFirmware(image(ADDRESS, firmware), false));
+        reconnect();
+        File file = tempFile("dump");
+
+        // not aligned to blocks
+        dfu.dump(file, ADDRESS + 1000, 5000, false);
+
+        assertArrayEquals(Arrays.copyOfRange(firmware, 1000, 6000), readFile(file));
+    }
+
+    @Test
+    public void dumpWritesRawRangeAtEndOfFlash() throws Exception {
+        int end = ADDRESS + device.getLayout().getSize();
+        byte[] firmware = firmware(8192, 21);
+        assertTrue(dfu.programFirmware(image(end - firmware.length, firmware), false));
+        reconnect();
+        File file = tempFile("dump");
+
+        // the last partial block must not be read past the end of flash
+        dfu.dump(file, end - 5000, 5000, false);
+
+        assertArrayEquals(Arrays.copyOfRange(firmware, firmware.length - 5000, firmware.length), readFile(file));
+    }
+
+    @Test
+    public void dumpOfProtectedDeviceFails() throws Exception {
+        device.setReadProtected(true);
+        File file = tempFile("dump");
+        assertTrue(file.delete());
+
+        try {
+            dfu.dump(file, ADDRESS, 4096, false);
+            fail("Protected flash was dumped");
+        } catch (Exception e) {
+            // expected, the flash cannot be read
+        }
+        assertFalse(file.exists());
+        assertTrue(device.isReadProtected());
+    }
+
+    private void setDevice(SimulatedDfuDevice device) {
+        for (SimulatedDfuDevice.Operation operation : SimulatedDfuDevice.Operation.values()) {
+            device.setLatency(operation, 0);
+        }
+        this.device = device;
+        transport = new RecordingTransport(device);
+        dfu.setTransport(transport);
+    }
+
+    private File tempFile(String prefix) throws IOException {
+        File file = File.createTempFile(prefix, null);
+        tempFiles.add(file);
+        return file;
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        byte[] data = new byte[(int) file.length()];
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            in.readFully(data);
+        } finally {
+            in.close();
+        }
+        return data;
+    }
+
+    // catalog of a temporary folder holding the file
+    private FirmwareCatalog catalog(byte[] file) throws IOException {
+        File dir = File.createTempFile("catalog", "");
+        if (!dir.delete() || !dir.mkdir()) {
+            throw new IOException("Cannot create " + dir);
+        }
+        tempFiles.add(dir);
+        File firmwareFile = new File(dir, "firmware.dfu");
+        tempFiles.add(0, firmwareFile);
+        FileOutputStream out = new FileOutputStream(firmwareFile);
+        try {
+            out.write(file);
+        } finally {
+            out.close();
+        }
+        FirmwareCatalog catalog = new FirmwareCatalog(dir);
+        catalog.scan();
+        return catalog;
+    }
+
+    // the device resets after programming, this plugs it in again
+    private void reconnect() {
+        device.reconnect();
+        transport.clear();
+        dfu.setTransport(transport);
+    }
+
+    // pseudo random firmware, every eighth block is left erased like unused flash
+    static byte[] firmware(int size, long seed) {
+        byte[] data = new byte[size];
+        new Random(seed).nextBytes(data);
+        for (int offset = 7 * BLOCK_SIZE; offset < size; offset += 8 * BLOCK_SIZE) {
+            Arrays.fill(data, offset, Math.min(offset + BLOCK_SIZE, size), (byte) 0xFF);
+        }
+        return data;
+    }
+
+    static int nonBlankBlocks(byte[] firmware) {
+        int blocks = 0;
+        for (int offset = 0; offset < firmware.length; offset += BLOCK_SIZE) {
+            if (!isBlank(Arrays.copyOfRange(firmware, offset, Math.min(offset + BLOCK_SIZE, firmware.length)))) {
+                blocks++;
+            }
+        }
+        return blocks;
+    }
+
+    static boolean isBlank(byte[] data) {
+        return BlockIndex.isBlank(data, 0, data.length);
+    }
+
+    // single element DfuSe image for the Internal Flash
+    static DfuFile image(int address, byte[] firmware) throws Exception {
+        return new DfuSeBuilder().target(0, new int[]{address}, firmware).build();
+    }
+
+    // DfuSe file in memory, with the suffix of the simulated device
+    static class DfuSeBuilder {
+        private final ByteArrayOutputStream targets = new ByteArrayOutputStream();
+        private int targetCount;
+
+        // one target, each element is placed at the address with the same index
+        DfuSeBuilder target(int alternateSetting, int[] addresses, byte[]... elements) {
+            int size = 0;
+            for (byte[] element : elements) {
+                size += DfuFile.ELEMENT_HEADER_SIZE + element.length;
+            }
+            ByteBuffer target = ByteBuffer.allocate(DfuFile.TARGET_PREFIX_SIZE + size).order(ByteOrder.LITTLE_ENDIAN);
+            target.put("Target".getBytes()).put((byte) alternateSetting).putInt(1);
+            target.put(Arrays.copyOf(("Target " + alternateSetting).getBytes(), DfuFile.TARGET_NAME_SIZE));
+            target.putInt(size).putInt(elements.length);
+            for (int i = 0; i < elements.length; i++) {
+                target.putInt(addresses[i]).putInt(elements[i].length).put(elements[i]);
+            }
+            targets.write(target.array(), 0, target.capacity());
+            targetCount++;
+            return this;
+        }
+
+        byte[] toByteArray() {
+            ByteBuffer file = ByteBuffer.allocate(DfuFile.PREFIX_SIZE + targets.size() + DfuFile.SUFFIX_SIZE)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            file.put("DfuSe".getBytes()).put((byte) 0x01).putInt(file.capacity() - DfuFile.SUFFIX_SIZE);
+            file.put((byte) targetCount).put(targets.toByteArray());
+            file.putShort((short) 0x2200).putShort((short) Usb.USB_PRODUCT_ID).putShort((short) Usb.USB_VENDOR_ID);
+            file.putShort((short) 0x011A).put("UFD".getBytes()).put((byte) DfuFile.SUFFIX_SIZE);
+            // DfuSe keeps the CRC without the final inversion
+            CRC32 crc32 = new CRC32();
+            crc32.update(file.array(), 0, file.position());
+            file.putInt((int) ~crc32.getValue());
+            return file.array();
+        }
+
+        DfuFile build() throws Exception {
+            return DfuFile.parse("test.dfu", ByteBuffer.wrap(toByteArray()));
+        }
+    }
+
+    // passes the transfers to the simulated device and records the DfuSe erase commands and written blocks,
+    // the connection can be dropped before a block download
+    static class RecordingTransport implements DfuTransport {
+        private static final int DFU_DNLOAD = 0x01;
+
+        final SimulatedDfuDevice device;
+        final List<Integer> erasedSectors = new ArrayList<>();
+        final List<Integer> blocks = new ArrayList<>();     // wBlockNum of each block download
+        int dropAfterBlocks = -1;
+
+        RecordingTransport(SimulatedDfuDevice device) {
+            this.device = device;
+        }
+
+        void clear() {
+            erasedSectors.clear();
+            blocks.clear();
+            dropAfterBlocks = -1;
+        }
+
+        @Override
+        public boolean isConnected() {
+            return device.isConnected();
+        }
+
+        @Override
+        public int getDeviceVersion() {
+            return device.getDeviceVersion();
+        }
+
+        @Override
+        public int controlTransfer(int requestType, int request, int value, int index, byte[] buffer, int length, int timeout) {
+            return controlTransfer(requestType, request, value, index, buffer, 0, length, timeout);
+        }
+
+        @Override
+        public int controlTransfer(int requestType, int request, int value, int index, byte[] buffer, int offset, int length, int timeout) {
+            if (request == DFU_DNLOAD && value >= 2 && blocks.size() == dropAfterBlocks) {
+                device.release();
+            }
+            int transferred = device.controlTransfer(requestType, request, value, index, buffer, offset, length, timeout);
+            if (transferred >= 0 && request == DFU_DNLOAD && requestType == 0x21) {
+                if (value >= 2) {
+                    blocks.add(value);
+                } else if (value == 0 && length == 5 && buffer[offset] == 0x41) {
+                    ByteBuffer command = ByteBuffer.wrap(buffer, offset + 1, 4).order(ByteOrder.LITTLE_ENDIAN);
+                    erasedSectors.add(command.getInt());
+                }
+            }
+            return transferred;
+        }
+
+        @Override
+        public boolean release() {
+            return device.release();
+        }
+
+        @Override
+        public TransferStats getTransferStats() {
+            return device.getTransferStats();
+        }
+    }
+}
@@ -0,0 +1,262 @@
+/*
+ * Copyright 2015 Umbrela Smart, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package co.umbrela.tools.stm32dfuprogrammer;
+
+import android.nfc.FormatException;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class FirmwareReaderTest {
+
+    private static final String EOF = ":00000001FF";
+
+    private final List<File> tempFiles = new ArrayList<>();
+
+    @After
+    public void tearDown() {
+        for (File file : tempFiles) {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void hexExtendedLinearAddress() throws Exception {
+        byte[] first = data(16, 1);
+        byte[] second = data(16, 2);
+        byte[] third = data(8, 3);
+        DfuFile image = FirmwareReader.readHex(hexFile(
+                record(0x04, 0, new byte[]{0x08, 0x00}),
+                record(0x00, 0x0000, first),
+                record(0x00, 0x0010, second),
+                record(0x04, 0, new byte[]{0x08, 0x01}),
+                record(0x00, 0x0000, third),
+                record(0x05, 0, new byte[]{0x08, 0x00, 0x01, 0x01}),
+                EOF));
+
+        List<DfuFile.Element> elements = image.getElements(0);
+        assertEquals(2, elements.size());
+        assertEquals(0x08000000, elements.get(0).address);
+        assertArrayEquals(concat(first, second), bytes(elements.get(0)));
+        assertEquals(0x08010000, elements.get(1).address);
+        assertArrayEquals(third, bytes(elements.get(1)));
+    }
+
+    @Test
+    public void hexExtendedSegmentAddress() throws Exception {
+        byte[] data = data(4, 4);
+        DfuFile image = FirmwareReader.readHex(hexFile(
+                record(0x02, 0, new byte[]{0x10, 0x00}),
+                record(0x00, 0x0020, data),
+                EOF));
+
+        List<DfuFile.Element> elements = image.getElements(0);
+        assertEquals(1, elements.size());
+        assertEquals(0x10020, elements.get(0).address);
+        assertArrayEquals(data, bytes(elements.get(0)));
+    }
+
+    @Test
+    public void hexGapStartsNewElement() throws Exception {
+        byte[] first = data(16, 5);
+        byte[] second = data(16, 6);
+        DfuFile image = FirmwareReader.readHex(hexFile(
+                record(0x00, 0x0000, first),
+                record(0x00, 0x0020, second),
+                EOF));
+
+        List<DfuFile.Element> elements = image.getElements(0);
+        assertEquals(2, elements.size());
+        assertEquals(0x0000, elements.get(0).address);
+        assertEquals(16, elements.get(0).length);
+        assertEquals(0x0020, elements.get(1).address);
+        assertArrayEquals(second, bytes(elements.get(1)));
+    }
+
+    @Test
+    public void hexRejectsBadChecksum() throws Exception {
+        String record = record(0x00, 0x0000, data(16, 7));
+        int last = Character.digit(record.charAt(record.length() - 1), 16);
+        String damaged = record.substring(0, record.length() - 1) + Character.toUpperCase(Character.forDigit(last ^ 1, 16));
+        assertRejected(hexFile(damaged, EOF));
+    }
+
+    @Test
+    public void hexRejectsWrongRecordLength() throws Exception {
+        // the count says 16 Bytes, the record holds 8
+        String record = record(0x00, 0x0000, data(8, 8));
+        String damaged = ":10" + record.substring(3);
+        assertRejected(hexFile(damaged, EOF));
+    }
+
+    @Test
+    public void hexRejectsMissingEndOfFile() throws Exception {
+        assertRejected(hexFile(record(0x00, 0x0000, data(16, 9))));
+    }
+
+    @Test
+    public void elfLoadsSegmentsAtPhysicalAddress() throws Exception {
+        byte[] text = data(1000, 10);
+        byte[] data = data(100, 11);
+        // .data runs from RAM but is loaded from flash, .bss has no data in the file
+        DfuFile image = FirmwareReader.readElf(elfFile(new int[][]{
+                {1, 0x08000000, 0x08000000, 1000},
+                {1, 0x20000000, 0x080003E8, 100},
+                {1, 0x20000064, 0x0800044C, 0},
+                {4, 0, 0, 0}}, text, data));
+
+        List<DfuFile.Element> elements = image.getElements(0);
+        assertEquals(2, elements.size());
+        assertEquals(0x08000000, elements.get(0).address);
+        assertArrayEquals(text, bytes(elements.get(0)));
+        assertEquals(0x080003E8, elements.get(1).address);
+        assertArrayEquals(data, bytes(elements.get(1)));
+    }
+
+    @Test
+    public void binIsPlacedAtBaseAddress() throws Exception {
+        byte[] data = data(5000, 12);
+        File file = tempFile(".bin");
+        write(file, data);
+
+        DfuFile image = FirmwareReader.open(file, 0x08004000);
+
+        List<DfuFile.Element> elements = image.getElements(0);
+        assertEquals(1, elements.size());
+        assertEquals(0x08004000, elements.get(0).address);
+        assertArrayEquals(data, bytes(elements.get(0)));
+    }
+
+    private void assertRejected(File file) throws Exception {
+        try {
+            FirmwareReader.readHex(file);
+            fail("Damaged file was read");
+        } catch (FormatException e) {
+            // expected
+        }
+    }
+
+    // Intel HEX record with its checksum
+    private static String record(int type, int offset, byte[] data) {
+        byte[] record = new byte[4 + data.length];
+        record[0] = (byte) data.length;
+        record[1] = (byte) (offset >> 8);
+        record[2] = (byte) offset;
+        record[3] = (byte) type;
+        System.arraycopy(data, 0, record, 4, data.length);
+        StringBuilder line = new StringBuilder(":");
+        int sum = 0;
+        for (byte b : record) {
+            line.append(String.format("%02X", b & 0xFF));
+            sum += b;
+        }
+        return line.append(String.format("%02X", -sum & 0xFF)).toString();
+    }
+
+    private File hexFile(String... records) throws IOException {
+        StringBuilder text = new StringBuilder();
+        for (String record : records) {
+            text.append(record).append("\r\n");
+        }
+        File file = tempFile(".hex");
+        write(file, text.toString().getBytes("US-ASCII"));
+        return file;
+    }
+
+    // ELF32 little endian with a program header of type, p_vaddr, p_paddr and p_filesz per segment,
+    // the data of the segments with a file size follows the program headers
+    private File elfFile(int[][] segments, byte[]... data) throws IOException {
+        int phOffset = 52;
+        int dataOffset = phOffset + 32 * segments.length;
+        int size = dataOffset;
+        for (byte[] part : data) {
+            size += part.length;
+        }
+        ByteBuffer elf = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        elf.put(new byte[]{0x7F, 'E', 'L', 'F', 1, 1, 1});
+        elf.putShort(16, (short) 2).putShort(18, (short) 40);   // executable, ARM
+        elf.putInt(0x1C, phOffset).putShort(0x2A, (short) 32).putShort(0x2C, (short) segments.length);
+        int offset = dataOffset;
+        int part = 0;
+        for (int i = 0; i < segments.length; i++) {
+            int header = phOffset + 32 * i;
+            int fileSize = segments[i][3];
+            elf.putInt(header, segments[i][0]);
+            elf.putInt(header + 4, fileSize > 0 ? offset : 0);
+            elf.putInt(header + 8, segments[i][1]);
+            elf.putInt(header + 12, segments[i][2]);
+            elf.putInt(header + 16, fileSize);
+            elf.putInt(header + 20, fileSize);
+            if (fileSize > 0) {
+                elf.position(offset);
+                elf.put(data[part++]);
+                offset += fileSize;
+            }
+        }
+        File file = tempFile(".elf");
+        write(file, elf.array());
+        return file;
+    }
+
+    private File tempFile(String suffix) throws IOException {
+        File file = File.createTempFile("firmware", suffix);
+        tempFiles.add(file);
+        return file;
+    }
+
+    private static void write(File file, byte[] data) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static byte[] data(int length, int seed) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (seed * 31 + i * 7);
+        }
+        return data;
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] result = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, result, a.length, b.length);
+        return result;
+    }
+
+    private static byte[] bytes(DfuFile.Element element) {
+        byte[] data = new byte[element.length];
+        element.getData().duplicate().get(data);
+        return data;
+    }
+}
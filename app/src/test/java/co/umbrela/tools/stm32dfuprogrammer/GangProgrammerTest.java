@@ -0,0 +1,100 @@
+/*
+ * Copyright 2015 Umbrela Smart, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package co.umbrela.tools.stm32dfuprogrammer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class GangProgrammerTest {
+
+    private static final int ADDRESS = Dfu.mInternalFlashStartAddress;
+    private static final String NAME = "3677384E3337";
+
+    private File checkpointDir;
+    private GangProgrammer gang;
+    private SimulatedDfuDevice device;
+    private DfuTest.RecordingTransport transport;
+
+    @Before
+    public void setUp() throws Exception {
+        checkpointDir = File.createTempFile("checkpoints", "");
+        if (!checkpointDir.delete() || !checkpointDir.mkdir()) {
+            throw new IOException("Cannot create " + checkpointDir);
+        }
+        gang = new GangProgrammer(checkpointDir);
+        device = new SimulatedDfuDevice();
+        for (SimulatedDfuDevice.Operation operation : SimulatedDfuDevice.Operation.values()) {
+            device.setLatency(operation, 0);
+        }
+        transport = new DfuTest.RecordingTransport(device);
+    }
+
+    @After
+    public void tearDown() {
+        gang.clear();
+        File[] files = checkpointDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        checkpointDir.delete();
+    }
+
+    @Test
+    public void resumeContinuesFromCheckpoint() throws Exception {
+        byte[] firmware = DfuTest.firmware(300 * 1024, 21);
+        gang.addBoard(NAME, transport);
+        transport.dropAfterBlocks = 40;
+
+        gang.programAll(DfuTest.image(ADDRESS, firmware));
+        gang.awaitAll();
+        assertEquals(GangProgrammer.State.FAILED, gang.getBoard(NAME).getState());
+
+        // the board reset and enumerated again
+        device.reconnect();
+        transport.clear();
+        assertTrue(gang.resume(NAME, transport));
+        gang.awaitAll();
+
+        assertEquals(GangProgrammer.State.PASSED, gang.getBoard(NAME).getState());
+        assertEquals(DfuTest.nonBlankBlocks(firmware) - 40, transport.blocks.size());
+        assertArrayEquals(firmware, device.readMemory(ADDRESS, firmware.length));
+        // a board that passed is not programmed again
+        assertFalse(gang.resume(NAME, transport));
+    }
+
+    @Test
+    public void resumeIgnoresUnknownBoard() throws Exception {
+        gang.addBoard(NAME, transport);
+        // nothing was programmed yet
+        assertFalse(gang.resume(NAME, transport));
+
+        gang.programAll(DfuTest.image(ADDRESS, DfuTest.firmware(8 * 1024, 22)));
+        gang.awaitAll();
+        assertFalse(gang.resume("other", transport));
+    }
+}
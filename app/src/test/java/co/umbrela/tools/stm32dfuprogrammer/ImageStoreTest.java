@@ -0,0 +1,186 @@
+/*
+ * Copyright 2015 Umbrela Smart, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package co.umbrela.tools.stm32dfuprogrammer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ImageStoreTest {
+
+    private static final String SHA256 = "0123456789abcdef0123456789abcdef0123456789abcdef0123456789abcdef";
+    private static final String OTHER = "fedcba9876543210fedcba9876543210fedcba9876543210fedcba9876543210";
+
+    private File dir;
+    private DfuFile image;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = File.createTempFile("images", "");
+        if (!dir.delete() || !dir.mkdir()) {
+            throw new IOException("Cannot create " + dir);
+        }
+        image = new DfuTest.DfuSeBuilder()
+                .target(0, new int[]{0x08000000, 0x08040000}, DfuTest.firmware(40000, 1), DfuTest.firmware(5000, 2))
+                .build();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void loadReturnsSavedImageAndPlans() throws Exception {
+        List<WritePlan> plans = Arrays.asList(WritePlan.build(image.getElements(0), 1024),
+                WritePlan.build(image.getElements(0), 2048));
+        ImageStore.open(dir).save(SHA256, image, plans);
+
+        ImageStore.Stored stored = ImageStore.open(dir).load(SHA256);
+
+        assertNotNull(stored);
+        assertEquals(image.crc, stored.image.crc);
+        assertEquals(image.PID, stored.image.PID);
+        assertEquals(image.VID, stored.image.VID);
+        List<DfuFile.Element> elements = stored.image.getElements(0);
+        assertEquals(2, elements.size());
+        for (int i = 0; i < elements.size(); i++) {
+            assertEquals(image.getElements(0).get(i).address, elements.get(i).address);
+            assertArrayEquals(bytes(image.getElements(0).get(i)), bytes(elements.get(i)));
+        }
+        assertEquals(2, stored.plans.size());
+        for (int p = 0; p < plans.size(); p++) {
+            WritePlan plan = stored.plans.get(p);
+            assertEquals(plans.get(p).getBlockSize(), plan.getBlockSize());
+            assertEquals(plans.get(p).getBlankCount(), plan.getBlankCount());
+            assertArrayEquals(plans.get(p).getImageHash(), plan.getImageHash());
+        }
+    }
+
+    @Test
+    public void loadDropsDamagedPayload() throws Exception {
+        ImageStore store = ImageStore.open(dir);
+        store.save(SHA256, image, Collections.singletonList(WritePlan.build(image.getElements(0), 2048)));
+        File file = new File(dir, SHA256 + ".img");
+
+        // the last byte of the last element
+        RandomAccessFile out = new RandomAccessFile(file, "rw");
+        try {
+            out.seek(out.length() - 1);
+            int b = out.read();
+            out.seek(out.length() - 1);
+            out.write(b ^ 0x01);
+        } finally {
+            out.close();
+        }
+
+        assertNull(store.load(SHA256));
+        assertFalse(file.exists());
+    }
+
+    @Test
+    public void indexKeepsLatestKeyPerPath() throws Exception {
+        ImageStore store = ImageStore.open(dir);
+        List<WritePlan> plans = Collections.emptyList();
+        store.save(SHA256, image, plans);
+        store.save(OTHER, image, plans);
+        store.putHash("/sdcard/fw.dfu|100|1", SHA256);
+        store.putHash("/sdcard/fw.dfu|120|2", OTHER);
+
+        assertEquals(1, indexLines().size());
+        assertNull(store.getHash("/sdcard/fw.dfu|100|1"));
+        assertEquals(OTHER, ImageStore.open(dir).getHash("/sdcard/fw.dfu|120|2"));
+
+        // the key of a removed image is compacted away
+        store.remove(OTHER);
+        assertTrue(indexLines().isEmpty());
+        assertNull(ImageStore.open(dir).getHash("/sdcard/fw.dfu|120|2"));
+    }
+
+    @Test
+    public void concurrentSavesOfSameImage() throws Exception {
+        final ImageStore store = ImageStore.open(dir);
+        final List<Exception> failures = Collections.synchronizedList(new ArrayList<Exception>());
+        List<Thread> threads = new ArrayList<>();
+        for (final int blockSize : new int[]{1024, 2048}) {
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < 20; i++) {
+                            store.save(SHA256, image, Collections.singletonList(WritePlan.build(image.getElements(0), blockSize)));
+                        }
+                    } catch (Exception e) {
+                        failures.add(e);
+                    }
+                }
+            };
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertTrue(failures.toString(), failures.isEmpty());
+        assertNotNull(store.load(SHA256));
+        assertEquals(1, dir.listFiles().length);
+    }
+
+    private List<String> indexLines() throws IOException {
+        List<String> lines = new ArrayList<>();
+        BufferedReader reader = new BufferedReader(new FileReader(new File(dir, "index")));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines.add(line);
+            }
+        } finally {
+            reader.close();
+        }
+        return lines;
+    }
+
+    private static byte[] bytes(DfuFile.Element element) {
+        byte[] data = new byte[element.length];
+        element.getData().duplicate().get(data);
+        return data;
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2015 Umbrela Smart, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package co.umbrela.tools.stm32dfuprogrammer;
+
+import org.junit.Test;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class StatusLogTest {
+
+    @Test
+    public void drainReturnsMessagesInOrder() {
+        StatusLog log = new StatusLog(8);
+        List<String> batch = new ArrayList<>();
+        log.append("a");
+        log.append("b");
+        log.append("c");
+
+        assertEquals(3, log.drain(batch));
+        assertEquals(Arrays.asList("a", "b", "c"), batch);
+        assertEquals(0, log.drain(batch));
+        assertEquals(0, log.getDropped());
+    }
+
+    @Test
+    public void overrunDropsOldestMessages() {
+        StatusLog log = new StatusLog(3);      // rounded up to 4
+        List<String> batch = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            log.append(Integer.toString(i));
+        }
+
+        assertEquals(4, log.drain(batch));
+        assertEquals(Arrays.asList("6", "7", "8", "9"), batch);
+        assertEquals(6, log.getDropped());
+    }
+
+    @Test
+    public void pendingListenerRunsOncePerDrain() {
+        StatusLog log = new StatusLog(8);
+        final AtomicInteger scheduled = new AtomicInteger();
+        log.setOnPendingListener(new Runnable() {
+            @Override
+            public void run() {
+                scheduled.incrementAndGet();
+            }
+        });
+        log.append("a");
+        log.append("b");
+        assertEquals(1, scheduled.get());
+
+        log.drain(new ArrayList<String>());
+        log.append("c");
+        assertEquals(2, scheduled.get());
+    }
+
+    @Test
+    public void lateMessageOfLappedProducerIsDropped() throws Exception {
+        StatusLog log = new StatusLog(2);
+        log.append("a");
+        log.append("b");
+        log.append("c");        // in the slot of a
+
+        // the producer of a was held up and publishes after c, a full ring later
+        AtomicLong head = head(log);
+        long end = head.getAndSet(0);
+        log.append("a late");
+        head.set(end);
+
+        List<String> batch = new ArrayList<>();
+        assertEquals(2, log.drain(batch));
+        assertEquals(Arrays.asList("b", "c"), batch);
+        assertEquals(1, log.getDropped());
+        log.append("d");
+        assertEquals(1, log.drain(batch));
+        assertEquals("d", batch.get(2));
+    }
+
+    @Test
+    public void lappedProducersDoNotStallDrain() throws Exception {
+        // a ring of two slots, so producers lap each other all the time
+        final StatusLog log = new StatusLog(2);
+        final int producers = 4;
+        final int messages = 50000;
+        List<Thread> threads = new ArrayList<>();
+        for (int p = 0; p < producers; p++) {
+            final String name = "p" + p + " ";
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < messages; i++) {
+                        log.append(name + i);
+                    }
+                }
+            };
+            threads.add(thread);
+            thread.start();
+        }
+        List<String> batch = new ArrayList<>();
+        long drained = 0;
+        for (Thread thread : threads) {
+            while (thread.isAlive()) {
+                drained += log.drain(batch);
+                batch.clear();
+            }
+        }
+
+        // every message is either drained or counted as dropped, none is left behind
+        drained += log.drain(batch);
+        assertTrue(batch.size() <= 2);
+        assertEquals(producers * messages, drained + log.getDropped());
+    }
+
+    private static AtomicLong head(StatusLog log) throws Exception {
+        Field field = StatusLog.class.getDeclaredField("head");
+        field.setAccessible(true);
+        return (AtomicLong) field.get(log);
+    }
+}
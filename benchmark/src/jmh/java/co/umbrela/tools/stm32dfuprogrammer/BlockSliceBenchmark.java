@@ -0,0 +1,73 @@
+/*
+ * Copyright 2015 Umbrela Smart, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package co.umbrela.tools.stm32dfuprogrammer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+// splitting the image into transfer blocks: the block index and the copy done per written block
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class BlockSliceBenchmark {
+
+    @Param({"65536", "262144", "1048576", "4194304", "16777216"})
+    public int size;
+
+    private ByteBuffer firmware;
+    private WritePlan.Run run;
+    private byte[] block;
+
+    @Setup
+    public void setup() throws Exception {
+        firmware = ByteBuffer.wrap(Images.firmware(size));
+        run = Images.writePlan(Images.dfuFile(firmware.array())).getRuns().get(0);
+        block = new byte[Images.BLOCK_SIZE];
+    }
+
+    @Benchmark
+    public BlockIndex buildIndex() {
+        return BlockIndex.build(Collections.singletonList(firmware.duplicate()), Images.BLOCK_SIZE);
+    }
+
+    // the same copy and padding as Dfu.writeRun() does before each DNLOAD
+    @Benchmark
+    public void copyBlocks(Blackhole blackhole) {
+        BlockIndex index = run.getBlockIndex();
+        for (int n = 0; n < index.getBlockCount(); n++) {
+            BlockIndex.Block b = index.getBlock(n);
+            if (b.blank) {
+                continue;
+            }
+            run.copy(b.offset, block, 0, b.length);
+            Arrays.fill(block, b.length, block.length, (byte) 0xFF);
+            blackhole.consume(block);
+        }
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2015 Umbrela Smart, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package co.umbrela.tools.stm32dfuprogrammer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+// comparison of uploaded blocks with the image as done while verifying
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class CompareBenchmark {
+
+    @Param({"65536", "262144", "1048576", "4194304", "16777216"})
+    public int size;
+
+    private WritePlan.Run run;
+    private byte[] device;      // what the device returns, equal to the image
+
+    @Setup
+    public void setup() throws Exception {
+        byte[] firmware = Images.firmware(size);
+        run = Images.writePlan(Images.dfuFile(firmware)).getRuns().get(0);
+        device = firmware.clone();
+    }
+
+    // ByteBuffer.equals on a block slice, the path of StreamingVerifier
+    @Benchmark
+    public boolean matchBlocks() {
+        boolean equal = true;
+        for (int offset = 0; offset < run.length; offset += Images.BLOCK_SIZE) {
+            int length = Math.min(Images.BLOCK_SIZE, run.length - offset);
+            equal &= run.matches(offset, device, offset, length);
+        }
+        return equal;
+    }
+
+    // blank check of uploaded blocks, the path of the erase check
+    @Benchmark
+    public boolean blankCheck() {
+        boolean blank = true;
+        for (int offset = 0; offset < device.length; offset += Images.BLOCK_SIZE) {
+            blank &= BlockIndex.isBlank(device, offset, Math.min(Images.BLOCK_SIZE, device.length - offset));
+        }
+        return blank;
+    }
+
+    // whole verification with the comparing thread
+    @Benchmark
+    public VerifyReport streamingVerify() throws Exception {
+        VerifyReport report = new VerifyReport(VerifyPolicy.FULL);
+        StreamingVerifier verifier = new StreamingVerifier(report, false, Images.BLOCK_SIZE);
+        verifier.start();
+        try {
+            byte[] block = new byte[Images.BLOCK_SIZE];
+            for (int offset = 0; offset < run.length; offset += Images.BLOCK_SIZE) {
+                int length = Math.min(Images.BLOCK_SIZE, run.length - offset);
+                System.arraycopy(device, offset, block, 0, length);
+                verifier.submit(run, offset, block, length);
+            }
+        } finally {
+            verifier.finish();
+        }
+        return report;
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright 2015 Umbrela Smart, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package co.umbrela.tools.stm32dfuprogrammer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+// DfuSe suffix CRC over a whole file with each engine, heap and mapped like buffers
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class CrcBenchmark {
+
+    @Param({"65536", "262144", "1048576", "4194304", "16777216"})
+    public int size;
+
+    @Param({"table", "slice-by-8", "zip", "parallel"})
+    public String engine;
+
+    @Param({"false", "true"})
+    public boolean direct;
+
+    private CrcEngine crcEngine;
+    private ByteBuffer data;
+
+    @Setup
+    public void setup() {
+        for (CrcEngine candidate : CrcEngine.getEngines()) {
+            if (candidate.getName().equals(engine)) {
+                crcEngine = candidate;
+            }
+        }
+        byte[] firmware = Images.firmware(size);
+        data = direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+        data.put(firmware).flip();
+    }
+
+    @Benchmark
+    public int update() {
+        return crcEngine.update(0xFFFFFFFF, data);
+    }
+}
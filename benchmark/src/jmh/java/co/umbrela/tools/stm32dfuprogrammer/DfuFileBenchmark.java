@@ -0,0 +1,56 @@
+/*
+ * Copyright 2015 Umbrela Smart, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package co.umbrela.tools.stm32dfuprogrammer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+// header, target and element parsing of a .dfu file including its CRC check
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class DfuFileBenchmark {
+
+    @Param({"65536", "262144", "1048576", "4194304", "16777216"})
+    public int size;
+
+    private ByteBuffer file;
+
+    @Setup
+    public void setup() {
+        file = Images.dfuFile(Images.firmware(size));
+    }
+
+    @Benchmark
+    public DfuFile parse() throws Exception {
+        return DfuFile.parse("benchmark.dfu", file.duplicate());
+    }
+
+    @Benchmark
+    public WritePlan parseAndPlan() throws Exception {
+        return Images.writePlan(file);
+    }
+}
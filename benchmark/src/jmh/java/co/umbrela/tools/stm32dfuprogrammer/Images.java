@@ -0,0 +1,71 @@
+/*
+ * Copyright 2015 Umbrela Smart, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package co.umbrela.tools.stm32dfuprogrammer;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+// DfuSe files built in memory, so the benchmarks do not depend on files of every size
+final class Images {
+
+    static final int BLOCK_SIZE = 2048;
+    static final int ADDRESS = 0x08000000;
+
+    private Images() {
+    }
+
+    // pseudo random firmware, every eighth block is left erased like unused flash
+    static byte[] firmware(int size) {
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        for (int offset = 7 * BLOCK_SIZE; offset < size; offset += 8 * BLOCK_SIZE) {
+            for (int i = offset; i < Math.min(offset + BLOCK_SIZE, size); i++) {
+                data[i] = (byte) 0xFF;
+            }
+        }
+        return data;
+    }
+
+    // single target, single element DfuSe file of the firmware
+    static ByteBuffer dfuFile(byte[] firmware) {
+        int imageSize = DfuFile.ELEMENT_HEADER_SIZE + firmware.length;
+        ByteBuffer file = ByteBuffer.allocate(DfuFile.PREFIX_SIZE + DfuFile.TARGET_PREFIX_SIZE + imageSize +
+                DfuFile.SUFFIX_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+        file.put("DfuSe".getBytes()).put((byte) 0x01).putInt(file.capacity() - DfuFile.SUFFIX_SIZE).put((byte) 1);
+        file.put("Target".getBytes()).put((byte) 0).putInt(1);
+        byte[] name = new byte[DfuFile.TARGET_NAME_SIZE];
+        System.arraycopy("ST...".getBytes(), 0, name, 0, 5);
+        file.put(name).putInt(imageSize).putInt(1);
+        file.putInt(ADDRESS).putInt(firmware.length).put(firmware);
+        file.putShort((short) 0x2200).putShort((short) 0xDF11).putShort((short) 0x0483).putShort((short) 0x011A);
+        file.put("UFD".getBytes()).put((byte) DfuFile.SUFFIX_SIZE);
+
+        CRC32 crc32 = new CRC32();
+        crc32.update(file.array(), 0, file.position());
+        file.putInt((int) ~crc32.getValue());
+        file.flip();
+        return file;
+    }
+
+    static WritePlan writePlan(ByteBuffer dfuFile) throws Exception {
+        DfuFile parsed = DfuFile.parse("benchmark.dfu", dfuFile.duplicate());
+        return WritePlan.build(parsed.getElements(0), BLOCK_SIZE);
+    }
+}